@@ -7,8 +7,15 @@ import java.util.List;
 
 import com.google.common.collect.ImmutableList;
 
+import ch.raffael.util.common.collections.PersistentVector;
+
 
 /**
+ * A property holding an immutable list. Incoming lists are copied unless they're already
+ * immutable: {@link PersistentVector}s and <code>ImmutableList</code>s are taken as
+ * they are, so updating a large list property using {@link PersistentVector#plus(Object)}
+ * or {@link PersistentVector#with(int, Object)} doesn't copy the whole list.
+ *
  * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
  */
 public class ListProperty<T> extends Property<List<T>> {
@@ -26,6 +33,9 @@ public class ListProperty<T> extends Property<List<T>> {
         if ( value == null ) {
             return Collections.emptyList();
         }
+        else if ( value instanceof PersistentVector ) {
+            return value;
+        }
         else {
             return ImmutableList.copyOf(value);
         }
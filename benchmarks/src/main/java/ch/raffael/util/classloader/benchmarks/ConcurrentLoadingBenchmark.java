@@ -0,0 +1,87 @@
+package ch.raffael.util.classloader.benchmarks;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.raffael.util.classloader.DelegatingClassLoader;
+
+
+/**
+ * Loading all fixture classes into a new {@link DelegatingClassLoader} using the given
+ * number of threads.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ConcurrentLoadingBenchmark {
+
+    @Param({ "1", "2", "4", "8", "16", "32" })
+    public int threads;
+
+    @Param({ "false", "true" })
+    public boolean indexed;
+
+    private URL[] urls;
+    private List<String> classNames;
+    private ExecutorService executor;
+    private DelegatingClassLoader loader;
+
+    @Setup
+    public void setup() throws IOException {
+        urls = Fixtures.urls();
+        classNames = Fixtures.classNames();
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupLoader() {
+        DelegatingClassLoader.Builder builder = DelegatingClassLoader.builder().add(urls).reporting(false);
+        if ( indexed ) {
+            builder.index();
+        }
+        loader = builder.build(null);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownLoader() throws IOException {
+        loader.close();
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public int loadAll() throws Exception {
+        int loaded = loader.preload(classNames, executor).get();
+        if ( loaded != classNames.size() ) {
+            throw new IllegalStateException("Loaded only " + loaded + " of " + classNames.size() + " classes");
+        }
+        return loaded;
+    }
+
+}
@@ -0,0 +1,112 @@
+package ch.raffael.util.classloader.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.raffael.util.classloader.DelegatingClassLoader;
+
+
+/**
+ * Class loading through {@link DelegatingClassLoader}: Loading a class locally (using a
+ * new class loader for each invocation), importing an already loaded class from another
+ * class loader and failing to find a class.
+ * <p/>
+ * The class loaders have no parent, so each lookup includes the delegation to the
+ * bootstrap class loader. The importing class loader optionally uses a
+ * {@link DelegatingClassLoader.Builder#negativeCache() negative cache}, which turns
+ * repeated failures into a hash lookup.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FindClassBenchmark {
+
+    private static final String LOCAL_CLASS = Fixtures.className(Fixtures.JARS - 1, 3, 7);
+    private static final String IMPORTED_CLASS = Fixtures.className(0, 3, 7);
+    private static final String MISSING_CLASS = "fixture.j" + (Fixtures.JARS - 1) + ".p3.Missing";
+
+    @Param({ "false", "true" })
+    public boolean indexed;
+
+    @Param({ "false", "true" })
+    public boolean negativeCache;
+
+    private DelegatingClassLoader exporter;
+    private DelegatingClassLoader importer;
+    private DelegatingClassLoader local;
+
+    @Setup
+    public void setup() throws Exception {
+        exporter = builder().add(Fixtures.urls()[0]).build(null);
+        exporter.loadClass(IMPORTED_CLASS);
+        DelegatingClassLoader.Builder importerBuilder = builder().add(Fixtures.urls()).dispatch("fixture/j0/", exporter);
+        if ( negativeCache ) {
+            importerBuilder.negativeCache();
+        }
+        importer = importerBuilder.build(null);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupLocal() throws IOException {
+        local = builder().add(Fixtures.urls()).build(null);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownLocal() throws IOException {
+        local.close();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        importer.close();
+        exporter.close();
+    }
+
+    @Benchmark
+    public Class<?> local() throws ClassNotFoundException {
+        return local.loadClass(LOCAL_CLASS);
+    }
+
+    @Benchmark
+    public Class<?> imported() throws ClassNotFoundException {
+        return importer.loadClass(IMPORTED_CLASS);
+    }
+
+    @Benchmark
+    public Object failing() {
+        try {
+            return importer.loadClass(MISSING_CLASS);
+        }
+        catch ( ClassNotFoundException e ) {
+            return e;
+        }
+    }
+
+    private DelegatingClassLoader.Builder builder() {
+        DelegatingClassLoader.Builder builder = DelegatingClassLoader.builder().reporting(false);
+        if ( indexed ) {
+            builder.index();
+        }
+        return builder;
+    }
+
+}
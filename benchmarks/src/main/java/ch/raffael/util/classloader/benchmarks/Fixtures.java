@@ -0,0 +1,152 @@
+package ch.raffael.util.classloader.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+
+/**
+ * Synthetic JAR files for the benchmarks. Each JAR contains {@link #PACKAGES} packages
+ * with {@link #CLASSES} empty classes each. The JARs are generated at build time by
+ * running this class; if they're missing at run time, they're generated on the fly.
+ * <p/>
+ * The directory defaults to <code>target/fixtures</code> and can be set using the system
+ * property <code>cru.benchmarks.fixtures</code>.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public final class Fixtures {
+
+    public static final int JARS = 4;
+    public static final int PACKAGES = 8;
+    public static final int CLASSES = 32;
+
+    private Fixtures() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        generate(new File(args.length > 0 ? args[0] : "target/fixtures"));
+    }
+
+    public static String className(int jar, int pkg, int cls) {
+        return "fixture.j" + jar + ".p" + pkg + ".C" + cls;
+    }
+
+    public static List<String> classNames(int jar) {
+        List<String> names = new ArrayList<>(PACKAGES * CLASSES);
+        for ( int pkg = 0; pkg < PACKAGES; pkg++ ) {
+            for ( int cls = 0; cls < CLASSES; cls++ ) {
+                names.add(className(jar, pkg, cls));
+            }
+        }
+        return names;
+    }
+
+    public static List<String> classNames() {
+        List<String> names = new ArrayList<>(JARS * PACKAGES * CLASSES);
+        for ( int jar = 0; jar < JARS; jar++ ) {
+            names.addAll(classNames(jar));
+        }
+        return names;
+    }
+
+    public static URL[] urls() throws IOException {
+        File dir = new File(System.getProperty("cru.benchmarks.fixtures", "target/fixtures"));
+        if ( !jar(dir, JARS - 1).isFile() ) {
+            generate(dir);
+        }
+        URL[] urls = new URL[JARS];
+        for ( int jar = 0; jar < JARS; jar++ ) {
+            urls[jar] = url(jar(dir, jar));
+        }
+        return urls;
+    }
+
+    /**
+     * Create the bytecode of an empty public class extending <code>java.lang.Object</code>.
+     *
+     * @param className The name of the class.
+     *
+     * @return The class file.
+     */
+    public static byte[] classBytes(String className) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + className.length());
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(50);
+            // constant pool
+            out.writeShort(5);
+            out.writeByte(1);
+            out.writeUTF(className.replace('.', '/'));
+            out.writeByte(7);
+            out.writeShort(1);
+            out.writeByte(1);
+            out.writeUTF("java/lang/Object");
+            out.writeByte(7);
+            out.writeShort(3);
+            // public super class, this class, super class
+            out.writeShort(0x21);
+            out.writeShort(2);
+            out.writeShort(4);
+            // no interfaces, fields, methods and attributes
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.flush();
+            return bytes.toByteArray();
+        }
+        catch ( IOException e ) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void generate(File dir) throws IOException {
+        if ( !dir.isDirectory() && !dir.mkdirs() ) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        for ( int jar = 0; jar < JARS; jar++ ) {
+            File file = jar(dir, jar);
+            File tmp = new File(dir, file.getName() + ".tmp");
+            try ( JarOutputStream out = new JarOutputStream(new FileOutputStream(tmp)) ) {
+                for ( String name : classNames(jar) ) {
+                    out.putNextEntry(new JarEntry(name.replace('.', '/') + ".class"));
+                    out.write(classBytes(name));
+                    out.closeEntry();
+                }
+                out.putNextEntry(new JarEntry("META-INF/services/fixture.Service"));
+                out.write(("fixture.j" + jar + ".p0.C0\n").getBytes("UTF-8"));
+                out.closeEntry();
+            }
+            if ( !tmp.renameTo(file) ) {
+                if ( !file.delete() || !tmp.renameTo(file) ) {
+                    throw new IOException("Cannot rename " + tmp + " to " + file);
+                }
+            }
+        }
+    }
+
+    private static File jar(File dir, int jar) {
+        return new File(dir, "fixture-" + jar + ".jar");
+    }
+
+    private static URL url(File file) {
+        try {
+            return file.toURI().toURL();
+        }
+        catch ( MalformedURLException e ) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package ch.raffael.util.classloader.benchmarks;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.raffael.util.classloader.IsolatingClassLoader;
+
+
+/**
+ * <code>loadClass()</code> of an {@link IsolatingClassLoader} for classes that have
+ * already been loaded, both delegated to the parent and isolated.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class IsolatingClassLoaderBenchmark {
+
+    private static final String ISOLATED_CLASS = Fixtures.className(0, 0, 0);
+
+    private IsolatingClassLoader loader;
+
+    @Setup
+    public void setup() throws ClassNotFoundException {
+        loader = new FixtureClassLoader(IsolatingClassLoaderBenchmark.class.getClassLoader());
+        loader.loadClass(ISOLATED_CLASS);
+    }
+
+    @Benchmark
+    public Class<?> delegated() throws ClassNotFoundException {
+        return loader.loadClass("java.lang.String");
+    }
+
+    @Benchmark
+    public Class<?> isolated() throws ClassNotFoundException {
+        return loader.loadClass(ISOLATED_CLASS);
+    }
+
+    private static final class FixtureClassLoader extends IsolatingClassLoader {
+        private FixtureClassLoader(ClassLoader parent) {
+            super(parent, Collections.singletonMap("fixture/", false));
+        }
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            if ( !name.startsWith("fixture.") ) {
+                throw new ClassNotFoundException(name);
+            }
+            byte[] bytes = Fixtures.classBytes(name);
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package ch.raffael.util.classloader.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.raffael.util.classloader.PackageMap;
+
+
+/**
+ * Lookups in a {@link PackageMap} with a few hundred entries, similar to the dispatchers
+ * of a plugin class loader.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PackageMapBenchmark {
+
+    private PackageMap<String> map;
+
+    @Setup
+    public void setup() {
+        map = new PackageMap<>();
+        for ( int i = 0; i < 100; i++ ) {
+            map.put("com/example/plugin" + i + "/api", "exact" + i);
+            map.put("com/example/plugin" + i + "/impl/", "recursive" + i);
+        }
+        map.put("org/", "org");
+    }
+
+    @Benchmark
+    public String hit() {
+        return map.get("com/example/plugin42/api");
+    }
+
+    @Benchmark
+    public String miss() {
+        return map.get("net/example/plugin42/api");
+    }
+
+    @Benchmark
+    public String deepSubPackage() {
+        return map.get("com/example/plugin42/impl/internal/util/collections/concurrent");
+    }
+
+}
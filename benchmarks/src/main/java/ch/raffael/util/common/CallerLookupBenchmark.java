@@ -0,0 +1,76 @@
+package ch.raffael.util.common;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Compares the {@link CallerLookup} backends at different stack depths. The benchmark
+ * lives in the package of <code>CallerLookup</code> because the backends are
+ * package-private. The <code>StackWalker</code> backend requires Java 9 or later.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CallerLookupBenchmark {
+
+    @Param({ "SecurityManager", "StackWalker", "StackTrace" })
+    private String backend;
+
+    @Param({ "5", "50" })
+    private int depth;
+
+    private CallerLookup lookup;
+
+    @Setup
+    public void setup() throws Exception {
+        switch ( backend ) {
+            case "SecurityManager":
+                lookup = new CallerLookup.SecurityManagerLookup();
+                break;
+            case "StackWalker":
+                lookup = new CallerLookup.StackWalkerLookup();
+                break;
+            case "StackTrace":
+                lookup = new CallerLookup.StackTraceLookup();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown backend: " + backend);
+        }
+    }
+
+    @Benchmark
+    public Class<?> callerClass() {
+        return call(depth);
+    }
+
+    private Class<?> call(int remaining) {
+        if ( remaining == 0 ) {
+            return Target.caller(lookup);
+        }
+        return call(remaining - 1);
+    }
+
+    private static final class Target {
+        private static Class<?> caller(CallerLookup lookup) {
+            return lookup.callerClass(Classes.class, Target.class);
+        }
+    }
+
+}
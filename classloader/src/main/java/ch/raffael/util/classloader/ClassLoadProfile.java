@@ -0,0 +1,198 @@
+package ch.raffael.util.classloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A recorded class loading profile: The classes loaded by a
+ * {@link DelegatingClassLoader} in the order they've been loaded, along with the URL of
+ * the class path element they've been loaded from or the exporter they've been imported
+ * from. Exporters are identified by their role in the class loader's configuration
+ * (e.g. <code>import:com/example</code>), which is stable across restarts unlike their
+ * names.
+ * <p/>
+ * The binary format consists of a header, a table of sources (class path URLs and
+ * exporter roles) and the list of entries, each referencing its source by index.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class ClassLoadProfile {
+
+    private static final int MAGIC = 0x434c5046;
+    private static final int VERSION = 2;
+
+    private static final byte LOCAL = 0;
+    private static final byte IMPORTED = 1;
+
+    private final long fingerprint;
+    private final List<Entry> entries;
+
+    ClassLoadProfile(long fingerprint, List<Entry> entries) {
+        this.fingerprint = fingerprint;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    @Override
+    public String toString() {
+        return "ClassLoadProfile{fingerprint=" + Long.toHexString(fingerprint) + ",entries=" + entries.size() + "}";
+    }
+
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    static ClassLoadProfile read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+                throw new IOException(file + ": Unknown format");
+            }
+            long fingerprint = in.readLong();
+            int sourceCount = in.readInt();
+            String[] sources = new String[sourceCount];
+            boolean[] local = new boolean[sourceCount];
+            for ( int i = 0; i < sourceCount; i++ ) {
+                local[i] = in.readByte() == LOCAL;
+                sources[i] = in.readUTF();
+            }
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<Entry>(count);
+            for ( int i = 0; i < count; i++ ) {
+                String className = in.readUTF();
+                int source = in.readInt();
+                if ( source < 0 ) {
+                    entries.add(new Entry(className, null, null));
+                }
+                else if ( source >= sourceCount ) {
+                    throw new IOException(file + ": Invalid source index " + source);
+                }
+                else if ( local[source] ) {
+                    entries.add(new Entry(className, sources[source], null));
+                }
+                else {
+                    entries.add(new Entry(className, null, sources[source]));
+                }
+            }
+            return new ClassLoadProfile(fingerprint, entries);
+        }
+        finally {
+            ClassPathIndex.closeQuietly(in);
+        }
+    }
+
+    void write(File file) throws IOException {
+        Map<String, Integer> localIndexes = new HashMap<String, Integer>();
+        Map<String, Integer> importedIndexes = new HashMap<String, Integer>();
+        List<String> sources = new ArrayList<String>();
+        List<Byte> types = new ArrayList<Byte>();
+        int[] refs = new int[entries.size()];
+        for ( int i = 0; i < refs.length; i++ ) {
+            Entry entry = entries.get(i);
+            if ( entry.source != null ) {
+                refs[i] = sourceIndex(localIndexes, entry.source, LOCAL, sources, types);
+            }
+            else if ( entry.exporter != null ) {
+                refs[i] = sourceIndex(importedIndexes, entry.exporter, IMPORTED, sources, types);
+            }
+            else {
+                refs[i] = -1;
+            }
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(sources.size());
+            for ( int i = 0; i < sources.size(); i++ ) {
+                out.writeByte(types.get(i));
+                out.writeUTF(sources.get(i));
+            }
+            out.writeInt(refs.length);
+            for ( int i = 0; i < refs.length; i++ ) {
+                out.writeUTF(entries.get(i).className);
+                out.writeInt(refs[i]);
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static int sourceIndex(Map<String, Integer> indexes, String source, byte type, List<String> sources, List<Byte> types) {
+        Integer index = indexes.get(source);
+        if ( index == null ) {
+            index = sources.size();
+            sources.add(source);
+            types.add(type);
+            indexes.put(source, index);
+        }
+        return index;
+    }
+
+    /**
+     * Calculate a 64 bit FNV-1a hash of the given string. Used to fingerprint the
+     * dispatcher configuration.
+     *
+     * @param str The string to hash.
+     *
+     * @return The hash.
+     */
+    static long fingerprint(String str) {
+        long hash = 0xcbf29ce484222325L;
+        for ( int i = 0; i < str.length(); i++ ) {
+            hash ^= str.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    static final class Entry {
+        private final String className;
+        private final String source;
+        private final String exporter;
+        Entry(String className, String source, String exporter) {
+            this.className = className;
+            this.source = source;
+            this.exporter = exporter;
+        }
+        @Override
+        public String toString() {
+            return "Entry{" + className + "," + (source != null ? source : exporter) + "}";
+        }
+        String getClassName() {
+            return className;
+        }
+        /**
+         * @return The URL (external form) of the class path element the class has been
+         *         loaded from, <code>null</code> if unknown or imported.
+         */
+        String getSource() {
+            return source;
+        }
+        /**
+         * @return The role of the exporter the class has been imported from,
+         *         <code>null</code> if loaded locally.
+         */
+        String getExporter() {
+            return exporter;
+        }
+    }
+
+}
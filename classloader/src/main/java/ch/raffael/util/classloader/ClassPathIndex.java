@@ -0,0 +1,757 @@
+package ch.raffael.util.classloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.security.CodeSigner;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An index mapping packages to the class path elements containing them. This allows
+ * {@link DelegatingClassLoader} to only look into the JARs or directories that may
+ * actually contain a class or resource instead of walking the whole class path.
+ * <p/>
+ * The index is built lazily on first use. If a cache file is given, the package lists
+ * of JAR files are persisted there and reused as long as the JAR's size and
+ * modification time didn't change. Class path elements that aren't local files can't be
+ * indexed; they're searched for every package.
+ * <p/>
+ * Optionally, JAR files can be {@link MappedJar memory mapped} instead of being read
+ * through {@link JarFile}.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class ClassPathIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(ClassPathIndex.class);
+
+    private static final int MAGIC = 0x43504958;
+    private static final int VERSION = 1;
+
+    /**
+     * <code>URLClassLoader.close()</code>, <code>null</code> on Java 6.
+     */
+    private static final Method closeFinder;
+
+    static {
+        Method close = null;
+        try {
+            close = URLClassLoader.class.getMethod("close");
+        }
+        catch ( NoSuchMethodException e ) {
+            // Java 6: URLClassLoader cannot be closed
+        }
+        closeFinder = close;
+    }
+
+    private final File cacheFile;
+    private final boolean mapJars;
+    private final List<Element> elements = new ArrayList<Element>();
+    private final Map<String, Element> elementsByUrl = new HashMap<String, Element>();
+    private volatile Map<String, Element[]> packages = null;
+    private volatile Element[] unindexed = new Element[0];
+
+    ClassPathIndex(URL[] urls, File cacheFile, boolean mapJars) {
+        this.cacheFile = cacheFile;
+        this.mapJars = mapJars;
+        for ( URL url : urls ) {
+            addElement(url);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ClassPathIndex{" + elements + "}";
+    }
+
+    /**
+     * Add a URL to the end of the class path.
+     *
+     * @param url The URL to add.
+     */
+    synchronized void add(URL url) {
+        Element element = addElement(url);
+        if ( packages != null ) {
+            element.scan();
+            publish();
+        }
+    }
+
+    /**
+     * Get the class path element for the given URL.
+     *
+     * @param url The URL (external form).
+     *
+     * @return The class path element or <code>null</code>.
+     */
+    synchronized Element element(String url) {
+        return elementsByUrl.get(url);
+    }
+
+    private Element addElement(URL url) {
+        Element element = new Element(url, elements.size(), mapJars);
+        elements.add(element);
+        if ( !elementsByUrl.containsKey(url.toExternalForm()) ) {
+            elementsByUrl.put(url.toExternalForm(), element);
+        }
+        return element;
+    }
+
+    /**
+     * Get the class path elements that may contain entries in the given package, in
+     * class path order.
+     *
+     * @param pkg The package name ('/'-notation, "" for the default package).
+     *
+     * @return The candidate elements. Don't modify the returned array.
+     */
+    Element[] candidates(String pkg) {
+        Map<String, Element[]> packages = this.packages;
+        if ( packages == null ) {
+            packages = build();
+        }
+        Element[] candidates = packages.get(pkg);
+        return candidates == null ? unindexed : candidates;
+    }
+
+    /**
+     * Close all JAR files opened by the index.
+     */
+    synchronized void close() {
+        for ( Element element : elements ) {
+            element.close();
+        }
+    }
+
+    private synchronized Map<String, Element[]> build() {
+        if ( packages != null ) {
+            return packages;
+        }
+        Map<String, CachedEntry> cache = readCache();
+        boolean dirty = false;
+        for ( Element element : elements ) {
+            CachedEntry cached = cache.get(element.url.toExternalForm());
+            if ( cached != null && element.matches(cached) ) {
+                element.lastModified = cached.lastModified;
+                element.length = cached.length;
+                element.packages = cached.packages;
+            }
+            else {
+                element.scan();
+                dirty |= element.cacheable();
+            }
+        }
+        if ( dirty || cache.size() != countCacheable() ) {
+            writeCache();
+        }
+        return publish();
+    }
+
+    private Map<String, Element[]> publish() {
+        Map<String, List<Element>> lists = new HashMap<String, List<Element>>();
+        List<Element> unindexed = new ArrayList<Element>();
+        for ( Element element : elements ) {
+            if ( element.packages == null ) {
+                unindexed.add(element);
+                // unindexed elements may contain anything, add them to all packages
+                for ( List<Element> list : lists.values() ) {
+                    list.add(element);
+                }
+            }
+            else {
+                for ( String pkg : element.packages ) {
+                    List<Element> list = lists.get(pkg);
+                    if ( list == null ) {
+                        list = new ArrayList<Element>(unindexed);
+                        lists.put(pkg, list);
+                    }
+                    list.add(element);
+                }
+            }
+        }
+        Map<String, Element[]> packages = new HashMap<String, Element[]>(lists.size() * 4 / 3 + 1);
+        for ( Map.Entry<String, List<Element>> entry : lists.entrySet() ) {
+            packages.put(entry.getKey(), entry.getValue().toArray(new Element[entry.getValue().size()]));
+        }
+        this.unindexed = unindexed.toArray(new Element[unindexed.size()]);
+        this.packages = packages;
+        return packages;
+    }
+
+    private int countCacheable() {
+        int count = 0;
+        for ( Element element : elements ) {
+            if ( element.cacheable() ) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Map<String, CachedEntry> readCache() {
+        Map<String, CachedEntry> cache = new HashMap<String, CachedEntry>();
+        if ( cacheFile == null || !cacheFile.isFile() ) {
+            return cache;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+                log.info("Ignoring class path index cache {}: Unknown format", cacheFile);
+                return cache;
+            }
+            int count = in.readInt();
+            for ( int i = 0; i < count; i++ ) {
+                String url = in.readUTF();
+                long lastModified = in.readLong();
+                long length = in.readLong();
+                int packageCount = in.readInt();
+                Set<String> packages = new HashSet<String>(packageCount * 4 / 3 + 1);
+                for ( int j = 0; j < packageCount; j++ ) {
+                    packages.add(in.readUTF());
+                }
+                cache.put(url, new CachedEntry(lastModified, length, packages));
+            }
+        }
+        catch ( IOException e ) {
+            log.warn("Error reading class path index cache {}", cacheFile, e);
+            cache.clear();
+        }
+        finally {
+            closeQuietly(in);
+        }
+        return cache;
+    }
+
+    private void writeCache() {
+        if ( cacheFile == null ) {
+            return;
+        }
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(countCacheable());
+            for ( Element element : elements ) {
+                if ( element.cacheable() ) {
+                    out.writeUTF(element.url.toExternalForm());
+                    out.writeLong(element.lastModified);
+                    out.writeLong(element.length);
+                    out.writeInt(element.packages.size());
+                    for ( String pkg : element.packages ) {
+                        out.writeUTF(pkg);
+                    }
+                }
+            }
+            out.close();
+            out = null;
+            if ( !tmp.renameTo(cacheFile) ) {
+                cacheFile.delete();
+                if ( !tmp.renameTo(cacheFile) ) {
+                    throw new IOException("Cannot rename " + tmp + " to " + cacheFile);
+                }
+            }
+        }
+        catch ( IOException e ) {
+            log.warn("Error writing class path index cache {}", cacheFile, e);
+        }
+        finally {
+            closeQuietly(out);
+            tmp.delete();
+        }
+    }
+
+    static byte[] readFully(InputStream in, int sizeHint) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(sizeHint > 0 ? sizeHint : 1024);
+        byte[] buf = new byte[4096];
+        int count;
+        while ( (count = in.read(buf)) >= 0 ) {
+            bytes.write(buf, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder buf = new StringBuilder(bytes.length * 2);
+        for ( byte b : bytes ) {
+            buf.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return buf.toString();
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        if ( closeable != null ) {
+            try {
+                closeable.close();
+            }
+            catch ( IOException e ) {
+                log.debug("Error closing {}", closeable, e);
+            }
+        }
+    }
+
+    private static String packageOf(String entryName) {
+        int pos = entryName.lastIndexOf('/');
+        return pos < 0 ? "" : entryName.substring(0, pos);
+    }
+
+    /**
+     * A class or resource read from a class path element.
+     */
+    static final class Resource {
+        private final Element element;
+        private final String name;
+        private final ByteBuffer buffer;
+        private final CodeSigner[] signers;
+        private Resource(Element element, String name, ByteBuffer buffer, CodeSigner[] signers) {
+            this.element = element;
+            this.name = name;
+            this.buffer = buffer;
+            this.signers = signers;
+        }
+        Element getElement() {
+            return element;
+        }
+        String getName() {
+            return name;
+        }
+        int getSize() {
+            return buffer.remaining();
+        }
+        /**
+         * @return The contents of the resource. This may be a direct buffer, if the
+         *         resource has been read from a mapped JAR.
+         */
+        ByteBuffer getBuffer() {
+            return buffer.duplicate();
+        }
+        /**
+         * @return The contents of the resource as byte array. Don't modify the array,
+         *         it may be shared.
+         */
+        byte[] getBytes() {
+            if ( buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.remaining() == buffer.array().length ) {
+                return buffer.array();
+            }
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return bytes;
+        }
+        CodeSigner[] getSigners() {
+            return signers;
+        }
+    }
+
+    /**
+     * Get the local file of a class path URL.
+     *
+     * @param url The URL.
+     *
+     * @return The file or <code>null</code>, if the URL doesn't denote a local file.
+     */
+    static File fileOf(URL url) {
+        if ( !"file".equals(url.getProtocol()) ) {
+            return null;
+        }
+        try {
+            return new File(url.toURI());
+        }
+        catch ( URISyntaxException e ) {
+            return new File(url.getPath());
+        }
+        catch ( IllegalArgumentException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * An element (JAR file, directory or some other URL) of the class path.
+     */
+    static final class Element {
+
+        private final URL url;
+        private final int position;
+        private final File file;
+        private final boolean jar;
+        private final boolean map;
+        private long lastModified;
+        private long length;
+        private volatile Set<String> packages;
+        private volatile JarFile jarFile;
+        private volatile MappedJar mappedJar;
+        private volatile boolean mapped = false;
+        private volatile URLClassLoader finder;
+        private volatile boolean closed = false;
+        private volatile boolean manifestLoaded = false;
+        private volatile Manifest manifest;
+        private volatile String contentHash;
+
+        private Element(URL url, int position, boolean map) {
+            this.url = url;
+            this.position = position;
+            this.file = fileOf(url);
+            this.jar = file != null && !file.isDirectory();
+            this.map = map;
+        }
+
+        @Override
+        public String toString() {
+            return url.toExternalForm();
+        }
+
+        URL getUrl() {
+            return url;
+        }
+
+        int getPosition() {
+            return position;
+        }
+
+        /**
+         * Get a hash of the contents of this JAR file. The hash is calculated on first
+         * use.
+         *
+         * @return The SHA-1 of the JAR file as hex string or <code>null</code>, if this
+         *         element is not a JAR file.
+         *
+         * @throws IOException If the JAR file cannot be read.
+         */
+        String getContentHash() throws IOException {
+            if ( !jar ) {
+                return null;
+            }
+            if ( contentHash == null ) {
+                synchronized ( this ) {
+                    if ( contentHash == null ) {
+                        MessageDigest digest;
+                        try {
+                            digest = MessageDigest.getInstance("SHA-1");
+                        }
+                        catch ( NoSuchAlgorithmException e ) {
+                            throw new IllegalStateException("SHA-1 not supported", e);
+                        }
+                        InputStream in = new FileInputStream(file);
+                        try {
+                            byte[] buf = new byte[8192];
+                            int count;
+                            while ( (count = in.read(buf)) >= 0 ) {
+                                digest.update(buf, 0, count);
+                            }
+                        }
+                        finally {
+                            closeQuietly(in);
+                        }
+                        contentHash = toHex(digest.digest());
+                    }
+                }
+            }
+            return contentHash;
+        }
+
+        private boolean cacheable() {
+            return jar && packages != null;
+        }
+
+        private boolean matches(CachedEntry cached) {
+            return jar && file.lastModified() == cached.lastModified && file.length() == cached.length;
+        }
+
+        private void scan() {
+            if ( file == null ) {
+                packages = null;
+            }
+            else if ( jar ) {
+                if ( !file.isFile() ) {
+                    packages = Collections.emptySet();
+                    return;
+                }
+                lastModified = file.lastModified();
+                length = file.length();
+                Set<String> packages = new HashSet<String>();
+                try {
+                    MappedJar mappedJar = mappedJar();
+                    if ( mappedJar != null ) {
+                        this.packages = mappedJar.getPackages();
+                        return;
+                    }
+                    Enumeration<JarEntry> entries = jarFile().entries();
+                    while ( entries.hasMoreElements() ) {
+                        JarEntry entry = entries.nextElement();
+                        if ( !entry.isDirectory() ) {
+                            packages.add(packageOf(entry.getName()));
+                        }
+                    }
+                    this.packages = packages;
+                }
+                catch ( IOException e ) {
+                    log.warn("Cannot index {}, searching it for all packages", url, e);
+                    this.packages = null;
+                }
+            }
+            else {
+                Set<String> packages = new HashSet<String>();
+                scanDirectory(file, "", packages);
+                this.packages = packages;
+            }
+        }
+
+        private void scanDirectory(File dir, String pkg, Set<String> packages) {
+            File[] files = dir.listFiles();
+            if ( files == null ) {
+                return;
+            }
+            for ( File f : files ) {
+                if ( f.isDirectory() ) {
+                    scanDirectory(f, pkg.length() == 0 ? f.getName() : pkg + "/" + f.getName(), packages);
+                }
+                else {
+                    packages.add(pkg);
+                }
+            }
+        }
+
+        /**
+         * Find a resource in this class path element.
+         *
+         * @param name The name of the resource.
+         *
+         * @return The URL of the resource or <code>null</code>.
+         */
+        URL findResource(String name) {
+            try {
+                if ( jar ) {
+                    MappedJar mappedJar = mappedJar();
+                    if ( mappedJar != null ? !mappedJar.contains(name) : jarFile().getJarEntry(name) == null ) {
+                        return null;
+                    }
+                    return new URL("jar:" + url.toExternalForm() + "!/" + name);
+                }
+                else if ( file != null ) {
+                    File f = new File(file, name.replace('/', File.separatorChar));
+                    return f.isFile() ? f.toURI().toURL() : null;
+                }
+                else {
+                    return finder().findResource(name);
+                }
+            }
+            catch ( MalformedURLException e ) {
+                log.warn("Cannot create URL for {} in {}", new Object[] { name, url, e });
+                return null;
+            }
+            catch ( IOException e ) {
+                log.warn("Cannot find {} in {}", new Object[] { name, url, e });
+                return null;
+            }
+        }
+
+        /**
+         * Read a class or resource from this class path element.
+         *
+         * @param name The name of the resource.
+         *
+         * @return The resource or <code>null</code> if this element doesn't contain
+         *         such a resource.
+         *
+         * @throws IOException If an I/O error occurs.
+         */
+        Resource read(String name) throws IOException {
+            if ( jar ) {
+                MappedJar mappedJar = mappedJar();
+                if ( mappedJar != null ) {
+                    ByteBuffer buffer = mappedJar.read(name);
+                    return buffer == null ? null : new Resource(this, name, buffer, null);
+                }
+                JarFile jarFile = jarFile();
+                JarEntry entry = jarFile.getJarEntry(name);
+                if ( entry == null ) {
+                    return null;
+                }
+                InputStream in = jarFile.getInputStream(entry);
+                try {
+                    byte[] bytes = readFully(in, (int)entry.getSize());
+                    // code signers are available only after reading the entry completely
+                    return new Resource(this, name, ByteBuffer.wrap(bytes), entry.getCodeSigners());
+                }
+                finally {
+                    closeQuietly(in);
+                }
+            }
+            else {
+                URL resource = findResource(name);
+                if ( resource == null ) {
+                    return null;
+                }
+                InputStream in = resource.openStream();
+                try {
+                    return new Resource(this, name, ByteBuffer.wrap(readFully(in, -1)), null);
+                }
+                finally {
+                    closeQuietly(in);
+                }
+            }
+        }
+
+        /**
+         * Get the manifest of this class path element.
+         *
+         * @return The manifest or <code>null</code>.
+         */
+        Manifest getManifest() {
+            if ( !manifestLoaded ) {
+                if ( jar ) {
+                    try {
+                        MappedJar mappedJar = mappedJar();
+                        manifest = mappedJar != null ? mappedJar.getManifest() : jarFile().getManifest();
+                    }
+                    catch ( IOException e ) {
+                        log.warn("Cannot read manifest of {}", url, e);
+                    }
+                }
+                manifestLoaded = true;
+            }
+            return manifest;
+        }
+
+        private JarFile jarFile() throws IOException {
+            JarFile jarFile = this.jarFile;
+            if ( jarFile == null ) {
+                synchronized ( this ) {
+                    jarFile = this.jarFile;
+                    if ( jarFile == null ) {
+                        if ( closed ) {
+                            throw new IOException("Class path element " + url + " has been closed");
+                        }
+                        jarFile = new JarFile(file);
+                        this.jarFile = jarFile;
+                    }
+                }
+            }
+            return jarFile;
+        }
+
+        /**
+         * Get the memory mapped JAR, if mapping is enabled and supported for this JAR.
+         *
+         * @return The mapped JAR or <code>null</code> to use a {@link JarFile}.
+         */
+        private MappedJar mappedJar() {
+            if ( !map ) {
+                return null;
+            }
+            if ( !mapped ) {
+                synchronized ( this ) {
+                    if ( !mapped ) {
+                        if ( closed ) {
+                            return null;
+                        }
+                        try {
+                            mappedJar = MappedJar.open(file);
+                            if ( mappedJar == null ) {
+                                log.debug("Cannot map {}, using JarFile", url);
+                            }
+                        }
+                        catch ( IOException e ) {
+                            log.warn("Cannot map {}, using JarFile", url, e);
+                        }
+                        mapped = true;
+                    }
+                }
+            }
+            return mappedJar;
+        }
+
+        private URLClassLoader finder() throws IOException {
+            URLClassLoader finder = this.finder;
+            if ( finder == null ) {
+                synchronized ( this ) {
+                    finder = this.finder;
+                    if ( finder == null ) {
+                        if ( closed ) {
+                            throw new IOException("Class path element " + url + " has been closed");
+                        }
+                        finder = new URLClassLoader(new URL[] { url }, null);
+                        this.finder = finder;
+                    }
+                }
+            }
+            return finder;
+        }
+
+        private synchronized void close() {
+            // don't reopen anything for lookups racing with close()
+            closed = true;
+            // mapped memory is released on garbage collection
+            mappedJar = null;
+            mapped = false;
+            if ( jarFile != null ) {
+                try {
+                    jarFile.close();
+                }
+                catch ( IOException e ) {
+                    log.debug("Error closing {}", jarFile.getName(), e);
+                }
+                jarFile = null;
+            }
+            if ( finder != null ) {
+                if ( closeFinder != null ) {
+                    try {
+                        closeFinder.invoke(finder);
+                    }
+                    catch ( IllegalAccessException e ) {
+                        log.debug("Error closing finder for {}", url, e);
+                    }
+                    catch ( InvocationTargetException e ) {
+                        log.debug("Error closing finder for {}", url, e.getTargetException());
+                    }
+                }
+                finder = null;
+            }
+        }
+
+    }
+
+    private static final class CachedEntry {
+        private final long lastModified;
+        private final long length;
+        private final Set<String> packages;
+        private CachedEntry(long lastModified, long length, Set<String> packages) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.packages = packages;
+        }
+    }
+
+}
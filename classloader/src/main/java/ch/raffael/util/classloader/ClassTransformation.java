@@ -0,0 +1,201 @@
+package ch.raffael.util.classloader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Applies the {@link ClassTransformer} chains configured for a
+ * {@link DelegatingClassLoader} and optionally caches the results on disk.
+ * <p/>
+ * Cached classes are stored in a sub-directory of the cache directory named after the
+ * hash of the JAR's contents and the chain's transformers, so a changed JAR or a changed
+ * chain simply doesn't hit the cache anymore. Only classes actually changed by the chain
+ * are cached, and only if all transformers succeeded. Classes loaded from directories
+ * aren't cached, neither are classes transformed by a chain containing a transformer
+ * that doesn't override {@link Object#toString()}, because its cache directory would be
+ * different on every run.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class ClassTransformation {
+
+    private static final Logger log = LoggerFactory.getLogger(ClassTransformation.class);
+
+    private final PackageMap<Chain> chains = new PackageMap<Chain>();
+    private final File cacheDirectory;
+
+    ClassTransformation(Map<String, List<ClassTransformer>> transformers, File cacheDirectory) {
+        for ( Map.Entry<String, List<ClassTransformer>> entry : transformers.entrySet() ) {
+            chains.put(entry.getKey(), new Chain(entry.getValue().toArray(new ClassTransformer[entry.getValue().size()])));
+        }
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    @Override
+    public String toString() {
+        return "ClassTransformation{" + chains + "}";
+    }
+
+    /**
+     * Transform the given class.
+     *
+     * @param loader   The class loader defining the class.
+     * @param name     The name of the class.
+     * @param resource The class file.
+     *
+     * @return The transformed bytecode or <code>null</code>, if no transformers apply to
+     *         the class or none of them changed it.
+     */
+    byte[] transform(ClassLoader loader, String name, ClassPathIndex.Resource resource) {
+        int pos = name.lastIndexOf('.');
+        if ( pos < 0 ) {
+            return null;
+        }
+        Chain chain = chains.lookup(name, pos, '.');
+        if ( chain == null ) {
+            return null;
+        }
+        File cacheFile = cacheFile(chain, resource);
+        if ( cacheFile != null && cacheFile.isFile() ) {
+            try {
+                InputStream in = new FileInputStream(cacheFile);
+                try {
+                    return ClassPathIndex.readFully(in, (int)cacheFile.length());
+                }
+                finally {
+                    ClassPathIndex.closeQuietly(in);
+                }
+            }
+            catch ( IOException e ) {
+                log.warn("Cannot read cached transformed class {}", cacheFile, e);
+            }
+        }
+        byte[] bytes = resource.getBytes();
+        boolean changed = false;
+        boolean failed = false;
+        for ( ClassTransformer transformer : chain.transformers ) {
+            try {
+                byte[] transformed = transformer.transform(loader, name, bytes);
+                if ( transformed != null ) {
+                    bytes = transformed;
+                    changed = true;
+                }
+            }
+            catch ( RuntimeException e ) {
+                log.error("Error transforming class {} using {}", new Object[] { name, transformer, e });
+                failed = true;
+            }
+        }
+        if ( !changed ) {
+            return null;
+        }
+        if ( cacheFile != null && !failed ) {
+            write(cacheFile, bytes);
+        }
+        return bytes;
+    }
+
+    private File cacheFile(Chain chain, ClassPathIndex.Resource resource) {
+        if ( cacheDirectory == null || chain.key == null ) {
+            return null;
+        }
+        String contentHash;
+        try {
+            contentHash = resource.getElement().getContentHash();
+        }
+        catch ( IOException e ) {
+            log.warn("Cannot hash {}, not caching transformed classes", resource.getElement(), e);
+            return null;
+        }
+        if ( contentHash == null ) {
+            return null;
+        }
+        return new File(new File(cacheDirectory, sha1(contentHash + "\n" + chain.key)), resource.getName());
+    }
+
+    private static void write(File file, byte[] bytes) {
+        File dir = file.getParentFile();
+        if ( !dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory() ) {
+            log.warn("Cannot create directory {}", dir);
+            return;
+        }
+        File tmp = new File(dir, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(bytes);
+            }
+            finally {
+                out.close();
+            }
+            if ( !tmp.renameTo(file) ) {
+                // probably written concurrently
+                if ( !tmp.delete() ) {
+                    tmp.deleteOnExit();
+                }
+            }
+        }
+        catch ( IOException e ) {
+            log.warn("Cannot cache transformed class {}", file, e);
+            if ( !tmp.delete() ) {
+                tmp.deleteOnExit();
+            }
+        }
+    }
+
+    private static String sha1(String str) {
+        try {
+            return ClassPathIndex.toHex(MessageDigest.getInstance("SHA-1").digest(str.getBytes("UTF-8")));
+        }
+        catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException("SHA-1 not supported", e);
+        }
+        catch ( UnsupportedEncodingException e ) {
+            throw new IllegalStateException("UTF-8 not supported", e);
+        }
+    }
+
+    private static final class Chain {
+        private final ClassTransformer[] transformers;
+        private final String key;
+        private Chain(ClassTransformer[] transformers) {
+            this.transformers = transformers;
+            StringBuilder key = new StringBuilder();
+            for ( ClassTransformer transformer : transformers ) {
+                String str = String.valueOf(transformer);
+                if ( isIdentityString(transformer, str) ) {
+                    log.warn("Transformer {} doesn't override toString(), not caching transformed classes", str);
+                    key = null;
+                    break;
+                }
+                key.append(transformer.getClass().getName()).append(':').append(str).append('\n');
+            }
+            this.key = key == null ? null : key.toString();
+        }
+        private static boolean isIdentityString(Object object, String str) {
+            return str.equals(object.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(object)));
+        }
+        @Override
+        public String toString() {
+            if ( key == null ) {
+                return Arrays.toString(transformers);
+            }
+            return key.replace('\n', ',');
+        }
+    }
+
+}
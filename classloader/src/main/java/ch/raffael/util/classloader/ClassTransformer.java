@@ -0,0 +1,31 @@
+package ch.raffael.util.classloader;
+
+/**
+ * Transforms the bytecode of classes loaded by a {@link DelegatingClassLoader} before
+ * they're defined. Transformers are registered per package or package hierarchy using
+ * {@link DelegatingClassLoader.Builder#transform(String, ClassTransformer...)}.
+ * <p/>
+ * If the transformed classes are cached on disk, the cache key includes the
+ * <code>toString()</code> of all transformers in the chain. Implementations should
+ * therefore return a string that identifies the transformer, its version and its
+ * configuration. The default implementation of {@link Object#toString()} includes the
+ * identity hash code and would change on every run, so chains containing transformers
+ * that don't override it aren't cached. Classes left unchanged by all transformers or
+ * transformed by a failing chain aren't cached either.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public interface ClassTransformer {
+
+    /**
+     * Transform a class.
+     *
+     * @param loader     The class loader defining the class.
+     * @param className  The name of the class ('.'-notation).
+     * @param classBytes The bytecode of the class. Don't modify this array.
+     *
+     * @return The transformed bytecode or <code>null</code> to leave the class unchanged.
+     */
+    byte[] transform(ClassLoader loader, String className, byte[] classBytes);
+
+}
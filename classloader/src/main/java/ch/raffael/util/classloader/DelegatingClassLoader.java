@@ -15,22 +15,37 @@
  */
 package ch.raffael.util.classloader;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.jar.Manifest;
 
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeDataSupport;
@@ -58,18 +73,46 @@ import static ch.raffael.util.classloader.Dispatcher.Type.*;
  *
  * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
  */
-public class DelegatingClassLoader extends URLClassLoader implements DelegatingClassLoaderMBean {
+public class DelegatingClassLoader extends URLClassLoader implements DelegatingClassLoaderMBean, Closeable {
 
     private static final Logger log = LoggerFactory.getLogger(DelegatingClassLoader.class);
 
-    private final String id = null;
+    public static final int DEFAULT_NEGATIVE_CACHE_SIZE = 1000;
+    public static final int DEFAULT_REPORT_CAPACITY = 10000;
+    public static final int DEFAULT_RESOURCE_CACHE_SIZE = 1000;
+
+    private final String id;
     private final PackageMap<Dispatcher> dispatchers = new PackageMap<Dispatcher>();
+    private final Map<String, ClassLoader> imports;
+    private final NegativeCache negativeCache;
+    private final ResourceCache resourceCache;
+    private final ClassPathIndex classPath;
+    private final boolean indexed;
+    private final ClassTransformation transformation;
+    private final List<String> profiledClassNames;
+    private volatile Map<String, ProfileRoute> profileRoutes;
+
+    private volatile boolean reporting = true;
+    private final AtomicReferenceArray<ClassLoaderReportEntry> report;
+    private final AtomicInteger reportIndex = new AtomicInteger();
+    private final AtomicInteger internalCount = new AtomicInteger();
+    private final AtomicInteger importedCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+    private final LoadStatistics statistics = new LoadStatistics();
 
-    private boolean reporting = true;
-    private final List<ClassLoaderReportEntry> report = new ArrayList<ClassLoaderReportEntry>();
-    private int internalCount = 0;
-    private int importedCount = 0;
-    private int failedCount = 0;
+    private final long leakGracePeriod;
+    private volatile ObjectName objectName = null;
+    private volatile boolean closed = false;
+
+    /**
+     * A method handle for <code>URLClassLoader.close()</code> and its
+     * <code>invokeWithArguments()</code> method, <code>null</code> on Java 6. A
+     * reflective call of <code>close()</code> would dispatch to our own implementation,
+     * hence the method handle. It's looked up reflectively like
+     * <code>registerAsParallelCapable()</code>, because we're compiling against Java 6.
+     */
+    private static final Object superClose;
+    private static final Method invokeSuperClose;
 
     static {
         Method registerMethod = null;
@@ -92,11 +135,76 @@ public class DelegatingClassLoader extends URLClassLoader implements DelegatingC
                 log.error("Error registering class loader as parallel capable. This may cause dead-locks while class-loading.", e);
             }
         }
+        Object closeHandle = null;
+        Method invokeMethod = null;
+        try {
+            Class<?> typeClass = Class.forName("java.lang.invoke.MethodType");
+            Object lookup = Class.forName("java.lang.invoke.MethodHandles").getMethod("lookup").invoke(null);
+            closeHandle = lookup.getClass().getMethod("findSpecial", Class.class, String.class, typeClass, Class.class).invoke(
+                    lookup, URLClassLoader.class, "close", typeClass.getMethod("methodType", Class.class).invoke(null, void.class), DelegatingClassLoader.class);
+            invokeMethod = Class.forName("java.lang.invoke.MethodHandle").getMethod("invokeWithArguments", Object[].class);
+        }
+        catch ( ClassNotFoundException e ) {
+            // Java 6: URLClassLoader cannot be closed
+        }
+        catch ( Exception e ) {
+            log.warn("Cannot look up URLClassLoader.close(); the URLClassLoader's JAR files won't be closed", e);
+            closeHandle = null;
+        }
+        superClose = closeHandle;
+        invokeSuperClose = invokeMethod;
     }
 
     public DelegatingClassLoader(URL[] classpath, ClassLoader parent, Map<String, Dispatcher> dispatchers) {
         super(classpath, parent);
+        this.id = null;
         this.dispatchers.putAll(dispatchers);
+        this.imports = Collections.emptyMap();
+        this.report = new AtomicReferenceArray<ClassLoaderReportEntry>(DEFAULT_REPORT_CAPACITY);
+        this.negativeCache = null;
+        this.resourceCache = null;
+        this.classPath = null;
+        this.indexed = false;
+        this.transformation = null;
+        this.leakGracePeriod = -1;
+        this.profiledClassNames = Collections.emptyList();
+        this.profileRoutes = null;
+    }
+
+    private DelegatingClassLoader(Builder builder, ClassLoader parent) {
+        super(builder.urls.toArray(new URL[builder.urls.size()]), parent);
+        this.id = builder.id;
+        this.dispatchers.putAll(builder.dispatchers);
+        this.imports = builder.imports;
+        this.negativeCache = builder.negativeCacheSize > 0 ? new NegativeCache(builder.negativeCacheSize) : null;
+        this.resourceCache = builder.resourceCacheSize > 0 ? new ResourceCache(builder.resourceCacheSize, builder.resourceSnapshotSize) : null;
+        this.indexed = builder.index;
+        this.classPath = builder.index || builder.profileFile != null ? new ClassPathIndex(getURLs(), builder.indexCacheFile, builder.mapJars) : null;
+        this.transformation = builder.transformers.isEmpty() ? null : new ClassTransformation(builder.transformers, builder.transformCacheDirectory);
+        this.reporting = builder.reporting;
+        this.report = new AtomicReferenceArray<ClassLoaderReportEntry>(builder.reportCapacity);
+        this.leakGracePeriod = builder.leakGracePeriod;
+        ClassLoadProfile profile = null;
+        if ( builder.profileFile != null && builder.profileFile.isFile() ) {
+            try {
+                profile = ClassLoadProfile.read(builder.profileFile);
+            }
+            catch ( IOException e ) {
+                log.warn("Cannot read class load profile {}", builder.profileFile, e);
+            }
+        }
+        if ( profile != null ) {
+            List<String> classNames = new ArrayList<String>(profile.getEntries().size());
+            for ( ClassLoadProfile.Entry entry : profile.getEntries() ) {
+                classNames.add(entry.getClassName());
+            }
+            this.profiledClassNames = Collections.unmodifiableList(classNames);
+            this.profileRoutes = resolveProfile(profile);
+        }
+        else {
+            this.profiledClassNames = Collections.emptyList();
+            this.profileRoutes = null;
+        }
     }
 
     public static Builder builder() {
@@ -124,31 +232,67 @@ public class DelegatingClassLoader extends URLClassLoader implements DelegatingC
      */
     @Override
     protected Class<?> findClass(String name) throws ClassNotFoundException {
+        if ( closed ) {
+            throw new ClassNotFoundException(name + " (class loader closed)");
+        }
+        if ( negativeCache == null ) {
+            return findClassUncached(name);
+        }
+        if ( negativeCache.contains(name, CLASS) ) {
+            throw new ClassNotFoundException(name + " (negative cache)");
+        }
+        NegativeCache.Epoch epoch = negativeCache.epoch();
+        try {
+            return findClassUncached(name);
+        }
+        catch ( ClassNotFoundException e ) {
+            negativeCache.add(name, CLASS, epoch);
+            throw e;
+        }
+    }
+
+    private Class<?> findClassUncached(String name) throws ClassNotFoundException {
+        long start = reporting ? System.nanoTime() : 0;
         int pos = name.lastIndexOf('.');
         if ( pos < 0 ) {
             try {
-                return super.findClass(name);
+                return report(findLocalClass(name), this, "", start);
             }
             catch ( ClassNotFoundException e ) {
-                throw report(name, e);
+                throw report(name, e, "", start);
             }
         }
         String pkg = name.substring(0, pos).replace('.', '/');
         String className = name.substring(pos + 1);
-        ClassLoader exporter = findLoader(pkg, className, CLASS);
+        Map<String, ProfileRoute> profileRoutes = this.profileRoutes;
+        ProfileRoute route = profileRoutes == null ? null : profileRoutes.get(name);
+        ClassLoader exporter;
+        if ( route != null ) {
+            exporter = route.exporter;
+        }
+        else {
+            exporter = findLoader(pkg, className, CLASS);
+        }
         if ( exporter == null ) {
             // there was an import or the package but no exporter found
-            throw report(name, new ClassNotFoundException(name + " (no exporting module)"));
+            throw report(name, new ClassNotFoundException(name + " (no exporting module)"), pkg, start);
         }
         else if ( exporter == this ) {
             if ( doLog() ) {
                 log("Loading class " + name + " internally");
             }
             try {
-                return report(super.findClass(name), this);
+                Class<?> clazz = null;
+                if ( route != null ) {
+                    clazz = findClass(name, route.element);
+                }
+                if ( clazz == null ) {
+                    clazz = findLocalClass(name);
+                }
+                return report(clazz, this, pkg, start);
             }
             catch ( ClassNotFoundException e ) {
-                throw report(name, e);
+                throw report(name, e, pkg, start);
             }
         }
         else {
@@ -156,10 +300,10 @@ public class DelegatingClassLoader extends URLClassLoader implements DelegatingC
                 log("Importing class " + name + " from " + exporter);
             }
             try {
-                return report(exporter.loadClass(name), exporter);
+                return report(exporter.loadClass(name), exporter, pkg, start);
             }
             catch ( ClassNotFoundException e ) {
-                throw report(name, new ClassNotFoundException(name + " (delegated to " + exporter + ")", e));
+                throw report(name, new ClassNotFoundException(name + " (delegated to " + exporter + ")", e), pkg, start);
             }
         }
     }
@@ -174,6 +318,10 @@ public class DelegatingClassLoader extends URLClassLoader implements DelegatingC
      *         <code>null</code>.
      */
     protected ClassLoader findLoader(String pkg, String name, Dispatcher.Type type) {
+        ClassLoader imported = imports.get(pkg);
+        if ( imported != null ) {
+            return imported;
+        }
         Dispatcher dispatcher = dispatchers.get(pkg);
         if ( dispatcher == null ) {
             return this;
@@ -196,9 +344,27 @@ public class DelegatingClassLoader extends URLClassLoader implements DelegatingC
      */
     @Override
     public URL findResource(String name) {
+        if ( closed ) {
+            return null;
+        }
+        if ( negativeCache == null ) {
+            return findResourceUncached(name);
+        }
+        if ( negativeCache.contains(name, RESOURCE) ) {
+            return null;
+        }
+        NegativeCache.Epoch epoch = negativeCache.epoch();
+        URL url = findResourceUncached(name);
+        if ( url == null ) {
+            negativeCache.add(name, RESOURCE, epoch);
+        }
+        return url;
+    }
+
+    private URL findResourceUncached(String name) {
         int pos = name.lastIndexOf('/');
         if ( pos < 0 ) {
-            return super.findResource(name);
+            return findLocalResource(name);
         }
         String pkg = name.substring(0, pos);
         String resName = name.substring(pos + 1);
@@ -210,7 +376,7 @@ public class DelegatingClassLoader extends URLClassLoader implements DelegatingC
             if ( doLog() ) {
                 log("Finding resource " + name + " locally");
             }
-            return super.findResource(name);
+            return findLocalResource(name);
         }
         else {
             if ( doLog() ) {
@@ -229,9 +395,80 @@ public class DelegatingClassLoader extends URLClassLoader implements DelegatingC
      */
     @Override
     public Enumeration<URL> findResources(String name) throws IOException {
+        if ( closed ) {
+            return Collections.enumeration(Collections.<URL>emptyList());
+        }
+        if ( negativeCache == null ) {
+            return findResourcesCached(name);
+        }
+        if ( negativeCache.contains(name, RESOURCE) ) {
+            return Collections.enumeration(Collections.<URL>emptyList());
+        }
+        NegativeCache.Epoch epoch = negativeCache.epoch();
+        Enumeration<URL> urls = findResourcesCached(name);
+        if ( urls == null || !urls.hasMoreElements() ) {
+            negativeCache.add(name, RESOURCE, epoch);
+        }
+        return urls;
+    }
+
+    /**
+     * Open a resource. If the class loader keeps the contents of small resources in
+     * memory (see {@link Builder#snapshotResources(int)}), they're read from memory.
+     *
+     * @param name The name of the resource.
+     * @return A stream reading the resource or <code>null</code>.
+     */
+    @Override
+    public InputStream getResourceAsStream(String name) {
+        if ( resourceCache == null || !resourceCache.isSnapshotting() || closed ) {
+            return super.getResourceAsStream(name);
+        }
+        URL url = getResource(name);
+        if ( url == null ) {
+            return null;
+        }
+        InputStream in = resourceCache.openSnapshot(name, url);
+        if ( in == null && resourceCache.get(name) == null ) {
+            try {
+                findResourcesCached(name);
+            }
+            catch ( IOException e ) {
+                log.debug("Error caching resource {}", name, e);
+            }
+            in = resourceCache.openSnapshot(name, url);
+        }
+        if ( in != null ) {
+            return in;
+        }
+        try {
+            return url.openStream();
+        }
+        catch ( IOException e ) {
+            return null;
+        }
+    }
+
+    private Enumeration<URL> findResourcesCached(String name) throws IOException {
+        if ( resourceCache == null ) {
+            return findResourcesUncached(name);
+        }
+        Enumeration<URL> urls = resourceCache.get(name);
+        if ( urls != null ) {
+            return urls;
+        }
+        ResourceCache.Epoch epoch = resourceCache.epoch();
+        urls = findResourcesUncached(name);
+        if ( urls == null ) {
+            return null;
+        }
+        return resourceCache.put(name, urls, epoch);
+    }
+
+    private Enumeration<URL> findResourcesUncached(String name) throws IOException {
         int pos = name.lastIndexOf('/');
         if ( pos < 0 ) {
-            return super.findResources(name);
+            return findLocalResources(name);
         }
         String pkg = name.substring(0, pos);
         String resName = name.substring(pos + 1);
@@ -243,7 +480,7 @@ public class DelegatingClassLoader extends URLClassLoader implements DelegatingC
             if ( doLog() ) {
                 log("Finding all resources " + name + " locally");
             }
-            return super.findResources(name);
+            return findLocalResources(name);
         }
         else {
             if ( doLog() ) {
@@ -253,6 +490,457 @@ public class DelegatingClassLoader extends URLClassLoader implements DelegatingC
         }
     }
 
+    /**
+     * Load a class from this class loader's own class path. If the class path is
+     * indexed, only the class path elements containing the class' package will be
+     * searched.
+     *
+     * @param name The name of the class.
+     *
+     * @return The class.
+     *
+     * @throws ClassNotFoundException If the class cannot be found in the class path.
+     */
+    protected Class<?> findLocalClass(String name) throws ClassNotFoundException {
+        if ( !indexed ) {
+            return super.findClass(name);
+        }
+        String path = name.replace('.', '/').concat(".class");
+        for ( ClassPathIndex.Element element : classPath.candidates(packageOf(path)) ) {
+            ClassPathIndex.Resource resource;
+            try {
+                resource = element.read(path);
+            }
+            catch ( IOException e ) {
+                throw new ClassNotFoundException(name, e);
+            }
+            if ( resource != null ) {
+                return defineClass(name, resource);
+            }
+        }
+        throw new ClassNotFoundException(name);
+    }
+
+    /**
+     * Load a class from the given class path element.
+     *
+     * @return The class or <code>null</code> if the element doesn't contain the class.
+     */
+    private Class<?> findClass(String name, ClassPathIndex.Element element) throws ClassNotFoundException {
+        ClassPathIndex.Resource resource;
+        try {
+            resource = element.read(name.replace('.', '/').concat(".class"));
+        }
+        catch ( IOException e ) {
+            throw new ClassNotFoundException(name, e);
+        }
+        return resource == null ? null : defineClass(name, resource);
+    }
+
+    private Class<?> defineClass(String name, ClassPathIndex.Resource resource) {
+        ClassPathIndex.Element element = resource.getElement();
+        int pos = name.lastIndexOf('.');
+        if ( pos >= 0 ) {
+            String packageName = name.substring(0, pos);
+            if ( getPackage(packageName) == null ) {
+                try {
+                    Manifest manifest = element.getManifest();
+                    if ( manifest != null ) {
+                        definePackage(packageName, manifest, element.getUrl());
+                    }
+                    else {
+                        definePackage(packageName, null, null, null, null, null, null, null);
+                    }
+                }
+                catch ( IllegalArgumentException e ) {
+                    // the package has been defined concurrently
+                }
+            }
+        }
+        if ( reporting ) {
+            statistics.read(packageOf(resource.getName()), resource.getSize());
+        }
+        CodeSource codeSource = new CodeSource(element.getUrl(), resource.getSigners());
+        if ( transformation != null ) {
+            byte[] bytes = transformation.transform(this, name, resource);
+            if ( bytes != null ) {
+                return defineClass(name, bytes, 0, bytes.length, codeSource);
+            }
+        }
+        return defineClass(name, resource.getBuffer(), codeSource);
+    }
+
+    /**
+     * Find a resource in this class loader's own class path.
+     *
+     * @param name The name of the resource.
+     *
+     * @return The URL of the resource or <code>null</code>.
+     */
+    protected URL findLocalResource(String name) {
+        if ( !indexed ) {
+            return super.findResource(name);
+        }
+        for ( ClassPathIndex.Element element : classPath.candidates(packageOf(name)) ) {
+            URL url = element.findResource(name);
+            if ( url != null ) {
+                return url;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find all resources with the given name in this class loader's own class path.
+     *
+     * @param name The name of the resource.
+     *
+     * @return The URLs of the resources.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    protected Enumeration<URL> findLocalResources(String name) throws IOException {
+        if ( !indexed ) {
+            return super.findResources(name);
+        }
+        List<URL> urls = new ArrayList<URL>();
+        for ( ClassPathIndex.Element element : classPath.candidates(packageOf(name)) ) {
+            URL url = element.findResource(name);
+            if ( url != null ) {
+                urls.add(url);
+            }
+        }
+        return Collections.enumeration(urls);
+    }
+
+    private static String packageOf(String path) {
+        int pos = path.lastIndexOf('/');
+        return pos < 0 ? "" : path.substring(0, pos);
+    }
+
+    /**
+     * Load the given classes in parallel using the given executor. The classes are
+     * loaded through this class loader, i.e. parent delegation and dispatchers apply as
+     * usual. Classes that cannot be loaded are skipped.
+     * <p/>
+     * A typical use is to record the {@link #getLoadOrder() load order} at shutdown and
+     * preload these classes on the next startup, moving class loading off the critical
+     * path.
+     *
+     * @param classNames The names of the classes to load.
+     * @param executor   The executor to use.
+     *
+     * @return A future providing the number of classes loaded successfully.
+     */
+    public Future<Integer> preload(Collection<String> classNames, Executor executor) {
+        return Preload.start(this, classNames, executor);
+    }
+
+    /**
+     * Get the names of the classes loaded by this class loader in the order they've been
+     * loaded. This is based on the report, so reporting must be enabled and only the
+     * classes still retained in the report will be returned.
+     *
+     * @return The names of the loaded classes.
+     */
+    public List<String> getLoadOrder() {
+        List<ClassLoaderReportEntry> entries = getReportEntries(0);
+        List<String> classNames = new ArrayList<String>(entries.size());
+        for ( ClassLoaderReportEntry entry : entries ) {
+            if ( entry.exception == null ) {
+                classNames.add(entry.className);
+            }
+        }
+        return classNames;
+    }
+
+    /**
+     * Map a package or package hierarchy to a dispatcher, replacing any dispatcher
+     * previously mapped to that name. See {@link PackageMap} for the syntax of the
+     * package name.
+     *
+     * @param packageName The package name ('/'-notation).
+     * @param dispatcher  The dispatcher.
+     */
+    public void setDispatcher(String packageName, Dispatcher dispatcher) {
+        dispatchers.put(checkPackageName(packageName), dispatcher);
+        invalidateCaches();
+    }
+
+    /**
+     * Remove the dispatcher mapped to the given package or package hierarchy.
+     *
+     * @param packageName The package name ('/'-notation).
+     *
+     * @return The dispatcher that has been removed or <code>null</code>.
+     */
+    public Dispatcher removeDispatcher(String packageName) {
+        Dispatcher dispatcher = dispatchers.remove(checkPackageName(packageName));
+        invalidateCaches();
+        return dispatcher;
+    }
+
+    /**
+     * Close this class loader. The MBean is unregistered, all JAR files are closed and
+     * no new classes or resources will be loaded. Classes that have already been loaded
+     * can still be used.
+     * <p/>
+     * If leak detection has been enabled using
+     * {@link Builder#leakDetection(long, TimeUnit)}, a warning will be logged, if this
+     * class loader hasn't been garbage collected after the grace period.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    public void close() throws IOException {
+        synchronized ( this ) {
+            if ( closed ) {
+                return;
+            }
+            closed = true;
+        }
+        ObjectName objectName = this.objectName;
+        if ( objectName != null ) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            catch ( Exception e ) {
+                log.warn("Cannot unregister MBean {}", objectName, e);
+            }
+            this.objectName = null;
+        }
+        invalidateCaches();
+        if ( classPath != null ) {
+            classPath.close();
+        }
+        closeURLClassLoader();
+        if ( leakGracePeriod >= 0 ) {
+            LeakDetector.watch(this, leakGracePeriod);
+        }
+    }
+
+    private void closeURLClassLoader() throws IOException {
+        if ( superClose == null ) {
+            return;
+        }
+        try {
+            invokeSuperClose.invoke(superClose, new Object[] { new Object[] { this } });
+        }
+        catch ( IllegalAccessException e ) {
+            throw new IllegalStateException("Cannot invoke URLClassLoader.close()", e);
+        }
+        catch ( InvocationTargetException e ) {
+            Throwable cause = e.getTargetException();
+            if ( cause instanceof IOException ) {
+                throw (IOException)cause;
+            }
+            else if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException)cause;
+            }
+            else if ( cause instanceof Error ) {
+                throw (Error)cause;
+            }
+            else {
+                throw new IOException("Error closing URLClassLoader", cause);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if this class loader has been closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Check whether this class loader imports classes from the given class loader.
+     */
+    boolean importsFrom(ClassLoader exporter) {
+        if ( imports.containsValue(exporter) ) {
+            return true;
+        }
+        for ( Dispatcher dispatcher : dispatchers.asMap().values() ) {
+            if ( dispatcher instanceof FixedDispatcher && ((FixedDispatcher)dispatcher).getClassLoader() == exporter ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Invalidate all cached lookup results. This is called automatically when the
+     * dispatchers or the class path change. Call this method manually if dispatchers
+     * change their decisions at runtime.
+     */
+    public void invalidateCaches() {
+        if ( negativeCache != null ) {
+            negativeCache.clear();
+        }
+        if ( resourceCache != null ) {
+            resourceCache.clear();
+        }
+        profileRoutes = null;
+    }
+
+    /**
+     * Write a profile of the classes loaded so far. The profile contains the classes in
+     * the order they've been loaded along with the class path element or exporter they
+     * have been loaded from. A class loader built using {@link Builder#profile(File)}
+     * uses it to route classes directly without consulting the dispatchers or searching
+     * the class path.
+     * <p/>
+     * The profile is based on the report, so reporting must be enabled and only the
+     * classes still retained in the report will be written.
+     *
+     * @param file The file to write the profile to.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    public void writeProfile(File file) throws IOException {
+        // the report only knows the exporters' names, map them to their roles
+        Map<String, String> roles = new HashMap<String, String>();
+        Map<String, ClassLoader> loaders = new HashMap<String, ClassLoader>();
+        for ( Map.Entry<String, ClassLoader> exporter : exportersByRole().entrySet() ) {
+            String name = String.valueOf(exporter.getValue());
+            if ( !loaders.containsKey(name) ) {
+                loaders.put(name, exporter.getValue());
+                roles.put(name, exporter.getKey());
+            }
+            else if ( loaders.get(name) != exporter.getValue() ) {
+                // ambiguous name, don't use it
+                roles.put(name, null);
+            }
+        }
+        List<ClassLoaderReportEntry> reportEntries = getReportEntries(0);
+        List<ClassLoadProfile.Entry> entries = new ArrayList<ClassLoadProfile.Entry>(reportEntries.size());
+        for ( ClassLoaderReportEntry entry : reportEntries ) {
+            if ( entry.exception != null ) {
+                continue;
+            }
+            if ( entry.loaderName == null ) {
+                entries.add(new ClassLoadProfile.Entry(entry.className, sourceOf(findLoadedClass(entry.className)), null));
+            }
+            else {
+                entries.add(new ClassLoadProfile.Entry(entry.className, null, roles.get(entry.loaderName)));
+            }
+        }
+        new ClassLoadProfile(profileFingerprint(), entries).write(file);
+    }
+
+    /**
+     * Get the names of the classes recorded in the profile this class loader has been
+     * built with, in the order they've been loaded. Pass this list to
+     * {@link #preload(Collection, Executor)} to warm up the class loader.
+     *
+     * @return The names of the profiled classes, an empty list if there's no profile.
+     */
+    public List<String> getProfiledClassNames() {
+        return profiledClassNames;
+    }
+
+    private Map<String, ProfileRoute> resolveProfile(ClassLoadProfile profile) {
+        if ( profile.getFingerprint() != profileFingerprint() ) {
+            log.info("{}: Dispatchers or class path changed since the class load profile was written, not using its routes", this);
+            return null;
+        }
+        Map<String, ClassLoader> exporters = exportersByRole();
+        Map<String, ProfileRoute> routes = new HashMap<String, ProfileRoute>(profile.getEntries().size() * 4 / 3 + 1);
+        for ( ClassLoadProfile.Entry entry : profile.getEntries() ) {
+            if ( entry.getSource() != null ) {
+                ClassPathIndex.Element element = classPath.element(entry.getSource());
+                if ( element != null ) {
+                    routes.put(entry.getClassName(), new ProfileRoute(this, element));
+                }
+            }
+            else if ( entry.getExporter() != null ) {
+                ClassLoader exporter = exporters.get(entry.getExporter());
+                if ( exporter != null ) {
+                    routes.put(entry.getClassName(), new ProfileRoute(exporter, null));
+                }
+            }
+        }
+        return routes;
+    }
+
+    /**
+     * Get the exporters that can be referenced by a profile, by their role in this class
+     * loader's configuration: <code>import:&lt;package&gt;</code> for imports,
+     * <code>dispatch:&lt;package&gt;</code> for fixed dispatchers.
+     */
+    private Map<String, ClassLoader> exportersByRole() {
+        Map<String, ClassLoader> exporters = new LinkedHashMap<String, ClassLoader>();
+        for ( Map.Entry<String, ClassLoader> entry : new TreeMap<String, ClassLoader>(imports).entrySet() ) {
+            exporters.put("import:" + entry.getKey(), entry.getValue());
+        }
+        for ( Map.Entry<String, Dispatcher> entry : new TreeMap<String, Dispatcher>(dispatchers.asMap()).entrySet() ) {
+            if ( entry.getValue() instanceof FixedDispatcher ) {
+                exporters.put("dispatch:" + entry.getKey(), ((FixedDispatcher)entry.getValue()).getClassLoader());
+            }
+        }
+        return exporters;
+    }
+
+    /**
+     * Fingerprint everything the routes of a profile depend on: The dispatchers and
+     * imports, and the URL, size and modification time of each class path element.
+     * Exporters are described by their class and URLs, not by their names, which
+     * usually differ between runs (random IDs, identity hashes).
+     */
+    private long profileFingerprint() {
+        StringBuilder buf = new StringBuilder();
+        for ( Map.Entry<String, Dispatcher> entry : new TreeMap<String, Dispatcher>(dispatchers.asMap()).entrySet() ) {
+            buf.append(entry.getKey()).append('=').append(entry.getValue().getClass().getName());
+            if ( entry.getValue() instanceof FixedDispatcher ) {
+                buf.append('(').append(describe(((FixedDispatcher)entry.getValue()).getClassLoader())).append(')');
+            }
+            buf.append(';');
+        }
+        for ( Map.Entry<String, ClassLoader> entry : new TreeMap<String, ClassLoader>(imports).entrySet() ) {
+            buf.append("import:").append(entry.getKey()).append('=').append(describe(entry.getValue())).append(';');
+        }
+        for ( URL url : getURLs() ) {
+            buf.append("cp:").append(url.toExternalForm());
+            File file = ClassPathIndex.fileOf(url);
+            if ( file != null ) {
+                buf.append(',').append(file.length()).append(',').append(file.lastModified());
+            }
+            buf.append(';');
+        }
+        return ClassLoadProfile.fingerprint(buf.toString());
+    }
+
+    private static String describe(ClassLoader loader) {
+        if ( loader == null ) {
+            return "<bootstrap>";
+        }
+        else if ( loader instanceof URLClassLoader ) {
+            return loader.getClass().getName() + Arrays.toString(((URLClassLoader)loader).getURLs());
+        }
+        else {
+            return loader.getClass().getName();
+        }
+    }
+
+    private static String sourceOf(Class<?> clazz) {
+        if ( clazz == null ) {
+            return null;
+        }
+        ProtectionDomain domain = clazz.getProtectionDomain();
+        if ( domain == null || domain.getCodeSource() == null || domain.getCodeSource().getLocation() == null ) {
+            return null;
+        }
+        return domain.getCodeSource().getLocation().toExternalForm();
+    }
+
+    @Override
+    protected void addURL(URL url) {
+        super.addURL(url);
+        if ( classPath != null ) {
+            classPath.add(url);
+        }
+        invalidateCaches();
+    }
+
     /**
      * Get the ID of this ClassLoader.
      *
@@ -273,77 +961,156 @@ public class DelegatingClassLoader extends URLClassLoader implements DelegatingC
     }
 
     public boolean isReporting() {
-        synchronized ( report ) {
-            return reporting;
-        }
+        return reporting;
     }
 
     public void setReporting(boolean reporting) {
-        synchronized ( report ) {
-            this.reporting = reporting;
-        }
+        this.reporting = reporting;
     }
 
     protected Class<?> report(Class<?> clazz, ClassLoader source) {
         if ( reporting ) {
-            synchronized ( report ) {
-                String loaderName;
-                if ( source == this ) {
-                    internalCount++;
-                    loaderName = null;
-                }
-                else {
-                    importedCount++;
-                    loaderName = source.toString();
-                }
-                ClassLoaderReportEntry entry = new ClassLoaderReportEntry(report.size(), clazz.getName(), loaderName, null);
-                report.add(entry);
+            String loaderName;
+            if ( source == this ) {
+                internalCount.incrementAndGet();
+                loaderName = null;
             }
+            else {
+                importedCount.incrementAndGet();
+                loaderName = source.toString();
+            }
+            addReportEntry(clazz.getName(), loaderName, null);
         }
         return clazz;
     }
 
-    protected ClassNotFoundException report(String name, ClassNotFoundException exception) {
+    private Class<?> report(Class<?> clazz, ClassLoader source, String pkg, long start) {
         if ( reporting ) {
-            synchronized ( report ) {
-                failedCount++;
-                ClassLoaderReportEntry entry = new ClassLoaderReportEntry(report.size(), name, null, exception);
-                report.add(entry);
+            long nanos = System.nanoTime() - start;
+            if ( source == this ) {
+                statistics.local(pkg, nanos);
             }
+            else {
+                statistics.imported(pkg, source, nanos);
+            }
+        }
+        return report(clazz, source);
+    }
+
+    private ClassNotFoundException report(String name, ClassNotFoundException exception, String pkg, long start) {
+        if ( reporting ) {
+            statistics.failed(pkg, System.nanoTime() - start);
+        }
+        return report(name, exception);
+    }
+
+    protected ClassNotFoundException report(String name, ClassNotFoundException exception) {
+        if ( reporting ) {
+            failedCount.incrementAndGet();
+            addReportEntry(name, null, exception);
         }
         return exception;
     }
 
+    /**
+     * Add an entry to the report. The report is a ring buffer, once it's full, the
+     * oldest entries will be overwritten.
+     */
+    private void addReportEntry(String className, String loaderName, Throwable exception) {
+        int index = reportIndex.getAndIncrement();
+        report.set(reportSlot(index), new ClassLoaderReportEntry(index, className, loaderName, exception));
+    }
+
+    private int reportSlot(int index) {
+        return (index & Integer.MAX_VALUE) % report.length();
+    }
+
+    /**
+     * Get the report entries still retained in the ring buffer, starting at the given
+     * index. Entries that have already been overwritten are skipped.
+     *
+     * @param startIndex The index of the first entry.
+     *
+     * @return The report entries in the order they've been reported.
+     */
+    protected List<ClassLoaderReportEntry> getReportEntries(int startIndex) {
+        int end = reportIndex.get();
+        int start = Math.max(Math.max(startIndex, 0), end - report.length());
+        List<ClassLoaderReportEntry> entries = new ArrayList<ClassLoaderReportEntry>(Math.max(end - start, 0));
+        for ( int i = start; i < end; i++ ) {
+            ClassLoaderReportEntry entry = report.get(reportSlot(i));
+            // the entry may not have been written yet or already been overwritten
+            if ( entry != null && entry.index == i ) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
     // JMX
 
     public int getLoadedCount() {
-        synchronized ( report ) {
-            return importedCount + internalCount;
-        }
+        return importedCount.get() + internalCount.get();
     }
 
     public int getImportedCount() {
-        synchronized ( report ) {
-            return importedCount;
-        }
+        return importedCount.get();
     }
 
     public int getFailedCount() {
-        synchronized ( report ) {
-            return failedCount;
-        }
+        return failedCount.get();
     }
 
     public int getInternalCount() {
-        synchronized ( report ) {
-            return internalCount;
-        }
+        return internalCount.get();
     }
 
     public int getTotalCount() {
-        synchronized ( report ) {
-            return importedCount + internalCount + failedCount;
-        }
+        return importedCount.get() + internalCount.get() + failedCount.get();
+    }
+
+    public long getLocalLoadNanos() {
+        return statistics.getLocalNanos();
+    }
+
+    public long getImportNanos() {
+        return statistics.getImportedNanos();
+    }
+
+    public long getFailedNanos() {
+        return statistics.getFailedNanos();
+    }
+
+    public long getBytesRead() {
+        return statistics.getBytesRead();
+    }
+
+    public TabularData getLoadTimeHistogram() throws OpenDataException {
+        return statistics.histogramData();
+    }
+
+    public TabularData getLoadTimeBreakdown() throws OpenDataException {
+        return statistics.breakdownData();
+    }
+
+    public void resetStatistics() {
+        statistics.reset();
+    }
+
+    public long getNegativeCacheHitCount() {
+        return negativeCache == null ? 0 : negativeCache.getHitCount();
+    }
+
+    public long getNegativeCacheMissCount() {
+        return negativeCache == null ? 0 : negativeCache.getMissCount();
+    }
+
+    public int getNegativeCacheSize() {
+        return negativeCache == null ? 0 : negativeCache.size();
+    }
+
+    public void clearNegativeCache() {
+        invalidateCaches();
     }
 
     public TabularData getReport(int type, int startIndex) throws OpenDataException {
@@ -356,48 +1123,71 @@ public class DelegatingClassLoader extends URLClassLoader implements DelegatingC
                                                  rowType,
                                                  new String[] { "Index" });
         TabularDataSupport result = new TabularDataSupport(resultType);
-        synchronized ( report ) {
-            List<ClassLoaderReportEntry> r = report;
-            if ( startIndex > 0 ) {
-                r = report.subList(startIndex, report.size());
-            }
-            for ( ClassLoaderReportEntry entry : r ) {
-                boolean doReport;
-                switch ( type ) {
-                    case REPORT_ALL:
-                        doReport = true;
-                        break;
-                    case REPORT_INTERNAL:
-                        doReport = entry.exception == null && entry.loaderName == null;
-                        break;
-                    case REPORT_IMPORTED:
-                        doReport = entry.exception == null && entry.loaderName != null;
-                        break;
-                    case REPORT_FAILED:
-                        doReport = entry.exception != null;
-                        break;
-                    default:
-                        throw new IllegalArgumentException("Unknown report type (supportet reports: 0=all, 1=internal, 2=imported, 3=failed");
-                }
-                if ( doReport ) {
-                    String error = null;
-                    if ( entry.exception != null ) {
-                        StringWriter str = new StringWriter();
-                        PrintWriter print = new PrintWriter(str);
-                        entry.exception.printStackTrace(print);
-                        print.flush();
-                        error = str.toString();
-                    }
-                    result.put(new CompositeDataSupport(
-                            rowType,
-                            new String[] { "Index", "Timestamp", "Class", "Loader", "Error" },
-                            new Object[] { entry.index, entry.timestamp, entry.className, entry.loaderName, error }));
+        for ( ClassLoaderReportEntry entry : getReportEntries(startIndex) ) {
+            boolean doReport;
+            switch ( type ) {
+                case REPORT_ALL:
+                    doReport = true;
+                    break;
+                case REPORT_INTERNAL:
+                    doReport = entry.exception == null && entry.loaderName == null;
+                    break;
+                case REPORT_IMPORTED:
+                    doReport = entry.exception == null && entry.loaderName != null;
+                    break;
+                case REPORT_FAILED:
+                    doReport = entry.exception != null;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown report type (supportet reports: 0=all, 1=internal, 2=imported, 3=failed");
+            }
+            if ( doReport ) {
+                String error = null;
+                if ( entry.exception != null ) {
+                    StringWriter str = new StringWriter();
+                    PrintWriter print = new PrintWriter(str);
+                    entry.exception.printStackTrace(print);
+                    print.flush();
+                    error = str.toString();
                 }
+                result.put(new CompositeDataSupport(
+                        rowType,
+                        new String[] { "Index", "Timestamp", "Class", "Loader", "Error" },
+                        new Object[] { entry.index, entry.timestamp, entry.className, entry.loaderName, error }));
             }
         }
         return result;
     }
 
+    static String checkPackageName(String packageName) {
+        boolean start = true;
+        for ( int i = 0; i < packageName.length(); i++ ) {
+            char c = packageName.charAt(i);
+            if ( start ) {
+                if ( !Character.isJavaIdentifierStart(c) ) {
+                    throw new IllegalArgumentException("Invalid package name: " + packageName);
+                }
+                start = false;
+            }
+            else if ( c == '/' || c == '.' ) {
+                start = true;
+            }
+            else if ( !Character.isJavaIdentifierPart(c) ) {
+                throw new IllegalArgumentException("Invalid package name: " + packageName);
+            }
+        }
+        return packageName.replace('.', '/');
+    }
+
+    private static final class ProfileRoute {
+        private final ClassLoader exporter;
+        private final ClassPathIndex.Element element;
+        private ProfileRoute(ClassLoader exporter, ClassPathIndex.Element element) {
+            this.exporter = exporter;
+            this.element = element;
+        }
+    }
+
     protected static class ClassLoaderReportEntry {
         private final int index;
         private final long timestamp;
@@ -421,7 +1211,19 @@ public class DelegatingClassLoader extends URLClassLoader implements DelegatingC
         private final List<URL> urls = new ArrayList<URL>();
         private String id = null;
         private boolean reporting = Boolean.getBoolean("ch.raffael.util.classloader.reportingByDefault");
+        private int reportCapacity = DEFAULT_REPORT_CAPACITY;
         private boolean mbean = false;
+        private int negativeCacheSize = 0;
+        private int resourceCacheSize = 0;
+        private int resourceSnapshotSize = 0;
+        private boolean index = false;
+        private File indexCacheFile = null;
+        private File profileFile = null;
+        private boolean mapJars = false;
+        private final Map<String, List<ClassTransformer>> transformers = new LinkedHashMap<String, List<ClassTransformer>>();
+        private File transformCacheDirectory = null;
+        private Map<String, ClassLoader> imports = Collections.emptyMap();
+        private long leakGracePeriod = -1;
 
         private Builder() {
         }
@@ -475,6 +1277,22 @@ public class DelegatingClassLoader extends URLClassLoader implements DelegatingC
             return this;
         }
 
+        /**
+         * Set the number of entries retained in the report. Once the report is full, the
+         * oldest entries will be overwritten.
+         *
+         * @param capacity The capacity of the report.
+         *
+         * @return <code>this</code>.
+         */
+        public Builder reportCapacity(int capacity) {
+            if ( capacity <= 0 ) {
+                throw new IllegalArgumentException("Report capacity must be > 0");
+            }
+            this.reportCapacity = capacity;
+            return this;
+        }
+
         public Builder mbean() {
             this.mbean = true;
             this.reporting = true;
@@ -489,28 +1307,248 @@ public class DelegatingClassLoader extends URLClassLoader implements DelegatingC
             return this;
         }
 
+        /**
+         * Enable the negative lookup cache with the default size. Classes and resources
+         * that couldn't be found will be remembered, so subsequent lookups fail fast.
+         * Only use this, if the dispatchers always make the same decisions for the same
+         * names, or call {@link DelegatingClassLoader#invalidateCaches()} when they
+         * change.
+         *
+         * @return <code>this</code>.
+         */
+        public Builder negativeCache() {
+            return negativeCache(DEFAULT_NEGATIVE_CACHE_SIZE);
+        }
+
+        /**
+         * Set the maximum size of the negative lookup cache, <code>0</code> to disable
+         * it.
+         *
+         * @param maxSize The maximum number of names to cache.
+         *
+         * @return <code>this</code>.
+         *
+         * @see #negativeCache()
+         */
+        public Builder negativeCache(int maxSize) {
+            if ( maxSize < 0 ) {
+                throw new IllegalArgumentException("Negative cache size must be >= 0");
+            }
+            this.negativeCacheSize = maxSize;
+            return this;
+        }
+
+        /**
+         * Enable the resource cache with the default size. The URLs found by
+         * {@link DelegatingClassLoader#findResources(String)} will be remembered per
+         * resource name, which speeds up repeated lookups of the same names, e.g. by
+         * {@link java.util.ServiceLoader}. Only use this, if the dispatchers always make
+         * the same decisions for the same names, or call
+         * {@link DelegatingClassLoader#invalidateCaches()} when they change.
+         *
+         * @return <code>this</code>.
+         */
+        public Builder resourceCache() {
+            return resourceCache(DEFAULT_RESOURCE_CACHE_SIZE);
+        }
+
+        /**
+         * Set the maximum size of the resource cache, <code>0</code> to disable it.
+         *
+         * @param maxSize The maximum number of resource names to cache.
+         *
+         * @return <code>this</code>.
+         *
+         * @see #resourceCache()
+         */
+        public Builder resourceCache(int maxSize) {
+            if ( maxSize < 0 ) {
+                throw new IllegalArgumentException("Resource cache size must be >= 0");
+            }
+            this.resourceCacheSize = maxSize;
+            return this;
+        }
+
+        /**
+         * Keep the contents of cached resources up to the given size in memory, so
+         * reading them using {@link DelegatingClassLoader#getResourceAsStream(String)}
+         * doesn't open the JAR files again. The URLs returned by
+         * <code>getResource()</code> and <code>getResources()</code> are still the
+         * original ones. This enables the resource cache with the default size, if it
+         * isn't enabled yet.
+         *
+         * @param maxBytes The maximum size of a resource to keep in memory,
+         *                 <code>0</code> to not keep any resources in memory.
+         *
+         * @return <code>this</code>.
+         *
+         * @see #resourceCache()
+         */
+        public Builder snapshotResources(int maxBytes) {
+            if ( maxBytes < 0 ) {
+                throw new IllegalArgumentException("Snapshot size must be >= 0");
+            }
+            this.resourceSnapshotSize = maxBytes;
+            if ( maxBytes > 0 && resourceCacheSize == 0 ) {
+                resourceCacheSize = DEFAULT_RESOURCE_CACHE_SIZE;
+            }
+            return this;
+        }
+
+        /**
+         * Index the class path by package. Local lookups will then only search the JARs
+         * and directories that actually contain the requested package. The index is
+         * built on first use.
+         *
+         * @return <code>this</code>.
+         */
+        public Builder index() {
+            this.index = true;
+            return this;
+        }
+
+        /**
+         * Index the class path by package and persist the index of JAR files to the
+         * given file. JARs whose size and modification time didn't change since the
+         * index has been written won't be scanned again.
+         *
+         * @param cacheFile The file to persist the index to, <code>null</code> to not
+         *                  persist the index.
+         *
+         * @return <code>this</code>.
+         *
+         * @see #index()
+         */
+        public Builder index(File cacheFile) {
+            this.index = true;
+            this.indexCacheFile = cacheFile;
+            return this;
+        }
+
+        /**
+         * Use a class load profile written by
+         * {@link DelegatingClassLoader#writeProfile(File)} to route classes directly to
+         * the class path element or exporter they've been loaded from before. The
+         * profile is ignored if the file doesn't exist. The routes are ignored if the
+         * dispatchers, the imports or the class path changed since the profile has been
+         * written. Class path elements are compared by URL, size and modification time,
+         * so changes within directories (except their direct children) aren't detected.
+         * <p/>
+         * Exporters are identified by their role (the package they're imported or
+         * dispatched for) and described by their class and URLs, so the IDs of the
+         * class loaders don't need to be stable across restarts.
+         * <p/>
+         * Only use this, if the dispatchers always make the same decisions for the same
+         * names.
+         *
+         * @param profileFile The profile.
+         *
+         * @return <code>this</code>.
+         */
+        public Builder profile(File profileFile) {
+            this.profileFile = profileFile;
+            return this;
+        }
+
+        /**
+         * Memory map the JAR files of the class path instead of reading them through
+         * {@link java.util.jar.JarFile}. Class bytes of uncompressed entries are passed
+         * to <code>defineClass()</code> without copying, the central directory of each
+         * JAR is parsed only once into a compact index. Signed JARs and ZIP64 files are
+         * still read using <code>JarFile</code>.
+         * <p/>
+         * This implies {@link #index()}.
+         *
+         * @return <code>this</code>.
+         */
+        public Builder mapJars() {
+            this.mapJars = true;
+            this.index = true;
+            return this;
+        }
+
+        /**
+         * Transform the classes in the given package or package hierarchy before they're
+         * defined. Calling this multiple times for the same package appends the
+         * transformers to the chain. Only the chain of the deepest matching package is
+         * applied.
+         * <p/>
+         * This implies {@link #index()}.
+         *
+         * @param packageName  The package name ('/'-notation, end with '/' to include
+         *                     sub-packages).
+         * @param transformers The transformers to apply in the given order.
+         *
+         * @return <code>this</code>.
+         *
+         * @see PackageMap
+         */
+        public Builder transform(String packageName, ClassTransformer... transformers) {
+            String key = checkPackageName(packageName);
+            List<ClassTransformer> chain = this.transformers.get(key);
+            if ( chain == null ) {
+                chain = new ArrayList<ClassTransformer>();
+                this.transformers.put(key, chain);
+            }
+            chain.addAll(Arrays.asList(transformers));
+            this.index = true;
+            return this;
+        }
+
+        /**
+         * Cache transformed classes from JAR files in the given directory, so they don't
+         * need to be transformed again on the next start.
+         *
+         * @param directory The cache directory, <code>null</code> to disable the cache.
+         *
+         * @return <code>this</code>.
+         *
+         * @see ClassTransformer
+         */
+        public Builder transformCache(File directory) {
+            this.transformCacheDirectory = directory;
+            return this;
+        }
+
+        /**
+         * Check whether the class loader actually gets garbage collected after it has
+         * been {@link DelegatingClassLoader#close() closed}. If it's still reachable
+         * after the given grace period, a warning is logged listing the roots that still
+         * retain it, as far as they can be determined (threads, MBeans and other
+         * <code>DelegatingClassLoader</code>s importing from it).
+         *
+         * @param gracePeriod The grace period.
+         * @param unit        The time unit of the grace period.
+         *
+         * @return <code>this</code>.
+         */
+        public Builder leakDetection(long gracePeriod, TimeUnit unit) {
+            if ( gracePeriod < 0 ) {
+                throw new IllegalArgumentException("Grace period must be >= 0");
+            }
+            this.leakGracePeriod = unit.toMillis(gracePeriod);
+            return this;
+        }
+
+        /**
+         * Set the precomputed import table. Used by {@link ModuleGraph}.
+         *
+         * @param imports The exporters by package ('/'-notation), the map must not be
+         *                modified afterwards.
+         *
+         * @return <code>this</code>.
+         */
+        Builder imports(Map<String, ClassLoader> imports) {
+            this.imports = imports;
+            return this;
+        }
+
         public Builder dispatch(String packageName, ClassLoader classLoader) {
             return dispatch(packageName, new FixedDispatcher(classLoader));
         }
 
         public Builder dispatch(String packageName, Dispatcher dispatcher) {
-            boolean start = true;
-            for ( int i = 0; i < packageName.length(); i++ ) {
-                char c = packageName.charAt(i);
-                if ( start ) {
-                    if ( !Character.isJavaIdentifierStart(c) ) {
-                        throw new IllegalArgumentException("Invalid package name: " + packageName);
-                    }
-                    start = false;
-                }
-                else if ( c == '/' || c == '.' ) {
-                    start = true;
-                }
-                else if ( !Character.isJavaIdentifierPart(c) ) {
-                    throw new IllegalArgumentException("Invalid package name: " + packageName);
-                }
-            }
-            dispatchers.put(packageName.replace('.', '/'), dispatcher);
+            dispatchers.put(checkPackageName(packageName), dispatcher);
             return this;
         }
 
@@ -518,9 +1556,7 @@ public class DelegatingClassLoader extends URLClassLoader implements DelegatingC
             if ( id == null ) {
                 id = UUID.randomUUID().toString();
             }
-            DelegatingClassLoader classLoader = new DelegatingClassLoader(
-                    urls.toArray(new URL[urls.size()]), parent, dispatchers);
-            classLoader.setReporting(reporting);
+            DelegatingClassLoader classLoader = new DelegatingClassLoader(this, parent);
             if ( mbean ) {
                 String name = "ch.raffael.util:type=DelegatingClassLoader,id=";
                 boolean quote = false;
@@ -538,12 +1574,15 @@ public class DelegatingClassLoader extends URLClassLoader implements DelegatingC
                     name += id;
                 }
                 try {
-                    ManagementFactory.getPlatformMBeanServer().registerMBean(classLoader, new ObjectName(name));
+                    ObjectName objectName = new ObjectName(name);
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(classLoader, objectName);
+                    classLoader.objectName = objectName;
                 }
                 catch ( Exception e ) {
                     log.warn("Cannot register MBean {}", name, e);
                 }
             }
+            LeakDetector.register(classLoader);
             return classLoader;
         }
 
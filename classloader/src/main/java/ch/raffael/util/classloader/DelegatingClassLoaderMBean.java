@@ -39,6 +39,47 @@ public interface DelegatingClassLoaderMBean {
 
     int getTotalCount();
 
+    /**
+     * @return The total time spent loading classes locally in nanoseconds.
+     */
+    long getLocalLoadNanos();
+
+    /**
+     * @return The total time spent importing classes from exporters in nanoseconds.
+     */
+    long getImportNanos();
+
+    /**
+     * @return The total time spent on failed class loads in nanoseconds.
+     */
+    long getFailedNanos();
+
+    /**
+     * @return The number of class bytes read from the class path. Only tracked for
+     *         indexed class paths.
+     */
+    long getBytesRead();
+
+    /**
+     * @return A histogram of the load times of local, imported and failed class loads.
+     */
+    TabularData getLoadTimeHistogram() throws OpenDataException;
+
+    /**
+     * @return Load times and bytes read by package and by exporter.
+     */
+    TabularData getLoadTimeBreakdown() throws OpenDataException;
+
+    void resetStatistics();
+
+    long getNegativeCacheHitCount();
+
+    long getNegativeCacheMissCount();
+
+    int getNegativeCacheSize();
+
+    void clearNegativeCache();
+
     TabularData getReport(int type, int startIndex) throws OpenDataException;
 
 }
@@ -1,11 +1,17 @@
 package ch.raffael.util.classloader;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 /**
@@ -17,14 +23,50 @@ import java.util.Map;
  * To include/exclude exact packages specify package names without trailing slash
  * (<code>foo/bar</code>), end the package name with a slash to also include/exclude
  * sub-packages (<code>foo/bar/</code>).
+ * <p/>
+ * The class loader is registered as parallel capable. The isolation decision is cached
+ * per package and delegated classes are loaded from the parent directly, bypassing the
+ * per-class locks of {@link ClassLoader#loadClass(String, boolean)}. So loading a class
+ * that has already been loaded doesn't allocate any memory in this class loader (the
+ * parent might, though). If the parent is the bootstrap class loader, delegated classes
+ * are loaded using <code>super.loadClass()</code>, which does allocate on Java 7 and
+ * higher.
  *
  * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
  * @see PackageMap
  */
 public class IsolatingClassLoader extends ClassLoader {
 
+    private static final Logger log = LoggerFactory.getLogger(IsolatingClassLoader.class);
+
+    private static final int MAX_CACHED_DECISIONS = 4096;
+
+    static {
+        Method registerMethod = null;
+        try {
+            registerMethod = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+        }
+        catch ( NoSuchMethodException e ) {
+            log.warn("Cannot register class loader as parallel capable. It's strongly recommended to use JDK7 or higher to avoid dead-locks.");
+        }
+        if ( registerMethod != null ) {
+            try {
+                registerMethod.setAccessible(true);
+                Boolean result = (Boolean)registerMethod.invoke(null);
+                if ( !result ) {
+                    log.error("Could not register class loader as parallel capable. This may cause dead-locks while class-loading.");
+                }
+            }
+            catch ( Exception e ) {
+                log.error("Error registering class loader as parallel capable. This may cause dead-locks while class-loading.", e);
+            }
+        }
+    }
+
     private final PackageMap<Boolean> isolation = new PackageMap<Boolean>();
     private final boolean excludeByDefault;
+    private final DecisionCache decisions = new DecisionCache(MAX_CACHED_DECISIONS);
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
 
     public IsolatingClassLoader(ClassLoader parent, Map<String, Boolean> isolation) {
         this(parent, isolation, false);
@@ -52,17 +94,36 @@ public class IsolatingClassLoader extends ClassLoader {
 
     @Override
     protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
-        if ( isolation.get(packageName(name.replace('.', '/')), !excludeByDefault) ) {
-            return super.loadClass(name, resolve);
+        Class<?> clazz = findLoadedClass(name);
+        if ( clazz == null && delegate(name, '.') ) {
+            ClassLoader parent = getParent();
+            if ( parent == null ) {
+                return super.loadClass(name, resolve);
+            }
+            try {
+                clazz = parent.loadClass(name);
+            }
+            catch ( ClassNotFoundException e ) {
+                // try ourselves, like ClassLoader.loadClass() does
+            }
         }
-        else {
-            return findClass(name);
+        if ( clazz == null ) {
+            synchronized ( lock(name) ) {
+                clazz = findLoadedClass(name);
+                if ( clazz == null ) {
+                    clazz = findClass(name);
+                }
+            }
+        }
+        if ( resolve ) {
+            resolveClass(clazz);
         }
+        return clazz;
     }
 
     @Override
     public URL getResource(String name) {
-        if ( isolation.get(packageName(name), !excludeByDefault) ) {
+        if ( delegate(name, '/') ) {
             return super.getResource(name);
         }
         else {
@@ -72,7 +133,7 @@ public class IsolatingClassLoader extends ClassLoader {
 
     @Override
     public Enumeration<URL> getResources(String name) throws IOException {
-        if ( isolation.get(packageName(name), !excludeByDefault) ) {
+        if ( delegate(name, '/') ) {
             return super.getResources(name);
         }
         else {
@@ -80,12 +141,149 @@ public class IsolatingClassLoader extends ClassLoader {
         }
     }
 
-    private String packageName(String name) {
-        int pos = name.lastIndexOf('/');
-        if ( pos < 0 ) {
-            return null;
+    /**
+     * Decide whether loading the given class or resource should be delegated to the
+     * parent class loader.
+     *
+     * @param name      The name of the class or resource.
+     * @param separator The package separator used in <code>name</code> ('.' for classes,
+     *                  '/' for resources).
+     *
+     * @return <code>true</code> to delegate to the parent.
+     */
+    private boolean delegate(String name, char separator) {
+        int end = name.lastIndexOf(separator);
+        if ( end < 0 ) {
+            return !excludeByDefault;
+        }
+        int decision = decisions.get(name, end);
+        if ( decision == DecisionCache.UNKNOWN ) {
+            Boolean value = isolation.lookup(name, end, separator);
+            boolean delegate = value == null ? !excludeByDefault : value;
+            decisions.put(name, end, delegate);
+            return delegate;
+        }
+        return decision == DecisionCache.DELEGATE;
+    }
+
+    private Object lock(String name) {
+        Object lock = locks.get(name);
+        if ( lock == null ) {
+            lock = new Object();
+            Object prev = locks.putIfAbsent(name, lock);
+            if ( prev != null ) {
+                lock = prev;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * A bounded copy-on-write cache of the isolation decisions per package. Lookups are
+     * lock-free and compare the package part of the name in place, '.' and '/' are
+     * treated as equal. When the cache is full, new decisions aren't cached anymore and
+     * misses don't take the lock.
+     */
+    private static final class DecisionCache {
+
+        private static final int UNKNOWN = 0;
+        private static final int DELEGATE = 1;
+        private static final int ISOLATE = 2;
+
+        private final int maxSize;
+        private volatile Table table = new Table(16);
+        private volatile int size = 0;
+
+        private DecisionCache(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        private int get(String name, int end) {
+            Table table = this.table;
+            String[] keys = table.keys;
+            boolean[] values = table.values;
+            int mask = keys.length - 1;
+            int slot = hash(name, end) & mask;
+            while ( true ) {
+                String key = keys[slot];
+                if ( key == null ) {
+                    return UNKNOWN;
+                }
+                if ( matches(key, name, end) ) {
+                    return values[slot] ? DELEGATE : ISOLATE;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private void put(String name, int end, boolean delegate) {
+            if ( size >= maxSize ) {
+                return;
+            }
+            insert(name, end, delegate);
+        }
+
+        private synchronized void insert(String name, int end, boolean delegate) {
+            if ( size >= maxSize || get(name, end) != UNKNOWN ) {
+                return;
+            }
+            Table current = table;
+            int capacity = current.keys.length;
+            while ( (size + 1) * 2 > capacity ) {
+                capacity <<= 1;
+            }
+            Table table = new Table(capacity);
+            for ( int i = 0; i < current.keys.length; i++ ) {
+                if ( current.keys[i] != null ) {
+                    table.insert(current.keys[i], current.values[i]);
+                }
+            }
+            table.insert(name.substring(0, end).replace('.', '/'), delegate);
+            size++;
+            this.table = table;
+        }
+
+        private static boolean matches(String key, String name, int end) {
+            if ( key.length() != end ) {
+                return false;
+            }
+            for ( int i = 0; i < end; i++ ) {
+                char c = name.charAt(i);
+                if ( (c == '.' ? '/' : c) != key.charAt(i) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int hash(String str, int end) {
+            int h = 0;
+            for ( int i = 0; i < end; i++ ) {
+                char c = str.charAt(i);
+                h = 31 * h + (c == '.' ? '/' : c);
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private static final class Table {
+            private final String[] keys;
+            private final boolean[] values;
+
+            private Table(int capacity) {
+                keys = new String[capacity];
+                values = new boolean[capacity];
+            }
+
+            private void insert(String key, boolean value) {
+                int mask = keys.length - 1;
+                int slot = hash(key, key.length()) & mask;
+                while ( keys[slot] != null ) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = value;
+            }
         }
-        return name.substring(0, pos);
     }
 
     public static class Builder {
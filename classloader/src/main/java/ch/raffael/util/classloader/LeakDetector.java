@@ -0,0 +1,167 @@
+package ch.raffael.util.classloader;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Checks whether closed {@link DelegatingClassLoader}s actually get garbage collected.
+ * If a class loader is still reachable after the grace period, a warning is logged
+ * listing the known roots that still retain it: Threads using it as context class loader
+ * or running a class loaded by it, MBeans loaded by it and other class loaders still
+ * importing from it.
+ * <p/>
+ * The loaders are tracked using weak references rather than phantom references, because
+ * the referent must be accessible to find the roots retaining it. Note that the check
+ * requests a garbage collection using <code>System.gc()</code> if the loader is still
+ * reachable after the grace period.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class LeakDetector {
+
+    private static final Logger log = LoggerFactory.getLogger(LeakDetector.class);
+
+    private static final Map<DelegatingClassLoader, Boolean> loaders = Collections.synchronizedMap(new WeakHashMap<DelegatingClassLoader, Boolean>());
+    private static ScheduledExecutorService scheduler = null;
+
+    private LeakDetector() {
+    }
+
+    /**
+     * Register a class loader, so it can be found as importer of closed class loaders.
+     */
+    static void register(DelegatingClassLoader loader) {
+        loaders.put(loader, Boolean.TRUE);
+    }
+
+    /**
+     * Watch a closed class loader.
+     *
+     * @param loader      The class loader.
+     * @param gracePeriod The grace period in milliseconds.
+     */
+    static void watch(DelegatingClassLoader loader, long gracePeriod) {
+        loaders.remove(loader);
+        final WeakReference<DelegatingClassLoader> ref = new WeakReference<DelegatingClassLoader>(loader);
+        final String name = loader.toString();
+        scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                check(ref, name);
+            }
+        }, gracePeriod, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService scheduler() {
+        if ( scheduler == null ) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    // the thread is created lazily by whoever closes a class loader first;
+                    // don't let it inherit that caller's access control context
+                    return AccessController.doPrivileged(new PrivilegedAction<Thread>() {
+                        @Override
+                        public Thread run() {
+                            Thread thread = new Thread(r, "DelegatingClassLoader Leak Detector");
+                            thread.setDaemon(true);
+                            // don't retain any plugin class loader ourselves
+                            thread.setContextClassLoader(null);
+                            return thread;
+                        }
+                    });
+                }
+            });
+            scheduler = executor;
+        }
+        return scheduler;
+    }
+
+    private static void check(WeakReference<DelegatingClassLoader> ref, String name) {
+        if ( ref.get() != null ) {
+            System.gc();
+        }
+        DelegatingClassLoader loader = ref.get();
+        if ( loader == null ) {
+            log.debug("{} has been unloaded", name);
+            return;
+        }
+        List<String> roots = findRoots(loader);
+        if ( roots.isEmpty() ) {
+            log.warn("{} has been closed but is still reachable (no known roots found)", name);
+        }
+        else {
+            StringBuilder buf = new StringBuilder();
+            for ( String root : roots ) {
+                buf.append("\n  ").append(root);
+            }
+            log.warn("{} has been closed but is still reachable from:{}", name, buf);
+        }
+    }
+
+    static List<String> findRoots(ClassLoader loader) {
+        List<String> roots = new ArrayList<String>();
+        for ( Thread thread : Thread.getAllStackTraces().keySet() ) {
+            if ( isDescendant(thread.getContextClassLoader(), loader) ) {
+                roots.add("Context class loader of thread " + thread.getName());
+            }
+            if ( isDescendant(thread.getClass().getClassLoader(), loader) ) {
+                roots.add("Class of thread " + thread.getName() + ": " + thread.getClass().getName());
+            }
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for ( ObjectName name : server.queryNames(null, null) ) {
+                try {
+                    if ( isDescendant(server.getClassLoaderFor(name), loader) ) {
+                        roots.add("MBean " + name);
+                    }
+                }
+                catch ( Exception e ) {
+                    // unregistered concurrently, ignore
+                }
+            }
+        }
+        catch ( SecurityException e ) {
+            log.debug("Cannot check MBeans", e);
+        }
+        List<DelegatingClassLoader> importers;
+        synchronized ( loaders ) {
+            importers = new ArrayList<DelegatingClassLoader>(loaders.keySet());
+        }
+        for ( DelegatingClassLoader importer : importers ) {
+            if ( importer != loader && importer.importsFrom(loader) ) {
+                roots.add("Imported by " + importer);
+            }
+        }
+        return roots;
+    }
+
+    private static boolean isDescendant(ClassLoader candidate, ClassLoader loader) {
+        while ( candidate != null ) {
+            if ( candidate == loader ) {
+                return true;
+            }
+            candidate = candidate.getParent();
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,173 @@
+package ch.raffael.util.classloader;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+
+/**
+ * Collects class loading timings for {@link DelegatingClassLoader}. All operations are
+ * lock-free. Timings are inclusive, i.e. the time needed to load a class includes the
+ * time needed to load its super classes and interfaces, if these weren't loaded yet.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class LoadStatistics {
+
+    static final String LOCAL = "<local>";
+
+    private static final String[] HISTOGRAM_ITEMS = { "Bucket", "UpperBoundMicros", "Local", "Imported", "Failed" };
+    private static final String[] BREAKDOWN_ITEMS = { "Kind", "Name", "Count", "TotalNanos", "MaxNanos", "BytesRead" };
+
+    private final Histogram local = new Histogram();
+    private final Histogram imported = new Histogram();
+    private final Histogram failed = new Histogram();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final ConcurrentMap<String, Timing> packages = new ConcurrentHashMap<String, Timing>();
+    private final ConcurrentMap<String, Timing> exporters = new ConcurrentHashMap<String, Timing>();
+
+    void local(String packageName, long nanos) {
+        local.add(nanos);
+        timing(packages, packageName).add(nanos);
+        timing(exporters, LOCAL).add(nanos);
+    }
+
+    void imported(String packageName, ClassLoader exporter, long nanos) {
+        imported.add(nanos);
+        timing(packages, packageName).add(nanos);
+        timing(exporters, String.valueOf(exporter)).add(nanos);
+    }
+
+    void failed(String packageName, long nanos) {
+        failed.add(nanos);
+        timing(packages, packageName).add(nanos);
+    }
+
+    void read(String packageName, int bytes) {
+        bytesRead.addAndGet(bytes);
+        timing(packages, packageName).bytes.addAndGet(bytes);
+        timing(exporters, LOCAL).bytes.addAndGet(bytes);
+    }
+
+    void reset() {
+        local.reset();
+        imported.reset();
+        failed.reset();
+        bytesRead.set(0);
+        packages.clear();
+        exporters.clear();
+    }
+
+    long getLocalNanos() {
+        return local.total.get();
+    }
+
+    long getImportedNanos() {
+        return imported.total.get();
+    }
+
+    long getFailedNanos() {
+        return failed.total.get();
+    }
+
+    long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    TabularData histogramData() throws OpenDataException {
+        CompositeType rowType = new CompositeType("Load Time Histogram", "Load Time Histogram",
+                                                  HISTOGRAM_ITEMS, HISTOGRAM_ITEMS,
+                                                  new OpenType<?>[] { SimpleType.INTEGER, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG });
+        TabularDataSupport result = new TabularDataSupport(new TabularType("LoadTimeHistogram", "Load Time Histogram", rowType, new String[] { "Bucket" }));
+        for ( int i = 0; i < Histogram.BUCKETS; i++ ) {
+            result.put(new CompositeDataSupport(rowType, HISTOGRAM_ITEMS, new Object[] {
+                    i, i == Histogram.BUCKETS - 1 ? Long.MAX_VALUE : 1L << i,
+                    local.buckets.get(i), imported.buckets.get(i), failed.buckets.get(i) }));
+        }
+        return result;
+    }
+
+    TabularData breakdownData() throws OpenDataException {
+        CompositeType rowType = new CompositeType("Load Time Breakdown", "Load Time Breakdown",
+                                                  BREAKDOWN_ITEMS, BREAKDOWN_ITEMS,
+                                                  new OpenType<?>[] { SimpleType.STRING, SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG });
+        TabularDataSupport result = new TabularDataSupport(new TabularType("LoadTimeBreakdown", "Load Time Breakdown", rowType, new String[] { "Kind", "Name" }));
+        addBreakdown(result, rowType, "package", packages);
+        addBreakdown(result, rowType, "exporter", exporters);
+        return result;
+    }
+
+    private void addBreakdown(TabularDataSupport result, CompositeType rowType, String kind, Map<String, Timing> timings) throws OpenDataException {
+        for ( Map.Entry<String, Timing> entry : timings.entrySet() ) {
+            Timing timing = entry.getValue();
+            result.put(new CompositeDataSupport(rowType, BREAKDOWN_ITEMS, new Object[] {
+                    kind, entry.getKey(), timing.count.get(), timing.total.get(), timing.max.get(), timing.bytes.get() }));
+        }
+    }
+
+    private static Timing timing(ConcurrentMap<String, Timing> timings, String name) {
+        Timing timing = timings.get(name);
+        if ( timing == null ) {
+            timing = new Timing();
+            Timing prev = timings.putIfAbsent(name, timing);
+            if ( prev != null ) {
+                timing = prev;
+            }
+        }
+        return timing;
+    }
+
+    /**
+     * A histogram with logarithmic buckets: Bucket <em>n</em> counts the loads that took
+     * less than 2<sup>n</sup> microseconds, the last bucket counts everything else.
+     */
+    private static final class Histogram {
+        private static final int BUCKETS = 24;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong total = new AtomicLong();
+
+        private void add(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+            total.addAndGet(nanos);
+        }
+
+        private void reset() {
+            for ( int i = 0; i < BUCKETS; i++ ) {
+                buckets.set(i, 0);
+            }
+            total.set(0);
+        }
+    }
+
+    private static final class Timing {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        private void add(long nanos) {
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+            long max;
+            while ( nanos > (max = this.max.get()) ) {
+                if ( this.max.compareAndSet(max, nanos) ) {
+                    break;
+                }
+            }
+        }
+    }
+
+}
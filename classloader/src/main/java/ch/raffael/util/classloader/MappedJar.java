@@ -0,0 +1,362 @@
+package ch.raffael.util.classloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+
+/**
+ * A read-only JAR file mapped into memory. The central directory is parsed once into a
+ * compact hash table of entry offsets, the entry names themselves are compared directly
+ * in the mapped memory. Stored entries are returned as slices of the mapped buffer
+ * without copying, deflated entries are inflated using pooled inflaters.
+ * <p/>
+ * Signed JARs and ZIP64 files are not supported, {@link #open(File)} returns
+ * <code>null</code> for these. Mapped memory is released when the instance is garbage
+ * collected.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class MappedJar {
+
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int CEN_SIZE = 46;
+    private static final int LOC_SIZE = 30;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private static final int MAX_POOLED_INFLATERS = 16;
+    private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+    private final File file;
+    private final ByteBuffer buffer;
+    private final int[] offsets;
+    private final int[] table;
+    private final int mask;
+
+    private MappedJar(File file, ByteBuffer buffer, int[] offsets) {
+        this.file = file;
+        this.buffer = buffer;
+        this.offsets = offsets;
+        int size = 2;
+        while ( size < offsets.length * 2 ) {
+            size <<= 1;
+        }
+        table = new int[size];
+        mask = size - 1;
+        for ( int i = 0; i < offsets.length; i++ ) {
+            int cen = offsets[i];
+            int slot = hashBytes(cen + CEN_SIZE, u16(cen + 28)) & mask;
+            while ( table[slot] != 0 ) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MappedJar{" + file + "}";
+    }
+
+    /**
+     * Map the given JAR file.
+     *
+     * @param file The JAR file.
+     *
+     * @return The mapped JAR or <code>null</code>, if the JAR cannot be mapped (signed
+     *         JARs, ZIP64, files larger than 2GB).
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    static MappedJar open(File file) throws IOException {
+        ByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if ( channel.size() > Integer.MAX_VALUE || channel.size() < EOCD_SIZE ) {
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        finally {
+            raf.close();
+        }
+        int eocd = -1;
+        int limit = Math.max(0, buffer.limit() - EOCD_SIZE - 0xffff);
+        for ( int pos = buffer.limit() - EOCD_SIZE; pos >= limit; pos-- ) {
+            if ( buffer.getInt(pos) == EOCD_SIG ) {
+                eocd = pos;
+                break;
+            }
+        }
+        if ( eocd < 0 ) {
+            throw new IOException(file + ": Not a ZIP file");
+        }
+        int count = buffer.getShort(eocd + 10) & 0xffff;
+        long cenOffset = buffer.getInt(eocd + 16) & 0xffffffffL;
+        if ( count == 0xffff || cenOffset == 0xffffffffL ) {
+            // ZIP64
+            return null;
+        }
+        int[] offsets = new int[count];
+        int pos = (int)cenOffset;
+        for ( int i = 0; i < count; i++ ) {
+            if ( pos + CEN_SIZE > buffer.limit() || buffer.getInt(pos) != CEN_SIG ) {
+                throw new IOException(file + ": Invalid central directory");
+            }
+            offsets[i] = pos;
+            pos += CEN_SIZE + (buffer.getShort(pos + 28) & 0xffff) + (buffer.getShort(pos + 30) & 0xffff) + (buffer.getShort(pos + 32) & 0xffff);
+        }
+        MappedJar jar = new MappedJar(file, buffer, offsets);
+        if ( jar.isSigned() ) {
+            return null;
+        }
+        return jar;
+    }
+
+    /**
+     * Check whether the JAR contains an entry with the given name.
+     */
+    boolean contains(String name) {
+        return find(name) >= 0;
+    }
+
+    /**
+     * Read an entry.
+     *
+     * @param name The name of the entry.
+     *
+     * @return The contents of the entry or <code>null</code> if there's no such entry.
+     *         Stored entries are returned as read-only slices of the mapped buffer.
+     *
+     * @throws IOException If the entry cannot be read.
+     */
+    ByteBuffer read(String name) throws IOException {
+        int cen = find(name);
+        if ( cen < 0 ) {
+            return null;
+        }
+        int method = u16(cen + 10);
+        long compressedSize = buffer.getInt(cen + 20) & 0xffffffffL;
+        long size = buffer.getInt(cen + 24) & 0xffffffffL;
+        long loc = buffer.getInt(cen + 42) & 0xffffffffL;
+        if ( loc + LOC_SIZE > buffer.limit() || buffer.getInt((int)loc) != LOC_SIG ) {
+            throw new IOException(file + ": Invalid local header for " + name);
+        }
+        long data = loc + LOC_SIZE + u16((int)loc + 26) + u16((int)loc + 28);
+        if ( data + compressedSize > buffer.limit() ) {
+            throw new IOException(file + ": Truncated entry " + name);
+        }
+        ByteBuffer compressed = buffer.duplicate();
+        compressed.position((int)data);
+        compressed.limit((int)(data + compressedSize));
+        if ( method == STORED ) {
+            return compressed.slice().asReadOnlyBuffer();
+        }
+        else if ( method == DEFLATED ) {
+            byte[] input = new byte[(int)compressedSize];
+            compressed.get(input);
+            byte[] output = new byte[(int)size];
+            Inflater inflater = inflaters.poll();
+            if ( inflater == null ) {
+                inflater = new Inflater(true);
+            }
+            try {
+                inflater.setInput(input);
+                int count = 0;
+                while ( count < output.length && !inflater.finished() ) {
+                    int n = inflater.inflate(output, count, output.length - count);
+                    if ( n == 0 && (inflater.needsInput() || inflater.needsDictionary()) ) {
+                        break;
+                    }
+                    count += n;
+                }
+                if ( count != output.length ) {
+                    throw new IOException(file + ": Corrupt entry " + name);
+                }
+            }
+            catch ( DataFormatException e ) {
+                throw new IOException(file + ": Corrupt entry " + name + ": " + e);
+            }
+            finally {
+                inflater.reset();
+                if ( inflaters.size() < MAX_POOLED_INFLATERS ) {
+                    inflaters.offer(inflater);
+                }
+                else {
+                    inflater.end();
+                }
+            }
+            return ByteBuffer.wrap(output);
+        }
+        else {
+            throw new IOException(file + ": Unsupported compression method " + method + " for " + name);
+        }
+    }
+
+    /**
+     * @return The manifest or <code>null</code>.
+     */
+    Manifest getManifest() throws IOException {
+        ByteBuffer bytes = read("META-INF/MANIFEST.MF");
+        if ( bytes == null ) {
+            return null;
+        }
+        byte[] array = new byte[bytes.remaining()];
+        bytes.get(array);
+        return new Manifest(new ByteArrayInputStream(array));
+    }
+
+    /**
+     * @return The packages of all file entries ('/'-notation, "" for the default
+     *         package).
+     */
+    Set<String> getPackages() throws IOException {
+        Set<String> packages = new HashSet<String>();
+        for ( int cen : offsets ) {
+            String name = name(cen);
+            if ( !name.endsWith("/") ) {
+                int pos = name.lastIndexOf('/');
+                packages.add(pos < 0 ? "" : name.substring(0, pos));
+            }
+        }
+        return packages;
+    }
+
+    private boolean isSigned() throws IOException {
+        for ( int cen : offsets ) {
+            String name = name(cen);
+            if ( name.startsWith("META-INF/") ) {
+                String upper = name.toUpperCase();
+                if ( upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC") ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private String name(int cen) throws UnsupportedEncodingException {
+        byte[] bytes = new byte[u16(cen + 28)];
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(cen + CEN_SIZE);
+        dup.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Find the central directory header of the given entry.
+     *
+     * @return The offset of the central directory header or -1.
+     */
+    private int find(String name) {
+        byte[] encoded = null;
+        int hash;
+        if ( isAscii(name) ) {
+            hash = hashChars(name);
+        }
+        else {
+            try {
+                encoded = name.getBytes("UTF-8");
+            }
+            catch ( UnsupportedEncodingException e ) {
+                throw new IllegalStateException("UTF-8 not supported", e);
+            }
+            hash = hashArray(encoded);
+        }
+        int slot = hash & mask;
+        while ( true ) {
+            int index = table[slot];
+            if ( index == 0 ) {
+                return -1;
+            }
+            int cen = offsets[index - 1];
+            if ( encoded == null ? nameEquals(cen, name) : nameEquals(cen, encoded) ) {
+                return cen;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean nameEquals(int cen, String name) {
+        int len = u16(cen + 28);
+        if ( len != name.length() ) {
+            return false;
+        }
+        int start = cen + CEN_SIZE;
+        for ( int i = 0; i < len; i++ ) {
+            if ( buffer.get(start + i) != name.charAt(i) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean nameEquals(int cen, byte[] name) {
+        int len = u16(cen + 28);
+        if ( len != name.length ) {
+            return false;
+        }
+        int start = cen + CEN_SIZE;
+        for ( int i = 0; i < len; i++ ) {
+            if ( buffer.get(start + i) != name[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hashBytes(int start, int len) {
+        int h = 0;
+        for ( int i = 0; i < len; i++ ) {
+            h = 31 * h + (buffer.get(start + i) & 0xff);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int hashChars(String str) {
+        int h = 0;
+        for ( int i = 0; i < str.length(); i++ ) {
+            h = 31 * h + str.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int hashArray(byte[] bytes) {
+        int h = 0;
+        for ( byte b : bytes ) {
+            h = 31 * h + (b & 0xff);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean isAscii(String str) {
+        for ( int i = 0; i < str.length(); i++ ) {
+            if ( str.charAt(i) >= 0x80 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int u16(int pos) {
+        return buffer.getShort(pos) & 0xffff;
+    }
+
+}
@@ -0,0 +1,254 @@
+package ch.raffael.util.classloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ch.raffael.util.common.collections.TopoSort;
+
+
+/**
+ * Wires a set of {@link DelegatingClassLoader}s together based on the packages they
+ * export and import.
+ * <p/>
+ * Each module declares the packages it exports and the packages it imports. An import
+ * is resolved to the module exporting the package; if several modules export the same
+ * package, the import must name the module to import it from. The graph is validated as
+ * a whole, the modules are then built in topological order, so exporters are always
+ * built before their importers. Each class loader gets a flat, immutable table mapping
+ * its imported packages to the exporting class loaders, so resolving an import is a
+ * single hash lookup instead of a chain of {@link Dispatcher} calls.
+ * <p/>
+ * Imports must not be circular. Packages are exact packages, i.e. importing
+ * <code>foo/bar</code> doesn't import <code>foo/bar/baz</code>.
+ *
+ * <pre>
+ * ModuleGraph graph = new ModuleGraph();
+ * graph.module("api", DelegatingClassLoader.builder().add(apiJar)).exports("com/example/api");
+ * graph.module("impl", DelegatingClassLoader.builder().add(implJar)).imports("com/example/api");
+ * Map&lt;String, DelegatingClassLoader&gt; loaders = graph.build(parent);
+ * </pre>
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public class ModuleGraph {
+
+    private final Map<String, Module> modules = new LinkedHashMap<String, Module>();
+
+    public ModuleGraph() {
+    }
+
+    @Override
+    public String toString() {
+        return "ModuleGraph{" + modules.keySet() + "}";
+    }
+
+    /**
+     * Add a module.
+     *
+     * @param name   The name of the module, used as ID of the class loader.
+     * @param loader The builder for the module's class loader.
+     *
+     * @return The module, to declare its exports and imports.
+     */
+    public Module module(String name, DelegatingClassLoader.Builder loader) {
+        if ( modules.containsKey(name) ) {
+            throw new IllegalArgumentException("Duplicate module: " + name);
+        }
+        Module module = new Module(name, loader);
+        modules.put(name, module);
+        return module;
+    }
+
+    /**
+     * Validate the module graph and resolve all imports.
+     *
+     * @return The names of the modules in topological order, i.e. exporters before
+     *         importers.
+     *
+     * @throws ModuleGraphException If the graph is invalid.
+     */
+    public List<String> validate() throws ModuleGraphException {
+        List<Module> order = resolve();
+        List<String> names = new ArrayList<String>(order.size());
+        for ( Module module : order ) {
+            names.add(module.name);
+        }
+        return names;
+    }
+
+    /**
+     * Validate the module graph and build the class loaders.
+     *
+     * @param parent The parent class loader for all modules.
+     *
+     * @return The class loaders by module name in topological order.
+     *
+     * @throws ModuleGraphException If the graph is invalid.
+     */
+    public Map<String, DelegatingClassLoader> build(ClassLoader parent) throws ModuleGraphException {
+        List<Module> order = resolve();
+        Map<String, DelegatingClassLoader> loaders = new LinkedHashMap<String, DelegatingClassLoader>();
+        for ( Module module : order ) {
+            Map<String, ClassLoader> imports = new HashMap<String, ClassLoader>(module.resolved.size() * 4 / 3 + 1);
+            for ( Map.Entry<String, Module> entry : module.resolved.entrySet() ) {
+                imports.put(entry.getKey(), loaders.get(entry.getValue().name));
+            }
+            loaders.put(module.name, module.loader.id(module.name).imports(Collections.unmodifiableMap(imports)).build(parent));
+        }
+        return Collections.unmodifiableMap(loaders);
+    }
+
+    private List<Module> resolve() throws ModuleGraphException {
+        List<String> problems = new ArrayList<String>();
+        Map<String, List<Module>> exporters = new HashMap<String, List<Module>>();
+        for ( Module module : modules.values() ) {
+            for ( String pkg : module.exports ) {
+                List<Module> list = exporters.get(pkg);
+                if ( list == null ) {
+                    list = new ArrayList<Module>(1);
+                    exporters.put(pkg, list);
+                }
+                list.add(module);
+            }
+        }
+        TopoSort<Module> sort = new TopoSort<Module>(new ArrayList<Module>(modules.values()));
+        for ( Module module : modules.values() ) {
+            module.resolved.clear();
+            for ( Map.Entry<String, String> imp : module.imports.entrySet() ) {
+                String pkg = imp.getKey();
+                Module exporter = null;
+                if ( module.exports.contains(pkg) ) {
+                    problems.add(module.name + ": Imports its own export " + pkg);
+                    continue;
+                }
+                List<Module> candidates = exporters.get(pkg);
+                if ( imp.getValue() != null ) {
+                    exporter = modules.get(imp.getValue());
+                    if ( exporter == null ) {
+                        problems.add(module.name + ": Importing " + pkg + " from unknown module " + imp.getValue());
+                    }
+                    else if ( !exporter.exports.contains(pkg) ) {
+                        problems.add(module.name + ": Module " + exporter.name + " doesn't export " + pkg);
+                        exporter = null;
+                    }
+                }
+                else if ( candidates == null ) {
+                    problems.add(module.name + ": No module exports " + pkg);
+                }
+                else if ( candidates.size() > 1 ) {
+                    problems.add(module.name + ": " + pkg + " is exported by several modules " + candidates + ", specify the module to import from");
+                }
+                else {
+                    exporter = candidates.get(0);
+                }
+                if ( exporter != null ) {
+                    module.resolved.put(pkg, exporter);
+                    sort.add(exporter, module);
+                }
+            }
+        }
+        List<Module> order = null;
+        if ( problems.isEmpty() ) {
+            try {
+                order = sort.sort();
+            }
+            catch ( TopoSort.CircularGraphException e ) {
+                StringBuilder buf = new StringBuilder("Circular imports: ");
+                for ( Object module : e.getCycle() ) {
+                    buf.append(module).append(" => ");
+                }
+                if ( !e.getCycle().isEmpty() ) {
+                    buf.append(e.getCycle().get(0));
+                }
+                problems.add(buf.toString());
+            }
+        }
+        if ( !problems.isEmpty() ) {
+            throw new ModuleGraphException(problems);
+        }
+        return order;
+    }
+
+    /**
+     * A module in the graph.
+     */
+    public static final class Module {
+
+        private final String name;
+        private final DelegatingClassLoader.Builder loader;
+        private final Set<String> exports = new LinkedHashSet<String>();
+        private final Map<String, String> imports = new LinkedHashMap<String, String>();
+        private final Map<String, Module> resolved = new LinkedHashMap<String, Module>();
+
+        private Module(String name, DelegatingClassLoader.Builder loader) {
+            this.name = name;
+            this.loader = loader;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Export the given packages.
+         *
+         * @param packageNames The package names.
+         *
+         * @return <code>this</code>.
+         */
+        public Module exports(String... packageNames) {
+            for ( String pkg : packageNames ) {
+                exports.add(checkPackage(pkg));
+            }
+            return this;
+        }
+
+        /**
+         * Import the given packages from the module exporting them.
+         *
+         * @param packageNames The package names.
+         *
+         * @return <code>this</code>.
+         */
+        public Module imports(String... packageNames) {
+            for ( String pkg : packageNames ) {
+                imports.put(checkPackage(pkg), null);
+            }
+            return this;
+        }
+
+        /**
+         * Import the given package from the given module. This is required if several
+         * modules export the package.
+         *
+         * @param packageName The package name.
+         * @param moduleName  The name of the module to import the package from.
+         *
+         * @return <code>this</code>.
+         */
+        public Module imports(String packageName, String moduleName) {
+            imports.put(checkPackage(packageName), moduleName);
+            return this;
+        }
+
+        private static String checkPackage(String packageName) {
+            String pkg = DelegatingClassLoader.checkPackageName(packageName);
+            if ( pkg.isEmpty() || pkg.endsWith("/") ) {
+                throw new IllegalArgumentException("Only exact packages can be exported or imported: " + packageName);
+            }
+            return pkg;
+        }
+    }
+
+}
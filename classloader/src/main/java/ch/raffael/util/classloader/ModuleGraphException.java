@@ -0,0 +1,38 @@
+package ch.raffael.util.classloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Thrown by {@link ModuleGraph#build(ClassLoader)} if the module graph is invalid.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public class ModuleGraphException extends Exception {
+    private static final long serialVersionUID = 12112901L;
+
+    private final List<String> problems;
+
+    public ModuleGraphException(List<String> problems) {
+        super(message(problems));
+        this.problems = Collections.unmodifiableList(new ArrayList<String>(problems));
+    }
+
+    /**
+     * @return All problems found in the module graph.
+     */
+    public List<String> getProblems() {
+        return problems;
+    }
+
+    private static String message(List<String> problems) {
+        StringBuilder buf = new StringBuilder("Invalid module graph:");
+        for ( String problem : problems ) {
+            buf.append("\n  ").append(problem);
+        }
+        return buf.toString();
+    }
+
+}
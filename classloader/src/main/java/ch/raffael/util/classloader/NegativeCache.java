@@ -0,0 +1,137 @@
+package ch.raffael.util.classloader;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A bounded, concurrent cache of class and resource names that couldn't be found. Once
+ * the cache is full, an arbitrary entry is evicted for each new entry.
+ * <p/>
+ * The entries are kept in an {@link Epoch}, clearing the cache replaces it with a new
+ * one. Lookups capture the epoch when they start and add their result to that epoch, so
+ * results of lookups that started before the cache was cleared end up in the discarded
+ * epoch and can't survive the invalidation.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class NegativeCache {
+
+    private final int maxSize;
+    private volatile Epoch epoch = new Epoch();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    NegativeCache(int maxSize) {
+        if ( maxSize <= 0 ) {
+            throw new IllegalArgumentException("maxSize must be > 0");
+        }
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public String toString() {
+        return "NegativeCache{size=" + size() + ",maxSize=" + maxSize + "}";
+    }
+
+    boolean contains(String name, Dispatcher.Type type) {
+        if ( epoch.map(type).containsKey(name) ) {
+            hits.incrementAndGet();
+            return true;
+        }
+        else {
+            misses.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Get the current epoch. The epoch changes each time the cache is cleared.
+     *
+     * @return The current epoch.
+     */
+    Epoch epoch() {
+        return epoch;
+    }
+
+    /**
+     * Add a name to the cache, unless the cache has been cleared since the given epoch.
+     * The latter avoids re-adding names whose lookup started before the invalidation.
+     *
+     * @param name  The name of the class or resource.
+     * @param type  The type of the name.
+     * @param epoch The epoch at the start of the lookup.
+     */
+    void add(String name, Dispatcher.Type type, Epoch epoch) {
+        epoch.add(name, type);
+    }
+
+    void clear() {
+        epoch = new Epoch();
+    }
+
+    int size() {
+        return epoch.size.get();
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * The entries added between two invalidations.
+     */
+    final class Epoch {
+
+        private final ConcurrentMap<String, Boolean> classes = new ConcurrentHashMap<String, Boolean>();
+        private final ConcurrentMap<String, Boolean> resources = new ConcurrentHashMap<String, Boolean>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        private Epoch() {
+        }
+
+        private void add(String name, Dispatcher.Type type) {
+            if ( epoch != this ) {
+                // cleared in the meantime, don't bother
+                return;
+            }
+            ConcurrentMap<String, Boolean> map = map(type);
+            if ( map.putIfAbsent(name, Boolean.TRUE) == null ) {
+                if ( size.incrementAndGet() > maxSize ) {
+                    evict(map, name);
+                }
+            }
+        }
+
+        private void evict(ConcurrentMap<String, Boolean> preferred, String keep) {
+            if ( !evictOne(preferred, keep) ) {
+                evictOne(preferred == classes ? resources : classes, keep);
+            }
+        }
+
+        private boolean evictOne(ConcurrentMap<String, Boolean> map, String keep) {
+            Iterator<String> iter = map.keySet().iterator();
+            while ( iter.hasNext() ) {
+                String name = iter.next();
+                if ( !name.equals(keep) && map.remove(name) != null ) {
+                    size.decrementAndGet();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private ConcurrentMap<String, Boolean> map(Dispatcher.Type type) {
+            return type == Dispatcher.Type.CLASS ? classes : resources;
+        }
+
+    }
+
+}
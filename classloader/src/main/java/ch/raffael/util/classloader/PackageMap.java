@@ -1,7 +1,9 @@
 package ch.raffael.util.classloader;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 
@@ -10,25 +12,31 @@ import java.util.Map;
  * match, i.e. the package <code>foo/bar/foobar</code> doesn't match. To include
  * sub-packages add a trailing slash ('<code>foo/bar/</code>').
  * <p/>
- * This class is not thread-safe.
+ * This class is thread-safe. The entries are compiled into an immutable trie of package
+ * segments which is replaced as a whole on each modification (copy-on-write). Lookups
+ * therefore never block and don't allocate any objects, while modifications are
+ * relatively expensive. This fits the typical use case of a map that is set up once and
+ * queried on every class load.
  *
  * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
  */
 public class PackageMap<T> {
 
     private final Map<String, T> map = new HashMap<String, T>();
-    private final Map<String, T> cache = new HashMap<String, T>();
+    private volatile Node<T> root = new Node<T>("");
 
     public PackageMap() {
     }
 
     public PackageMap(Map<String, T> entries) {
-        map.putAll(entries);
+        putAll(entries);
     }
 
     @Override
     public String toString() {
-        return "PackageMap{" + map + "}";
+        synchronized ( map ) {
+            return "PackageMap{" + map + "}";
+        }
     }
 
     @Override
@@ -36,93 +44,254 @@ public class PackageMap<T> {
         if ( this == o ) {
             return true;
         }
-        if ( (o instanceof PackageMap) ) {
+        if ( !(o instanceof PackageMap) ) {
             return false;
         }
-        return map.equals(((PackageMap)o).map);
+        return asMap().equals(((PackageMap<?>)o).asMap());
     }
 
     @Override
     public int hashCode() {
-        return map.hashCode();
+        synchronized ( map ) {
+            return map.hashCode();
+        }
     }
 
     public Map<String, T> asMap() {
-        return new HashMap<String, T>(map);
+        synchronized ( map ) {
+            return new HashMap<String, T>(map);
+        }
     }
 
     public T put(String name, T value) {
-        cache.clear();
-        return map.put(name, value);
+        synchronized ( map ) {
+            T prev = map.put(name, value);
+            compile();
+            return prev;
+        }
     }
 
     public void putAll(Map<String, T> map) {
-        cache.clear();
-        this.map.putAll(map);
+        synchronized ( this.map ) {
+            this.map.putAll(map);
+            compile();
+        }
     }
 
     public T remove(String name) {
-        cache.clear();
-        return map.remove(name);
+        synchronized ( map ) {
+            T prev = map.remove(name);
+            compile();
+            return prev;
+        }
     }
 
     public void removeAll(Iterable<String> names) {
-        cache.clear();
-        for ( String n : names ) {
-            map.remove(n);
-        }
+        removeAll(names.iterator());
     }
 
     public void removeAll(Iterator<String> names) {
-        cache.clear();
-        while ( names.hasNext() ) {
-            map.remove(names.next());
+        synchronized ( map ) {
+            while ( names.hasNext() ) {
+                map.remove(names.next());
+            }
+            compile();
         }
     }
 
     public void clear() {
-        cache.clear();
-        map.clear();
+        synchronized ( map ) {
+            map.clear();
+            compile();
+        }
     }
 
     public int size() {
-        return map.size();
+        synchronized ( map ) {
+            return map.size();
+        }
     }
 
     public T get(String name) {
-        // try the exact match first
-        T value = map.get(name);
-        if ( value != null ) {
-            return value;
+        if ( name == null ) {
+            return null;
         }
-        // try the cache
-        value = cache.get(name);
-        if ( value != null ) {
+        return lookup(name, name.length(), '/');
+    }
+
+    public T get(String name, T fallback) {
+        T value = get(name);
+        if ( value == null ) {
+            return fallback;
+        }
+        else {
             return value;
         }
-        // try sub-package matches
-        String search = name + "/";
+    }
+
+    /**
+     * Look up the value for the package denoted by <code>name.substring(0, end)</code>
+     * with package segments separated by <code>separator</code>. Walks the trie without
+     * creating any substrings.
+     */
+    T lookup(String name, int end, char separator) {
+        Node<T> node = root;
+        T recursive = null;
+        int start = 0;
         while ( true ) {
-            value = map.get(search);
-            if ( value != null ) {
-                cache.put(name, value);
-                return value;
+            int pos = name.indexOf(separator, start);
+            if ( pos < 0 || pos > end ) {
+                pos = end;
+            }
+            node = node.child(name, start, pos);
+            if ( node == null ) {
+                return recursive;
+            }
+            if ( pos == end ) {
+                if ( node.exact != null ) {
+                    return node.exact;
+                }
+                else if ( node.recursive != null ) {
+                    return node.recursive;
+                }
+                else {
+                    return recursive;
+                }
+            }
+            if ( node.recursive != null ) {
+                recursive = node.recursive;
+            }
+            start = pos + 1;
+        }
+    }
+
+    /**
+     * Rebuild the trie from the current entries and publish it. Must be called while
+     * holding the lock on {@link #map}.
+     */
+    private void compile() {
+        Builder<T> builder = new Builder<T>("");
+        for ( Map.Entry<String, T> entry : map.entrySet() ) {
+            if ( entry.getKey() == null || entry.getValue() == null ) {
+                continue;
+            }
+            String key = entry.getKey();
+            boolean recursive = key.endsWith("/");
+            if ( recursive ) {
+                key = key.substring(0, key.length() - 1);
             }
-            int pos = search.lastIndexOf('/', search.length() - 2);
-            if ( pos < 0 ) {
+            Builder<T> node = builder;
+            int start = 0;
+            while ( true ) {
+                int pos = key.indexOf('/', start);
+                if ( pos < 0 ) {
+                    pos = key.length();
+                }
+                node = node.child(key.substring(start, pos));
+                if ( pos == key.length() ) {
+                    break;
+                }
+                start = pos + 1;
+            }
+            if ( recursive ) {
+                node.recursive = entry.getValue();
+            }
+            else {
+                node.exact = entry.getValue();
+            }
+        }
+        root = builder.build();
+    }
+
+    private static int hash(String str, int start, int end) {
+        int h = 0;
+        for ( int i = start; i < end; i++ ) {
+            h = 31 * h + str.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * An immutable node of the compiled trie. The children are stored in an open
+     * addressing hash table with linear probing, keyed by the package segment.
+     */
+    private static final class Node<T> {
+        private final String segment;
+        private final T exact;
+        private final T recursive;
+        private final Node<T>[] children;
+        private final int mask;
+
+        private Node(String segment) {
+            this(segment, null, null, null);
+        }
+
+        private Node(String segment, T exact, T recursive, Node<T>[] children) {
+            this.segment = segment;
+            this.exact = exact;
+            this.recursive = recursive;
+            this.children = children;
+            this.mask = children == null ? 0 : children.length - 1;
+        }
+
+        private Node<T> child(String name, int start, int end) {
+            if ( children == null ) {
                 return null;
             }
-            search = search.substring(0, pos + 1);
+            int len = end - start;
+            int i = hash(name, start, end) & mask;
+            while ( true ) {
+                Node<T> child = children[i];
+                if ( child == null ) {
+                    return null;
+                }
+                if ( child.segment.length() == len && name.regionMatches(start, child.segment, 0, len) ) {
+                    return child;
+                }
+                i = (i + 1) & mask;
+            }
         }
     }
 
-    public T get(String name, T fallback) {
-        T value = get(name);
-        if ( value == null ) {
-            return fallback;
+    private static final class Builder<T> {
+        private final String segment;
+        private final List<Builder<T>> children = new ArrayList<Builder<T>>();
+        private T exact;
+        private T recursive;
+
+        private Builder(String segment) {
+            this.segment = segment;
         }
-        else {
-            return value;
+
+        private Builder<T> child(String segment) {
+            for ( Builder<T> child : children ) {
+                if ( child.segment.equals(segment) ) {
+                    return child;
+                }
+            }
+            Builder<T> child = new Builder<T>(segment);
+            children.add(child);
+            return child;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Node<T> build() {
+            if ( children.isEmpty() ) {
+                return new Node<T>(segment, exact, recursive, null);
+            }
+            int size = 2;
+            while ( size < children.size() * 2 ) {
+                size <<= 1;
+            }
+            Node<T>[] table = (Node<T>[])new Node<?>[size];
+            for ( Builder<T> child : children ) {
+                int i = hash(child.segment, 0, child.segment.length()) & (size - 1);
+                while ( table[i] != null ) {
+                    i = (i + 1) & (size - 1);
+                }
+                table[i] = child.build();
+            }
+            return new Node<T>(segment, exact, recursive, table);
         }
     }
 
@@ -0,0 +1,137 @@
+package ch.raffael.util.classloader;
+
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Loads a list of classes in parallel. The future's value is the number of classes that
+ * have been loaded successfully.
+ *
+ * @see DelegatingClassLoader#preload(Collection, Executor)
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class Preload implements Future<Integer> {
+
+    private static final Logger log = LoggerFactory.getLogger(Preload.class);
+
+    private final ClassLoader classLoader;
+    private final AtomicInteger remaining;
+    private final AtomicInteger loaded = new AtomicInteger();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean cancelled = false;
+
+    private Preload(ClassLoader classLoader, int count) {
+        this.classLoader = classLoader;
+        this.remaining = new AtomicInteger(count);
+        if ( count == 0 ) {
+            done.countDown();
+        }
+    }
+
+    static Preload start(ClassLoader classLoader, Collection<String> classNames, Executor executor) {
+        final Preload preload = new Preload(classLoader, classNames.size());
+        for ( final String name : classNames ) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        preload.load(name);
+                    }
+                });
+            }
+            catch ( RejectedExecutionException e ) {
+                log.warn("Preloading of {} rejected", name, e);
+                preload.finished();
+            }
+        }
+        return preload;
+    }
+
+    @Override
+    public String toString() {
+        return "Preload{" + classLoader + ",remaining=" + remaining.get() + ",loaded=" + loaded.get() + "}";
+    }
+
+    private void load(String name) {
+        try {
+            if ( !cancelled ) {
+                Class.forName(name, false, classLoader);
+                loaded.incrementAndGet();
+            }
+        }
+        catch ( ClassNotFoundException e ) {
+            log.debug("Cannot preload class {}", name, e);
+        }
+        catch ( LinkageError e ) {
+            log.debug("Cannot preload class {}", name, e);
+        }
+        finally {
+            finished();
+        }
+    }
+
+    private void finished() {
+        if ( remaining.decrementAndGet() == 0 ) {
+            done.countDown();
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if ( isDone() ) {
+            return false;
+        }
+        cancelled = true;
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return cancelled || done.getCount() == 0;
+    }
+
+    @Override
+    public Integer get() throws InterruptedException {
+        if ( cancelled ) {
+            throw new CancellationException();
+        }
+        done.await();
+        return result();
+    }
+
+    @Override
+    public Integer get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if ( cancelled ) {
+            throw new CancellationException();
+        }
+        if ( !done.await(timeout, unit) ) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private Integer result() {
+        if ( cancelled ) {
+            throw new CancellationException();
+        }
+        return loaded.get();
+    }
+
+}
@@ -0,0 +1,240 @@
+package ch.raffael.util.classloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A bounded, concurrent cache of the URLs found by
+ * {@link DelegatingClassLoader#findResources(String)}. Once the cache is full, an
+ * arbitrary entry is evicted for each new entry.
+ * <p/>
+ * Optionally, the contents of small resources are kept in memory. The cached URLs are
+ * always the original ones, so their connections are still e.g.
+ * <code>JarURLConnection</code>s. The contents kept in memory are only served by
+ * {@link DelegatingClassLoader#getResourceAsStream(String)}.
+ * <p/>
+ * The entries are kept in an {@link Epoch}, clearing the cache replaces it with a new
+ * one. Lookups capture the epoch when they start and add their result to that epoch, so
+ * results of lookups that started before the cache was cleared can't survive the
+ * invalidation.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class ResourceCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ResourceCache.class);
+
+    private final int maxSize;
+    private final int snapshotSize;
+    private volatile Epoch epoch = new Epoch();
+
+    /**
+     * @param maxSize      The maximum number of resource names to cache.
+     * @param snapshotSize The maximum size of resources to keep in memory, 0 to not keep
+     *                     any resources in memory.
+     */
+    ResourceCache(int maxSize, int snapshotSize) {
+        if ( maxSize <= 0 ) {
+            throw new IllegalArgumentException("maxSize must be > 0");
+        }
+        this.maxSize = maxSize;
+        this.snapshotSize = snapshotSize;
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceCache{size=" + size() + ",maxSize=" + maxSize + "}";
+    }
+
+    /**
+     * Get the cached URLs for the given resource name.
+     *
+     * @return The URLs or <code>null</code>, if the name isn't cached.
+     */
+    Enumeration<URL> get(String name) {
+        Entry entry = epoch.resources.get(name);
+        if ( entry == null ) {
+            return null;
+        }
+        return Collections.enumeration(Arrays.asList(entry.urls));
+    }
+
+    /**
+     * @return <code>true</code>, if the contents of small resources are kept in memory.
+     */
+    boolean isSnapshotting() {
+        return snapshotSize > 0;
+    }
+
+    /**
+     * Open the contents kept in memory for the given resource.
+     *
+     * @param name The resource name.
+     * @param url  The URL of the resource as returned by <code>getResource()</code>.
+     *
+     * @return A stream reading the contents from memory or <code>null</code>, if the
+     *         name isn't cached or the contents of the URL aren't kept in memory.
+     */
+    InputStream openSnapshot(String name, URL url) {
+        Entry entry = epoch.resources.get(name);
+        if ( entry == null || entry.snapshots == null ) {
+            return null;
+        }
+        String externalForm = url.toExternalForm();
+        for ( int i = 0; i < entry.urls.length; i++ ) {
+            if ( entry.snapshots[i] != null && entry.urls[i].toExternalForm().equals(externalForm) ) {
+                return new ByteArrayInputStream(entry.snapshots[i]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the current epoch. The epoch changes each time the cache is cleared.
+     */
+    Epoch epoch() {
+        return epoch;
+    }
+
+    /**
+     * Cache the URLs found for the given resource, unless the cache has been cleared
+     * since the given epoch.
+     *
+     * @param name  The resource name.
+     * @param urls  The URLs found, the enumeration will be consumed.
+     * @param epoch The epoch at the start of the lookup.
+     *
+     * @return An enumeration of the URLs.
+     */
+    Enumeration<URL> put(String name, Enumeration<URL> urls, Epoch epoch) {
+        List<URL> list = new ArrayList<URL>(2);
+        while ( urls.hasMoreElements() ) {
+            list.add(urls.nextElement());
+        }
+        URL[] array = list.toArray(new URL[list.size()]);
+        byte[][] snapshots = null;
+        if ( snapshotSize > 0 ) {
+            snapshots = new byte[array.length][];
+            for ( int i = 0; i < array.length; i++ ) {
+                snapshots[i] = snapshot(array[i]);
+            }
+        }
+        epoch.put(name, new Entry(array, snapshots));
+        return Collections.enumeration(list);
+    }
+
+    void clear() {
+        epoch = new Epoch();
+    }
+
+    int size() {
+        return epoch.size.get();
+    }
+
+    private byte[] snapshot(URL url) {
+        try {
+            URLConnection connection = url.openConnection();
+            connection.setUseCaches(false);
+            int length = connection.getContentLength();
+            if ( length > snapshotSize ) {
+                return null;
+            }
+            InputStream in = connection.getInputStream();
+            try {
+                return readLimited(in);
+            }
+            finally {
+                ClassPathIndex.closeQuietly(in);
+            }
+        }
+        catch ( IOException e ) {
+            log.debug("Cannot snapshot {}", url, e);
+            return null;
+        }
+        catch ( SecurityException e ) {
+            log.debug("Cannot snapshot {}", url, e);
+            return null;
+        }
+    }
+
+    /**
+     * Read the stream up to <code>snapshotSize</code> bytes.
+     *
+     * @return The contents or <code>null</code> if the resource is too large.
+     */
+    private byte[] readLimited(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(snapshotSize, 1024));
+        byte[] buf = new byte[Math.min(snapshotSize + 1, 4096)];
+        int count;
+        while ( (count = in.read(buf)) >= 0 ) {
+            if ( out.size() + count > snapshotSize ) {
+                return null;
+            }
+            out.write(buf, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static final class Entry {
+        private final URL[] urls;
+        private final byte[][] snapshots;
+        private Entry(URL[] urls, byte[][] snapshots) {
+            this.urls = urls;
+            this.snapshots = snapshots;
+        }
+    }
+
+    /**
+     * The entries added between two invalidations.
+     */
+    final class Epoch {
+
+        private final ConcurrentMap<String, Entry> resources = new ConcurrentHashMap<String, Entry>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        private Epoch() {
+        }
+
+        private void put(String name, Entry entry) {
+            if ( epoch != this ) {
+                // cleared in the meantime
+                return;
+            }
+            if ( resources.put(name, entry) == null ) {
+                if ( size.incrementAndGet() > maxSize ) {
+                    evict(name);
+                }
+            }
+        }
+
+        private void evict(String keep) {
+            Iterator<String> iter = resources.keySet().iterator();
+            while ( iter.hasNext() ) {
+                String name = iter.next();
+                if ( !name.equals(keep) && resources.remove(name) != null ) {
+                    size.decrementAndGet();
+                    return;
+                }
+            }
+        }
+
+    }
+
+}
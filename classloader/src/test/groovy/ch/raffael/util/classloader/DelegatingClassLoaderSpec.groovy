@@ -1,6 +1,15 @@
 package ch.raffael.util.classloader;
 
 
+import java.lang.management.ManagementFactory
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.jar.JarEntry
+import java.util.jar.JarOutputStream
+import java.util.zip.CRC32
+
+import javax.management.ObjectName
+
 import spock.lang.Specification
 
 import static ch.raffael.util.classloader.Dispatcher.Type.*
@@ -58,8 +67,410 @@ class DelegatingClassLoaderSpec extends Specification {
         0 * _._()
     }
 
-    @SuppressWarnings("GroovyUnusedCatchParameter")
+    def "Negative cache remembers failed lookups until invalidated"() {
+      given:
+        def cached = DelegatingClassLoader.builder().dispatch("foo/", dispatcher).negativeCache().build(parent)
+
+      when:
+        tryLoad(cached, "foo.bar.FooBar")
+        tryLoad(cached, "foo.bar.FooBar")
+
+      then:
+        1 * dispatcher.getClassLoaderFor("foo/bar", "FooBar", CLASS) >> delegate
+        cached.negativeCacheHitCount == 1
+        cached.negativeCacheSize == 1
+
+      when:
+        cached.setDispatcher("foo/bar", dispatcher)
+        tryLoad(cached, "foo.bar.FooBar")
+
+      then:
+        1 * dispatcher.getClassLoaderFor("foo/bar", "FooBar", CLASS) >> delegate
+    }
+
+    def "Lookups that started before an invalidation don't populate the negative cache"() {
+      given:
+        def cached = DelegatingClassLoader.builder().dispatch("foo/", dispatcher).negativeCache().build(parent)
+        def exporter = delegate
+
+      when:
+        tryLoad(cached, "foo.bar.FooBar")
+        tryLoad(cached, "foo.bar.FooBar")
+
+      then:
+        1 * dispatcher.getClassLoaderFor("foo/bar", "FooBar", CLASS) >> { args ->
+            // invalidated while the lookup is running
+            cached.invalidateCaches()
+            return exporter
+        }
+        1 * dispatcher.getClassLoaderFor("foo/bar", "FooBar", CLASS) >> delegate
+        cached.negativeCacheSize == 1
+    }
+
+    def "Report retains the latest entries only"() {
+      given:
+        def reporting = DelegatingClassLoader.builder().reporting().reportCapacity(2).build(parent)
+
+      when:
+        ["foo.A", "foo.B", "foo.C"].each { tryLoad(reporting, it) }
+
+      then:
+        reporting.failedCount == 3
+        reporting.getReport(DelegatingClassLoaderMBean.REPORT_FAILED, 0).values()*.get("Class") as Set == ["foo.B", "foo.C"] as Set
+        reporting.getReport(DelegatingClassLoaderMBean.REPORT_ALL, 2).values()*.get("Class") == ["foo.C"]
+    }
+
+    def "Preloads classes in parallel using the given executor"() {
+      given:
+        def executor = Executors.newFixedThreadPool(4)
+
+      when:
+        def result = loader.preload(["java.lang.String", "bar.foo.BarFoo", "java.util.List"], executor)
+
+      then:
+        result.get() == 2
+        "c:bar.foo.BarFoo" in parent
+        0 * dispatcher._
+
+      cleanup:
+        executor.shutdown()
+    }
+
+    def "Indexed class path loads classes and resources from the matching JAR only"() {
+      given:
+        def empty = createJar("empty", ["bar/foo/bar-foo": "bar-foo".bytes])
+        def jar = createJar("classes", [
+                "foo/bar/foo-bar": "foo-bar".bytes,
+                "ch/raffael/util/classloader/Dispatcher.class": classBytes(Dispatcher),
+                "ch/raffael/util/classloader/Dispatcher\$Type.class": classBytes(Dispatcher.Type),
+                "ch/raffael/util/classloader/FixedDispatcher.class": classBytes(FixedDispatcher)])
+        def cache = File.createTempFile("index", ".cache")
+        cache.delete()
+        def indexed = DelegatingClassLoader.builder().add(empty, jar).index(cache).reporting().build(null)
+
+      when:
+        def clazz = tryLoad(indexed, FixedDispatcher.name)
+
+      then:
+        clazz != null
+        clazz.classLoader == indexed
+        clazz != FixedDispatcher
+        indexed.findResource("foo/bar/foo-bar").text == "foo-bar"
+        indexed.findResource("foo/bar/bar-foo") == null
+        indexed.findResources("bar/foo/bar-foo").toList().size() == 1
+        cache.isFile()
+        indexed.bytesRead > 0
+        indexed.localLoadNanos > 0
+        indexed.loadTimeHistogram.values()*.get("Local").sum() == indexed.internalCount
+        indexed.loadTimeBreakdown.get(["package", "ch/raffael/util/classloader"] as Object[]).get("BytesRead") == indexed.bytesRead
+
+      cleanup:
+        cache?.delete()
+    }
+
+    def "Mapped JARs load stored and deflated entries"() {
+      given:
+        def jar = createJar("mapped", [
+                "foo/bar/stored": "stored".bytes,
+                "foo/bar/deflated": "deflated".bytes,
+                "ch/raffael/util/classloader/Dispatcher.class": classBytes(Dispatcher),
+                "ch/raffael/util/classloader/Dispatcher\$Type.class": classBytes(Dispatcher.Type),
+                "ch/raffael/util/classloader/FixedDispatcher.class": classBytes(FixedDispatcher)],
+                ["foo/bar/stored", "ch/raffael/util/classloader/FixedDispatcher.class"])
+        def mapped = DelegatingClassLoader.builder().add(jar).mapJars().reporting().build(null)
+
+      when:
+        def clazz = tryLoad(mapped, FixedDispatcher.name)
+
+      then:
+        clazz != null
+        clazz.classLoader == mapped
+        clazz.interfaces*.name == [Dispatcher.name]
+        mapped.findResource("foo/bar/stored").text == "stored"
+        mapped.findResource("foo/bar/deflated").text == "deflated"
+        mapped.findResource("foo/bar/missing") == null
+        mapped.bytesRead == classBytes(Dispatcher).length + classBytes(Dispatcher.Type).length + classBytes(FixedDispatcher).length
+    }
+
+    def "Transformed classes are cached on disk"() {
+      given:
+        def jar = createJar("classes", [
+                "ch/raffael/util/classloader/Dispatcher.class": classBytes(Dispatcher),
+                "ch/raffael/util/classloader/Dispatcher\$Type.class": classBytes(Dispatcher.Type),
+                "ch/raffael/util/classloader/FixedDispatcher.class": classBytes(FixedDispatcher)])
+        def cacheDir = File.createTempFile("transform", ".cache")
+        cacheDir.delete()
+        def transformer = new CountingTransformer()
+
+      when:
+        def first = DelegatingClassLoader.builder().add(jar).transform("ch/raffael/util/classloader", transformer).transformCache(cacheDir).build(null)
+        def firstClass = tryLoad(first, FixedDispatcher.name)
+
+      then:
+        firstClass != null
+        transformer.transformed.containsAll([Dispatcher.name, FixedDispatcher.name])
+
+      when:
+        transformer.transformed.clear()
+        def second = DelegatingClassLoader.builder().add(jar).transform("ch/raffael/util/classloader", transformer).transformCache(cacheDir).build(null)
+        def secondClass = tryLoad(second, FixedDispatcher.name)
+
+      then:
+        secondClass != null
+        secondClass.classLoader == second
+        !(Dispatcher.name in transformer.transformed)
+        !(FixedDispatcher.name in transformer.transformed)
+
+      cleanup:
+        cacheDir?.deleteDir()
+    }
+
+    def "Unchanged classes, failed transformations and transformers without toString() aren't cached"() {
+      given:
+        def jar = createJar("classes", [
+                "ch/raffael/util/classloader/Dispatcher.class": classBytes(Dispatcher),
+                "ch/raffael/util/classloader/Dispatcher\$Type.class": classBytes(Dispatcher.Type),
+                "ch/raffael/util/classloader/FixedDispatcher.class": classBytes(FixedDispatcher)])
+        def cacheDir = File.createTempFile("transform", ".cache")
+        cacheDir.delete()
+
+      when:
+        def loader = DelegatingClassLoader.builder().add(jar).transform("ch/raffael/util/classloader", transformers as ClassTransformer[]).transformCache(cacheDir).build(null)
+        def clazz = tryLoad(loader, FixedDispatcher.name)
+
+      then:
+        clazz != null
+        clazz.classLoader == loader
+        !cacheDir.exists()
+
+      cleanup:
+        cacheDir?.deleteDir()
+
+      where:
+        transformers << [
+                [new UnchangingTransformer()],
+                [new CountingTransformer(), new FailingTransformer()],
+                [new CountingTransformer(), new AnonymousTransformer()]]
+    }
+
+    def "Closed class loaders unregister the MBean and don't load new classes"() {
+      given:
+        def jar = createJar("classes", [
+                "ch/raffael/util/classloader/Dispatcher.class": classBytes(Dispatcher),
+                "ch/raffael/util/classloader/Dispatcher\$Type.class": classBytes(Dispatcher.Type),
+                "ch/raffael/util/classloader/FixedDispatcher.class": classBytes(FixedDispatcher)])
+        def closing = DelegatingClassLoader.builder().add(jar).index().id("closing").mbean().build(null)
+        def name = new ObjectName("ch.raffael.util:type=DelegatingClassLoader,id=closing")
+        def dispatcher = tryLoad(closing, Dispatcher.name)
+        tryLoad(closing, Dispatcher.Type.name)
+
+      expect:
+        dispatcher != null
+        ManagementFactory.platformMBeanServer.isRegistered(name)
+
+      when:
+        closing.close()
+
+      then:
+        closing.closed
+        !ManagementFactory.platformMBeanServer.isRegistered(name)
+        tryLoad(closing, FixedDispatcher.name) == null
+        tryLoad(closing, Dispatcher.name) == dispatcher
+        closing.findResource("ch/raffael/util/classloader/FixedDispatcher.class") == null
+    }
+
+    def "Leak detector finds threads retaining a class loader"() {
+      given:
+        def closed = DelegatingClassLoader.builder().build(null)
+        def importer = DelegatingClassLoader.builder().dispatch("foo/", closed).build(null)
+        def latch = new CountDownLatch(1)
+        def thread = new Thread({ latch.await() } as Runnable)
+        thread.contextClassLoader = closed
+        thread.start()
+
+      when:
+        closed.close()
+        def roots = LeakDetector.findRoots(closed)
+
+      then:
+        roots.any { it.contains("thread " + thread.name) }
+        roots.any { it.contains(importer.toString()) }
+
+      cleanup:
+        latch?.countDown()
+        thread?.join()
+    }
+
+    def "Resource cache remembers URLs and snapshots small resources"() {
+      given:
+        def jar = createJar("resources", ["config/services/foo.Bar": "foo.BarImpl".bytes, "config/other": "other".bytes, "config/large": new byte[2048]])
+        def cached = DelegatingClassLoader.builder().add(jar).snapshotResources(1024).build(null)
+
+      when:
+        def urls = cached.getResources("config/services/foo.Bar").toList()
+        def large = cached.getResources("config/large").toList()
+        def other = cached.getResourceAsStream("config/other").text
+        new File(jar.toURI()).delete()
+
+      then:
+        urls.size() == 1
+        urls[0].toExternalForm().endsWith("!/config/services/foo.Bar")
+        urls[0].openConnection() instanceof JarURLConnection
+        cached.getResources("config/services/foo.Bar").toList() == urls
+        cached.getResourceAsStream("config/services/foo.Bar").text == "foo.BarImpl"
+        other == "other"
+        cached.getResourceAsStream("config/other").text == "other"
+        large.size() == 1
+
+      when:
+        cached.setDispatcher("config/services", new FixedDispatcher(new URLClassLoader(new URL[0], (ClassLoader)null)))
+
+      then:
+        cached.getResources("config/services/foo.Bar").toList().isEmpty()
+    }
+
+    def "Class load profile is written and used by a new class loader"() {
+      given:
+        def jar = createJar("classes", [
+                "ch/raffael/util/classloader/Dispatcher.class": classBytes(Dispatcher),
+                "ch/raffael/util/classloader/Dispatcher\$Type.class": classBytes(Dispatcher.Type),
+                "ch/raffael/util/classloader/FixedDispatcher.class": classBytes(FixedDispatcher)])
+        def profile = File.createTempFile("profile", ".bin")
+        def recording = DelegatingClassLoader.builder().add(jar).reporting().build(null)
+        tryLoad(recording, FixedDispatcher.name)
+
+      when:
+        recording.writeProfile(profile)
+        def profiled = DelegatingClassLoader.builder().add(jar).profile(profile).build(null)
+        def clazz = tryLoad(profiled, FixedDispatcher.name)
+
+      then:
+        profiled.profiledClassNames == recording.loadOrder
+        FixedDispatcher.name in profiled.profiledClassNames
+        clazz.classLoader == profiled
+        clazz.protectionDomain.codeSource.location == jar
+
+      cleanup:
+        profile?.delete()
+    }
+
+    def "Class load profile routes imports across restarts and detects class path changes"() {
+      given:
+        def exportedJar = createJar("exported", [
+                "ch/raffael/util/classloader/Dispatcher.class": classBytes(Dispatcher),
+                "ch/raffael/util/classloader/Dispatcher\$Type.class": classBytes(Dispatcher.Type),
+                "ch/raffael/util/classloader/FixedDispatcher.class": classBytes(FixedDispatcher)])
+        def localJar = createJar("local", ["config/local": "local".bytes])
+        def profile = File.createTempFile("profile", ".bin")
+        profile.delete()
+        def build = {
+            // each "run" gets new class loaders with new random IDs
+            def exporter = DelegatingClassLoader.builder().add(exportedJar).build(null)
+            def importer = DelegatingClassLoader.builder().add(localJar)
+                    .dispatch("ch/raffael/util/classloader/", exporter)
+                    .reporting().profile(profile).build(null)
+            [exporter, importer]
+        }
+        def first = build()
+        def recording = first[1]
+        tryLoad(recording, FixedDispatcher.name)
+        recording.writeProfile(profile)
+
+      when:
+        def restarted = build()
+        def exporter = restarted[0]
+        def profiled = restarted[1]
+
+      then:
+        profiled.profileRoutes[FixedDispatcher.name].exporter == exporter
+        tryLoad(profiled, FixedDispatcher.name).classLoader == exporter
+
+      when:
+        new File(localJar.toURI()).setLastModified(System.currentTimeMillis() - 60000)
+        def changed = build()[1]
+
+      then:
+        changed.profileRoutes == null
+        changed.profiledClassNames == recording.loadOrder
+
+      cleanup:
+        profile?.delete()
+    }
+
+    private URL createJar(String name, Map<String, byte[]> entries, Collection<String> stored = []) {
+        def file = File.createTempFile(name, ".jar")
+        file.deleteOnExit()
+        def out = new JarOutputStream(new FileOutputStream(file))
+        entries.each { entry, bytes ->
+            def jarEntry = new JarEntry(entry)
+            if ( entry in stored ) {
+                def crc = new CRC32()
+                crc.update(bytes)
+                jarEntry.method = JarEntry.STORED
+                jarEntry.size = bytes.length
+                jarEntry.compressedSize = bytes.length
+                jarEntry.crc = crc.value
+            }
+            out.putNextEntry(jarEntry)
+            out.write(bytes)
+            out.closeEntry()
+        }
+        out.close()
+        return file.toURI().toURL()
+    }
+
+    private static class CountingTransformer implements ClassTransformer {
+        final List<String> transformed = Collections.synchronizedList([])
+        @Override
+        byte[] transform(ClassLoader loader, String className, byte[] classBytes) {
+            transformed.add(className)
+            return Arrays.copyOf(classBytes, classBytes.length)
+        }
+        @Override
+        String toString() {
+            return "CountingTransformer"
+        }
+    }
+
+    private static class UnchangingTransformer implements ClassTransformer {
+        @Override
+        byte[] transform(ClassLoader loader, String className, byte[] classBytes) {
+            return null
+        }
+        @Override
+        String toString() {
+            return "UnchangingTransformer"
+        }
+    }
+
+    private static class FailingTransformer implements ClassTransformer {
+        @Override
+        byte[] transform(ClassLoader loader, String className, byte[] classBytes) {
+            throw new IllegalStateException("Failing on purpose: " + className)
+        }
+        @Override
+        String toString() {
+            return "FailingTransformer"
+        }
+    }
+
+    private static class AnonymousTransformer implements ClassTransformer {
+        @Override
+        byte[] transform(ClassLoader loader, String className, byte[] classBytes) {
+            return Arrays.copyOf(classBytes, classBytes.length)
+        }
+    }
+
+    private byte[] classBytes(Class clazz) {
+        return clazz.getResource("/" + clazz.name.replace('.', '/') + ".class").bytes
+    }
+
     private Class tryLoad(String name) {
+        return tryLoad(loader, name)
+    }
+
+    @SuppressWarnings("GroovyUnusedCatchParameter")
+    private Class tryLoad(ClassLoader loader, String name) {
         try {
             return Class.forName(name, false, loader)
         }
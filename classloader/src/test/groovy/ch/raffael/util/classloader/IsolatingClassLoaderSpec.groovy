@@ -1,6 +1,9 @@
 package ch.raffael.util.classloader;
 
 
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
 import spock.lang.Specification
 
 import static ch.raffael.util.classloader.IsolatingClassLoader.*
@@ -79,6 +82,50 @@ class IsolatingClassLoaderSpec extends Specification {
         !("c:bar.Foo" in recording)
     }
 
+    def "Cached decisions are consistent for classes, resources and concurrent lookups"() {
+      given:
+        isolating = builder().exclude("foo/").include("foo/bar").build(recording)
+        def pool = Executors.newFixedThreadPool(4)
+
+      when:
+        (1..100).collect { i ->
+            pool.submit({ [tryLoad("foo.Bar$i") != null, tryLoad("foo.bar.FooBar$i") != null] } as Callable)
+        }*.get()
+        isolating.getResource("foo/bar/foobar")
+        isolating.getResource("foo/barfoo")
+
+      then:
+        (1..100).every { i -> !("c:foo.Bar$i".toString() in recording) && "c:foo.bar.FooBar$i".toString() in recording }
+        "r:foo/bar/foobar" in recording
+        !("r:foo/barfoo" in recording)
+
+      cleanup:
+        pool?.shutdown()
+    }
+
+    def "Delegated classes are loaded from the parent without taking a class loading lock"() {
+      given:
+        def locked = []
+        isolating = new IsolatingClassLoader(recording, [foo: false]) {
+            @Override
+            protected Object getClassLoadingLock(String className) {
+                locked << className
+                return super.getClassLoadingLock(className)
+            }
+        }
+
+      when:
+        def first = isolating.loadClass(IsolatingClassLoaderSpec.name)
+        def second = isolating.loadClass(IsolatingClassLoaderSpec.name)
+        tryLoad("foo.Bar")
+
+      then:
+        first == IsolatingClassLoaderSpec
+        second == IsolatingClassLoaderSpec
+        "c:$IsolatingClassLoaderSpec.name".toString() in recording
+        locked.empty
+    }
+
     @SuppressWarnings("GroovyUnusedCatchParameter")
     private Class tryLoad(String name) {
         try {
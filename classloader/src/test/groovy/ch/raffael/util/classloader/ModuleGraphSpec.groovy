@@ -0,0 +1,76 @@
+package ch.raffael.util.classloader;
+
+
+import spock.lang.Specification
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class ModuleGraphSpec extends Specification {
+
+    ModuleGraph graph = new ModuleGraph()
+
+    def "Imports are resolved to the exporting module"() {
+      given:
+        graph.module("impl", DelegatingClassLoader.builder()).imports("foo/api")
+        graph.module("api", DelegatingClassLoader.builder()).exports("foo/api")
+
+      when:
+        def loaders = graph.build(null)
+
+      then:
+        loaders.keySet() as List == ["api", "impl"]
+        loaders.impl.findLoader("foo/api", "Foo", Dispatcher.Type.CLASS).is(loaders.api)
+        loaders.impl.findLoader("foo/impl", "Foo", Dispatcher.Type.CLASS).is(loaders.impl)
+        loaders.api.findLoader("foo/api", "Foo", Dispatcher.Type.CLASS).is(loaders.api)
+        loaders.impl.id == "impl"
+    }
+
+    def "Shared exports must be imported from a specific module"() {
+      given:
+        graph.module("a", DelegatingClassLoader.builder()).exports("foo/shared")
+        graph.module("b", DelegatingClassLoader.builder()).exports("foo/shared")
+        def client = graph.module("client", DelegatingClassLoader.builder()).imports("foo/shared")
+
+      when:
+        graph.validate()
+
+      then:
+        def e = thrown(ModuleGraphException)
+        e.problems.size() == 1
+
+      when:
+        client.imports("foo/shared", "b")
+        def loaders = graph.build(null)
+
+      then:
+        loaders.client.findLoader("foo/shared", "Foo", Dispatcher.Type.CLASS).is(loaders.b)
+    }
+
+    def "All problems are reported"() {
+      given:
+        graph.module("a", DelegatingClassLoader.builder()).exports("foo/a").imports("foo/a").imports("foo/missing")
+        graph.module("b", DelegatingClassLoader.builder()).imports("foo/a", "c")
+
+      when:
+        graph.validate()
+
+      then:
+        def e = thrown(ModuleGraphException)
+        e.problems.size() == 3
+    }
+
+    def "Circular imports are rejected"() {
+      given:
+        graph.module("a", DelegatingClassLoader.builder()).exports("foo/a").imports("foo/b")
+        graph.module("b", DelegatingClassLoader.builder()).exports("foo/b").imports("foo/a")
+
+      when:
+        graph.build(null)
+
+      then:
+        def e = thrown(ModuleGraphException)
+        e.problems == ['Circular imports: a => b => a'] || e.problems == ['Circular imports: b => a => b']
+    }
+
+}
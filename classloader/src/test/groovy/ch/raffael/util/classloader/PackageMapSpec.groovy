@@ -51,6 +51,41 @@ class PackageMapSpec extends Specification {
         map.get("foo/bar/foobar") == null
     }
 
+    def "Sibling packages don't interfere"() {
+      given:
+        put("foo/", "foo/bar/", "foo/baz", "foo/bar/foobar")
+
+      expect:
+        map.get("foo/baz") == "foo/baz"
+        map.get("foo/baz/foobar") == "foo/"
+        map.get("foo/bar/foobar") == "foo/bar/foobar"
+        map.get("foo/bar/barfoo") == "foo/bar/"
+        map.get("foo/foobar") == "foo/"
+    }
+
+    def "Removed entries don't match anymore"() {
+      given:
+        put("foo/", "foo/bar/")
+
+      when:
+        map.remove("foo/bar/")
+
+      then:
+        map.get("foo/bar/foobar") == "foo/"
+        map.size() == 1
+    }
+
+    def "Maps with the same entries are equal"() {
+      given:
+        put("foo/", "foo/bar")
+
+      expect:
+        map == new PackageMap<String>(["foo/": "foo/", "foo/bar": "foo/bar"])
+        map.hashCode() == new PackageMap<String>(["foo/": "foo/", "foo/bar": "foo/bar"]).hashCode()
+        map != new PackageMap<String>(["foo/": "foo/"])
+        !map.equals("foo/")
+    }
+
     private void put(String... names) {
         names.each {
             map.put(it, it)
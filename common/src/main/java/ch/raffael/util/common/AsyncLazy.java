@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.raffael.util.common;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+
+/**
+ * A {@link Lazy} that computes its value asynchronously. The first call to
+ * {@link #get()} submits {@link #computeInstance()} to the executor and returns a
+ * future of the value, later calls return the same future.
+ * <p/>
+ * The executor isn't serialized, deserialized instances compute their value in the
+ * thread calling {@link #get()}.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public abstract class AsyncLazy<T> extends Lazy<Future<T>> {
+    private static final long serialVersionUID = 12022301L;
+
+    private transient final Executor executor;
+
+    protected AsyncLazy(@NotNull Executor executor) {
+        super(false);
+        this.executor = executor;
+    }
+
+    /**
+     * Start computing the value, if this hasn't happened yet.
+     *
+     * @return <code>this</code>
+     */
+    @NotNull
+    public AsyncLazy<T> start() {
+        get();
+        return this;
+    }
+
+    @Override
+    protected final Future<T> createInstance() {
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return computeInstance();
+            }
+        });
+        if ( executor != null ) {
+            executor.execute(task);
+        }
+        else {
+            task.run();
+        }
+        return task;
+    }
+
+    @Nullable
+    protected abstract T computeInstance() throws Exception;
+
+}
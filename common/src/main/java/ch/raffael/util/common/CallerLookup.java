@@ -0,0 +1,274 @@
+/*
+ * Copyright 2012 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.util.common;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.jetbrains.annotations.NotNull;
+
+
+/**
+ * Determines the class calling a method. Three backends are available, the first one
+ * that works on the current JVM is used:
+ *
+ * <ul>
+ * <li><code>SecurityManager.getClassContext()</code>: Materializes the whole stack as a
+ * <code>Class[]</code>, which is cheap for the usual stack depths.</li>
+ * <li><code>StackWalker</code> (Java 9 and later, accessed reflectively): Walks only as
+ * many frames as needed, but setting up a walk has a fixed cost, so it can only pay
+ * off on deep stacks. It's used where the <code>SecurityManager</code> is
+ * unavailable.</li>
+ * <li><code>Throwable.getStackTrace()</code>: Materializes the whole stack including
+ * method names and line numbers, the class is then looked up by name.</li>
+ * </ul>
+ *
+ * See <code>CallerLookupBenchmark</code> in the benchmarks module for a comparison.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+abstract class CallerLookup {
+
+    private static final CallerLookup INSTANCE = create();
+
+    CallerLookup() {
+    }
+
+    @NotNull
+    static CallerLookup get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Find the caller.
+     *
+     * @param helper The class providing the caller lookup to the public (e.g.
+     *               {@link Classes}).
+     * @param base   The class whose caller should be found.
+     *
+     * @return The first class on the stack that's none of the given classes and not part
+     *         of the caller lookup itself.
+     */
+    @NotNull
+    abstract Class<?> callerClass(@NotNull Class<?> helper, @NotNull Class<?> base);
+
+    static boolean skip(Class<?> clazz, Class<?> helper, Class<?> base) {
+        return clazz == helper || clazz == base || CallerLookup.class.isAssignableFrom(clazz);
+    }
+
+    private static CallerLookup create() {
+        try {
+            return new SecurityManagerLookup();
+        }
+        catch ( RuntimeException e ) {
+            // SecurityManager removed or prohibited
+        }
+        catch ( LinkageError e ) {
+            // SecurityManager removed
+        }
+        try {
+            return new StackWalkerLookup();
+        }
+        catch ( Exception e ) {
+            // not Java 9+
+        }
+        catch ( LinkageError e ) {
+            // not Java 9+
+        }
+        return new StackTraceLookup();
+    }
+
+    static final class StackWalkerLookup extends CallerLookup {
+
+        private final Object walker;
+        private final Method walk;
+        private final Object function;
+        private final ThreadLocal<Query> queries = new ThreadLocal<Query>() {
+            @Override
+            protected Query initialValue() {
+                return new Query();
+            }
+        };
+
+        StackWalkerLookup() throws Exception {
+            Class<?> walkerClass = Class.forName("java.lang.StackWalker");
+            Class<?> optionClass = Class.forName("java.lang.StackWalker$Option");
+            Class<?> functionClass = Class.forName("java.util.function.Function");
+            walker = walkerClass.getMethod("getInstance", optionClass).invoke(null, optionClass.getField("RETAIN_CLASS_REFERENCE").get(null));
+            walk = walkerClass.getMethod("walk", functionClass);
+            // the function is created once, the classes to skip are passed in a
+            // thread-local query
+            function = Proxy.newProxyInstance(CallerLookup.class.getClassLoader(), new Class<?>[] { functionClass },
+                                              new CallerFunction(Class.forName("java.util.stream.BaseStream").getMethod("iterator"),
+                                                                 Class.forName("java.lang.StackWalker$StackFrame").getMethod("getDeclaringClass")));
+            // make sure it works
+            callerClass(CallerLookup.class, CallerLookup.class);
+        }
+
+        @NotNull
+        @Override
+        Class<?> callerClass(@NotNull Class<?> helper, @NotNull Class<?> base) {
+            Query query = queries.get();
+            query.helper = helper;
+            query.base = base;
+            Class<?> caller;
+            try {
+                caller = (Class<?>)walk.invoke(walker, function);
+            }
+            catch ( IllegalAccessException e ) {
+                throw new IllegalStateException("Cannot walk stack", e);
+            }
+            catch ( InvocationTargetException e ) {
+                throw new IllegalStateException("Cannot walk stack", e.getTargetException());
+            }
+            finally {
+                query.helper = null;
+                query.base = null;
+            }
+            if ( caller == null ) {
+                throw new IllegalStateException("Cannot determine caller of " + base);
+            }
+            return caller;
+        }
+
+        private static final class Query {
+            private Class<?> helper;
+            private Class<?> base;
+        }
+
+        /**
+         * Implements <code>Function&lt;Stream&lt;StackFrame&gt;, Class&gt;</code>.
+         */
+        private final class CallerFunction implements InvocationHandler {
+
+            private final Method iterator;
+            private final Method getDeclaringClass;
+
+            private CallerFunction(Method iterator, Method getDeclaringClass) {
+                this.iterator = iterator;
+                this.getDeclaringClass = getDeclaringClass;
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ( method.getName().equals("apply") ) {
+                    Query query = queries.get();
+                    Iterator<?> frames = (Iterator<?>)iterator.invoke(args[0]);
+                    while ( frames.hasNext() ) {
+                        Class<?> clazz = (Class<?>)getDeclaringClass.invoke(frames.next());
+                        if ( !skip(clazz, query.helper, query.base) ) {
+                            return clazz;
+                        }
+                    }
+                    return null;
+                }
+                else if ( method.getName().equals("equals") ) {
+                    return proxy == args[0];
+                }
+                else if ( method.getName().equals("hashCode") ) {
+                    return System.identityHashCode(proxy);
+                }
+                else {
+                    return "CallerFunction";
+                }
+            }
+        }
+    }
+
+    static final class SecurityManagerLookup extends CallerLookup {
+
+        private final ClassContext context = new ClassContext();
+
+        SecurityManagerLookup() {
+            // make sure it works
+            callerClass(CallerLookup.class, CallerLookup.class);
+        }
+
+        @NotNull
+        @Override
+        @SuppressWarnings({ "ForLoopReplaceableByForEach" })
+        Class<?> callerClass(@NotNull Class<?> helper, @NotNull Class<?> base) {
+            Class<?>[] context = this.context.getClassContext();
+            for ( int i = 0; i < context.length; i++ ) {
+                if ( context[i] != ClassContext.class && !skip(context[i], helper, base) ) {
+                    return context[i];
+                }
+            }
+            throw new IllegalStateException("Cannot determine caller from context " + Arrays.asList(context));
+        }
+
+        private static final class ClassContext extends SecurityManager {
+            @Override
+            protected Class<?>[] getClassContext() {
+                return super.getClassContext();
+            }
+        }
+    }
+
+    static final class StackTraceLookup extends CallerLookup {
+
+        StackTraceLookup() {
+        }
+
+        @NotNull
+        @Override
+        Class<?> callerClass(@NotNull Class<?> helper, @NotNull Class<?> base) {
+            StackTraceElement[] trace = new Throwable().getStackTrace();
+            for ( StackTraceElement element : trace ) {
+                String name = element.getClassName();
+                if ( !name.equals(helper.getName()) && !name.equals(base.getName()) && !isCallerLookup(name) && !isReflection(name) ) {
+                    Class<?> caller = load(name, Thread.currentThread().getContextClassLoader());
+                    if ( caller == null ) {
+                        ClassLoader loader = base.getClassLoader();
+                        caller = load(name, loader == null ? CallerLookup.class.getClassLoader() : loader);
+                    }
+                    // the caller may not be visible to either loader, use the best guess
+                    return caller == null ? base : caller;
+                }
+            }
+            throw new IllegalStateException("Cannot determine caller from stack trace " + Arrays.asList(trace));
+        }
+
+        private static Class<?> load(String name, ClassLoader loader) {
+            if ( loader == null ) {
+                return null;
+            }
+            try {
+                return Class.forName(name, false, loader);
+            }
+            catch ( ClassNotFoundException e ) {
+                return null;
+            }
+        }
+
+        private static boolean isCallerLookup(String name) {
+            return name.equals(CallerLookup.class.getName()) || name.startsWith(CallerLookup.class.getName() + "$");
+        }
+
+        /**
+         * Reflection frames are hidden by the other backends, hide them here, too.
+         */
+        private static boolean isReflection(String name) {
+            return name.startsWith("sun.reflect.") || name.startsWith("jdk.internal.reflect.") || name.equals("java.lang.reflect.Method");
+        }
+    }
+
+}
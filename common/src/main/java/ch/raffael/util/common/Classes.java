@@ -1,9 +1,15 @@
 package ch.raffael.util.common;
 
+import java.lang.ref.WeakReference;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -19,14 +25,12 @@ import static java.util.Arrays.*;
 @Utility
 public final class Classes {
 
-    private static final GetCallerSecurityManager GET_CALLER = new GetCallerSecurityManager();
-
     private Classes() {
     }
 
     @NotNull
     public static Class<?> callerClass(@NotNull Class<?> base) {
-        return GET_CALLER.getCallerClass(base);
+        return CallerLookup.get().callerClass(Classes.class, base);
     }
 
     @NotNull
@@ -71,10 +75,15 @@ public final class Classes {
          */
         NATURAL {
             @Override
-            public Class<?> forName(ClassLoader loader, String name) throws ClassNotFoundException {
+            ClassLoader effectiveLoader(ClassLoader loader) {
                 if ( loader == null ) {
                     loader = callerClass(NameStyle.class).getClassLoader();
                 }
+                return loader;
+            }
+
+            @Override
+            Class<?> resolve(ClassLoader loader, String name) throws ClassNotFoundException {
                 String search = name;
                 int arrayDepth = 0;
                 int pos = name.length() - 2;
@@ -157,7 +166,7 @@ public final class Classes {
          */
         BINARY {
             @Override
-            public Class<?> forName(ClassLoader loader, String name) throws ClassNotFoundException {
+            Class<?> resolve(ClassLoader loader, String name) throws ClassNotFoundException {
                 if ( name.length() == 0 ) {
                     throw new ClassNotFoundException("For binary name: " + name);
                 }
@@ -201,7 +210,7 @@ public final class Classes {
          */
         JVM {
             @Override
-            public Class<?> forName(ClassLoader loader, String name) throws ClassNotFoundException {
+            Class<?> resolve(ClassLoader loader, String name) throws ClassNotFoundException {
                 int arrayDepth = 0;
                 while ( arrayDepth < name.length() && name.charAt(arrayDepth) == '[' ) {
                     arrayDepth++;
@@ -324,11 +333,181 @@ public final class Classes {
             primitivesByBinary = map;
         }
 
+        /**
+         * The maximum number of cached names (and, separately, failures) per class
+         * loader. If a cache grows beyond this size, it will be cleared.
+         */
+        private static final int MAX_CACHE_SIZE = 4096;
+        private static final Object BOOTSTRAP = new Object();
+
+        /**
+         * Caches the resolved names per class loader. The class loaders are weakly
+         * referenced. The classes are weakly referenced, too, because a class references
+         * its class loader and would therefore keep the cache entry alive.
+         */
+        private final ConcurrentMap<Object, Names> cache = new MapMaker().weakKeys().makeMap();
+        private volatile boolean cacheFailures = false;
+
         private static boolean isArrayIndicator(String name, int pos) {
             return name.charAt(pos) == '[' && name.charAt(pos + 1) == ']';
         }
 
-        public abstract Class<?> forName(ClassLoader loader, String name) throws ClassNotFoundException;
+        /**
+         * Resolve a class name. Resolved classes are cached per class loader, so
+         * subsequent lookups of the same name are a simple hash lookup. Failures are
+         * only cached if {@link #setCacheFailures(boolean) enabled}, by default, a class
+         * that becomes available in a class loader later will be found.
+         *
+         * @param loader The class loader.
+         * @param name   The class name.
+         *
+         * @return The class.
+         *
+         * @throws ClassNotFoundException If the class cannot be found.
+         */
+        public Class<?> forName(ClassLoader loader, String name) throws ClassNotFoundException {
+            loader = effectiveLoader(loader);
+            Names names = names(loader);
+            Class<?> clazz = names.found(name);
+            if ( clazz == null ) {
+                if ( names.missing(name) ) {
+                    throw new ClassNotFoundException("For " + name().toLowerCase() + " name: " + name + " (cached)");
+                }
+                try {
+                    clazz = resolve(loader, name);
+                }
+                catch ( ClassNotFoundException e ) {
+                    names.failed(name);
+                    throw new ClassNotFoundException("For " + name().toLowerCase() + " name: " + name, e);
+                }
+                names.resolved(name, clazz);
+            }
+            return clazz;
+        }
+
+        /**
+         * Like {@link #forName(ClassLoader, String)}, but returns <code>null</code> instead
+         * of throwing an exception, if the class cannot be found.
+         *
+         * @param loader The class loader.
+         * @param name   The class name.
+         *
+         * @return The class or <code>null</code>.
+         */
+        @Nullable
+        public Class<?> find(ClassLoader loader, String name) {
+            loader = effectiveLoader(loader);
+            Names names = names(loader);
+            Class<?> clazz = names.found(name);
+            if ( clazz == null ) {
+                if ( names.missing(name) ) {
+                    return null;
+                }
+                try {
+                    clazz = resolve(loader, name);
+                }
+                catch ( ClassNotFoundException e ) {
+                    names.failed(name);
+                    return null;
+                }
+                names.resolved(name, clazz);
+            }
+            return clazz;
+        }
+
+        private Names names(ClassLoader loader) {
+            Object key = loader == null ? BOOTSTRAP : loader;
+            Names names = cache.get(key);
+            if ( names == null ) {
+                names = new Names();
+                Names prev = cache.putIfAbsent(key, names);
+                if ( prev != null ) {
+                    names = prev;
+                }
+            }
+            return names;
+        }
+
+        /**
+         * Enable or disable caching of failed lookups. Resolving a missing name is
+         * expensive, especially in {@link #NATURAL} style, where each candidate
+         * notation of an inner class throws a <code>ClassNotFoundException</code>.
+         * With failures cached, repeated lookups of a missing name are a hash lookup,
+         * but a class that becomes available later won't be found until the cache is
+         * cleared using {@link #clearCache()} or {@link #clearCache(ClassLoader)}.
+         *
+         * @param cacheFailures <code>true</code> to cache failed lookups.
+         */
+        public void setCacheFailures(boolean cacheFailures) {
+            this.cacheFailures = cacheFailures;
+            if ( !cacheFailures ) {
+                for ( Names names : cache.values() ) {
+                    names.missing.clear();
+                }
+            }
+        }
+
+        public boolean isCacheFailures() {
+            return cacheFailures;
+        }
+
+        /**
+         * Clear the cached names and failures for all class loaders.
+         */
+        public void clearCache() {
+            cache.clear();
+        }
+
+        /**
+         * Clear the cached names and failures for the given class loader.
+         *
+         * @param loader The class loader.
+         */
+        public void clearCache(@Nullable ClassLoader loader) {
+            cache.remove(loader == null ? BOOTSTRAP : loader);
+        }
+
+        ClassLoader effectiveLoader(ClassLoader loader) {
+            return loader;
+        }
+
+        abstract Class<?> resolve(ClassLoader loader, String name) throws ClassNotFoundException;
+
+        /**
+         * The cached names of one class loader. A lookup that races with
+         * {@link #clearCache()} only updates the discarded instance.
+         */
+        private final class Names {
+
+            private final ConcurrentMap<String, WeakReference<Class<?>>> found = new ConcurrentHashMap<String, WeakReference<Class<?>>>();
+            private final Set<String> missing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+            private Class<?> found(String name) {
+                WeakReference<Class<?>> cached = found.get(name);
+                return cached == null ? null : cached.get();
+            }
+
+            private boolean missing(String name) {
+                return cacheFailures && missing.contains(name);
+            }
+
+            private void resolved(String name, Class<?> clazz) {
+                if ( found.size() >= MAX_CACHE_SIZE ) {
+                    found.clear();
+                }
+                found.put(name, new WeakReference<Class<?>>(clazz));
+            }
+
+            private void failed(String name) {
+                if ( !cacheFailures ) {
+                    return;
+                }
+                if ( missing.size() >= MAX_CACHE_SIZE ) {
+                    missing.clear();
+                }
+                missing.add(name);
+            }
+        }
 
         public abstract String nameFor(Class<?> clazz, int arrayDepth);
 
@@ -414,17 +593,4 @@ public final class Classes {
 
     }
 
-    private final static class GetCallerSecurityManager extends SecurityManager {
-        @SuppressWarnings({ "ForLoopReplaceableByForEach" })
-        private Class<?> getCallerClass(Class<?> base) {
-            Class<?>[] context = getClassContext();
-            for ( int i = 0; i < context.length; i++ ) {
-                if ( !context[i].equals(Classes.class) && !context[i].equals(GetCallerSecurityManager.class) && !context[i].equals(base) ) {
-                    return context[i];
-                }
-            }
-            throw new IllegalStateException("Cannot determine caller from context " + asList(context));
-        }
-    }
-
 }
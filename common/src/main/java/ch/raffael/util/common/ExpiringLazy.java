@@ -0,0 +1,135 @@
+/*
+ * Copyright 2012 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.raffael.util.common;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.slf4j.Logger;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ch.raffael.util.common.logging.LogUtil;
+
+
+/**
+ * A {@link Lazy} that recomputes its value after a TTL. Only the first initialization
+ * blocks, after that, readers always get the current value immediately: The first
+ * reader that finds the value expired triggers a refresh, meanwhile, all readers get the
+ * stale value.
+ * <p/>
+ * The refresh runs on the given executor or, if there's none or it rejects the refresh,
+ * in the thread that triggered it. If the refresh fails, the failure is logged, the stale value is kept
+ * and the next reader will try again.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public abstract class ExpiringLazy<T> extends Lazy<T> {
+    private static final long serialVersionUID = 12022301L;
+
+    private static final Logger log = LogUtil.getLogger();
+    @SuppressWarnings("unchecked")
+    private static final AtomicIntegerFieldUpdater<ExpiringLazy<?>> REFRESHING =
+            (AtomicIntegerFieldUpdater<ExpiringLazy<?>>)(AtomicIntegerFieldUpdater<?>)AtomicIntegerFieldUpdater.newUpdater(ExpiringLazy.class, "refreshing");
+
+    private final long ttlNanos;
+    private transient final Executor executor;
+    private transient volatile int refreshing = 0;
+    private transient volatile Entry<T> entry;
+
+    protected ExpiringLazy(long ttl, @NotNull TimeUnit unit) {
+        this(ttl, unit, null);
+    }
+
+    protected ExpiringLazy(long ttl, @NotNull TimeUnit unit, @Nullable Executor executor) {
+        super(false);
+        this.ttlNanos = unit.toNanos(ttl);
+        this.executor = executor;
+    }
+
+    @Override
+    public T get() {
+        Entry<T> entry = this.entry;
+        if ( entry == null ) {
+            synchronized ( this ) {
+                entry = this.entry;
+                if ( entry == null ) {
+                    entry = new Entry<T>(createInstance(), System.nanoTime() + ttlNanos);
+                    this.entry = entry;
+                }
+            }
+        }
+        else if ( System.nanoTime() - entry.expires >= 0 && REFRESHING.compareAndSet(this, 0, 1) ) {
+            boolean inline = executor == null;
+            if ( !inline ) {
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            refresh();
+                        }
+                    });
+                }
+                catch ( RejectedExecutionException e ) {
+                    log.debug("Refresh of {} rejected by {}; refreshing inline", new Object[] { this, executor, e });
+                    inline = true;
+                }
+            }
+            if ( inline ) {
+                refresh();
+                entry = this.entry;
+            }
+        }
+        return entry.value;
+    }
+
+    /**
+     * Mark the current value as expired. The next call to {@link #get()} will trigger a
+     * refresh.
+     */
+    public void expire() {
+        Entry<T> entry = this.entry;
+        if ( entry != null ) {
+            this.entry = new Entry<T>(entry.value, System.nanoTime());
+        }
+    }
+
+    private void refresh() {
+        try {
+            T value = createInstance();
+            entry = new Entry<T>(value, System.nanoTime() + ttlNanos);
+        }
+        catch ( RuntimeException e ) {
+            log.warn("Error refreshing {}; keeping stale value", this, e);
+        }
+        finally {
+            refreshing = 0;
+        }
+    }
+
+    private static final class Entry<T> {
+        private final T value;
+        private final long expires;
+        private Entry(T value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+}
@@ -20,17 +20,28 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import com.google.common.base.Function;
 
 
 /**
+ * Lazily initializes a value using double-checked locking. Readers are blocked while
+ * {@link #createInstance()} runs.
+ *
+ * @see RacyLazy
+ * @see AsyncLazy
+ * @see ExpiringLazy
+ *
  * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
  */
 public abstract class Lazy<T> implements Serializable {
     private static final long serialVersionUID = 12022301L;
 
-    private static final Object UNINITIALIZED = Uninitialized.UNINITIALIZED;
+    static final Object UNINITIALIZED = Uninitialized.UNINITIALIZED;
+    @SuppressWarnings("unchecked")
+    static final AtomicReferenceFieldUpdater<Lazy<?>, Object> INSTANCE =
+            (AtomicReferenceFieldUpdater<Lazy<?>, Object>)(AtomicReferenceFieldUpdater<?, Object>)AtomicReferenceFieldUpdater.newUpdater(Lazy.class, Object.class, "instance");
 
     private final boolean serializeValue;
     private transient volatile Object instance = UNINITIALIZED;
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2012 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.raffael.util.common;
+
+/**
+ * A {@link Lazy} that never blocks: If several threads find the value uninitialized,
+ * all of them call {@link #createInstance()}, the first result wins and the other
+ * results are discarded. Use this for cheap, idempotent factories only.
+ * <p/>
+ * Because there's no locking, nested racy lazies cannot deadlock.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public abstract class RacyLazy<T> extends Lazy<T> {
+    private static final long serialVersionUID = 12022301L;
+
+    protected RacyLazy() {
+        super();
+    }
+
+    protected RacyLazy(boolean serializeValue) {
+        super(serializeValue);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get() {
+        Object instance = INSTANCE.get(this);
+        if ( instance == UNINITIALIZED ) {
+            instance = createInstance();
+            if ( !INSTANCE.compareAndSet(this, UNINITIALIZED, instance) ) {
+                instance = INSTANCE.get(this);
+            }
+        }
+        return (T)instance;
+    }
+
+}
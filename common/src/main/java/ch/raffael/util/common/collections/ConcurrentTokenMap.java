@@ -0,0 +1,78 @@
+package ch.raffael.util.common.collections;
+
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+
+
+/**
+ * A thread-safe {@link SlotTokenMap}. The values are kept in a copy-on-write array:
+ * Reads are lock-free and don't allocate any memory, writes copy the array. Use it for
+ * maps that are read a lot more often than they're written, like contexts or service
+ * registries.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public class ConcurrentTokenMap extends SlotTokenMap {
+    private static final long serialVersionUID = 13011001L;
+
+    private transient volatile Object[] values = EMPTY;
+
+    @Override
+    protected synchronized void putAll(Map<Key, Object> map) {
+        super.putAll(map);
+    }
+
+    @Override
+    protected synchronized void putAllAbsent(Map<Key, Object> map) {
+        super.putAllAbsent(map);
+    }
+
+    /**
+     * @return <code>this</code>, as this map is already thread-safe.
+     */
+    @NotNull
+    @Override
+    public TokenMap synchronize() {
+        return this;
+    }
+
+    @Override
+    Object[] values() {
+        return values;
+    }
+
+    @Override
+    Object valueAt(int index) {
+        Object[] values = this.values;
+        return 2 * index + 1 < values.length ? values[2 * index + 1] : null;
+    }
+
+    @Override
+    synchronized Object store(TokenSlot<?> slot, Object value) {
+        int index = slot.getIndex();
+        Object[] values = this.values;
+        if ( 2 * index + 1 >= values.length ) {
+            if ( value == null ) {
+                return null;
+            }
+            values = grow(values, index);
+        }
+        else {
+            Object[] copy = new Object[values.length];
+            System.arraycopy(values, 0, copy, 0, values.length);
+            values = copy;
+        }
+        Object prev = values[2 * index + 1];
+        values[2 * index] = value == null ? null : slot;
+        values[2 * index + 1] = value;
+        this.values = values;
+        return prev;
+    }
+
+    @Override
+    void setValues(Object[] values) {
+        this.values = values;
+    }
+
+}
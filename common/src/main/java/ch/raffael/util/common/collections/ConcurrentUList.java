@@ -0,0 +1,135 @@
+/*
+ * Copyright 2012 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.raffael.util.common.collections;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+
+/**
+ * A copy-on-write {@link UList} for sharing a list between a writer and many readers.
+ * Reads don't lock and always see a consistent snapshot. The snapshot is a
+ * {@link PersistentVector}: Appending and replacing elements is O(log<sub>32</sub> n),
+ * all other modifications copy the list (O(n)) and publish the copy.
+ * <p/>
+ * {@link #unmodifiable()} returns the current snapshot in O(1). Unlike the live view
+ * returned by {@link UList#unmodifiable()}, the snapshot will never change. Iterators
+ * and sub-lists are based on a snapshot, too, and therefore don't support modifications.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public class ConcurrentUList<T> extends UList<T> {
+    private static final long serialVersionUID = 12022401L;
+
+    private volatile PersistentVector<T> snapshot;
+
+    public ConcurrentUList() {
+        this(PersistentVector.<T>empty());
+    }
+
+    public ConcurrentUList(Collection<? extends T> contents) {
+        super(null, null);
+        snapshot = PersistentVector.copyOf(contents);
+    }
+
+    @Override
+    protected List<T> delegate() {
+        return snapshot;
+    }
+
+    @Override
+    public PersistentVector<T> unmodifiable() {
+        return snapshot;
+    }
+
+    @Override
+    public synchronized boolean add(T element) {
+        snapshot = snapshot.plus(element);
+        return true;
+    }
+
+    @Override
+    public synchronized void add(int index, T element) {
+        ArrayList<T> copy = copy();
+        copy.add(index, element);
+        publish(copy);
+    }
+
+    @Override
+    public synchronized boolean addAll(Collection<? extends T> collection) {
+        if ( collection.isEmpty() ) {
+            return false;
+        }
+        snapshot = snapshot.plusAll(collection);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean addAll(int index, Collection<? extends T> elements) {
+        ArrayList<T> copy = copy();
+        return copy.addAll(index, elements) && publish(copy);
+    }
+
+    @Override
+    public synchronized T set(int index, T element) {
+        PersistentVector<T> current = snapshot;
+        T prev = current.get(index);
+        snapshot = current.with(index, element);
+        return prev;
+    }
+
+    @Override
+    public synchronized T remove(int index) {
+        ArrayList<T> copy = copy();
+        T prev = copy.remove(index);
+        publish(copy);
+        return prev;
+    }
+
+    @Override
+    public synchronized boolean remove(Object object) {
+        ArrayList<T> copy = copy();
+        return copy.remove(object) && publish(copy);
+    }
+
+    @Override
+    public synchronized boolean removeAll(Collection<?> collection) {
+        ArrayList<T> copy = copy();
+        return copy.removeAll(collection) && publish(copy);
+    }
+
+    @Override
+    public synchronized boolean retainAll(Collection<?> collection) {
+        ArrayList<T> copy = copy();
+        return copy.retainAll(collection) && publish(copy);
+    }
+
+    @Override
+    public synchronized void clear() {
+        snapshot = PersistentVector.empty();
+    }
+
+    private ArrayList<T> copy() {
+        return new ArrayList<T>(snapshot);
+    }
+
+    private boolean publish(ArrayList<T> copy) {
+        snapshot = PersistentVector.copyOf(copy);
+        return true;
+    }
+
+}
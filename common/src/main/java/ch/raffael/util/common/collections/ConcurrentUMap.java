@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.raffael.util.common.collections;
+
+import java.util.Map;
+
+
+/**
+ * A copy-on-write {@link UMap} for sharing a map between a writer and many readers.
+ * Reads don't lock and always see a consistent snapshot. The snapshot is a
+ * {@link PersistentMap}, so a modification copies only the path to the affected node
+ * (O(log<sub>32</sub> n)) instead of the whole map.
+ * <p/>
+ * {@link #unmodifiable()} returns the current snapshot in O(1). Unlike the live view
+ * returned by {@link UMap#unmodifiable()}, the snapshot will never change. The key set,
+ * values and entry set are based on a snapshot, too, and therefore don't support
+ * modifications.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public class ConcurrentUMap<K, V> extends UMap<K, V> {
+    private static final long serialVersionUID = 12022401L;
+
+    private volatile PersistentMap<K, V> snapshot;
+
+    public ConcurrentUMap() {
+        this(PersistentMap.<K, V>empty());
+    }
+
+    public ConcurrentUMap(Map<? extends K, ? extends V> contents) {
+        super(null, null);
+        snapshot = PersistentMap.copyOf(contents);
+    }
+
+    @Override
+    protected Map<K, V> delegate() {
+        return snapshot;
+    }
+
+    @Override
+    public PersistentMap<K, V> unmodifiable() {
+        return snapshot;
+    }
+
+    @Override
+    public synchronized V put(K key, V value) {
+        PersistentMap<K, V> current = snapshot;
+        V prev = current.get(key);
+        snapshot = current.plus(key, value);
+        return prev;
+    }
+
+    @Override
+    public synchronized void putAll(Map<? extends K, ? extends V> map) {
+        snapshot = snapshot.builder().putAll(map).build();
+    }
+
+    @Override
+    public synchronized V remove(Object object) {
+        PersistentMap<K, V> current = snapshot;
+        V prev = current.get(object);
+        snapshot = current.minus(object);
+        return prev;
+    }
+
+    @Override
+    public synchronized void clear() {
+        snapshot = PersistentMap.empty();
+    }
+
+}
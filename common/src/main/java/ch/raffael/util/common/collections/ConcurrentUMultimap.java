@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.raffael.util.common.collections;
+
+import java.util.Collection;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
+
+
+/**
+ * A copy-on-write {@link UMultimap} for sharing a multimap between a writer and many
+ * readers. Reads don't lock and always see a consistent snapshot, each modification
+ * copies the multimap (O(n)) and publishes the copy.
+ * <p/>
+ * {@link #unmodifiable()} returns the current snapshot in O(1). Unlike the live view
+ * returned by {@link UMultimap#unmodifiable()}, the snapshot will never change. All
+ * collections returned are based on a snapshot, too, and therefore don't support
+ * modifications.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public class ConcurrentUMultimap<K, V> extends UMultimap<K, V> {
+    private static final long serialVersionUID = 12022401L;
+
+    private volatile Multimap<K, V> snapshot;
+
+    public ConcurrentUMultimap() {
+        this(HashMultimap.<K, V>create());
+    }
+
+    public ConcurrentUMultimap(Multimap<? extends K, ? extends V> contents) {
+        super(null, null);
+        snapshot = Multimaps.unmodifiableMultimap(HashMultimap.<K, V>create(contents));
+    }
+
+    @Override
+    protected Multimap<K, V> delegate() {
+        return snapshot;
+    }
+
+    @Override
+    public Multimap<K, V> unmodifiable() {
+        return snapshot;
+    }
+
+    @Override
+    public synchronized boolean put(K key, V value) {
+        HashMultimap<K, V> copy = copy();
+        return copy.put(key, value) && publish(copy);
+    }
+
+    @Override
+    public synchronized boolean putAll(K key, Iterable<? extends V> values) {
+        HashMultimap<K, V> copy = copy();
+        return copy.putAll(key, values) && publish(copy);
+    }
+
+    @Override
+    public synchronized boolean putAll(Multimap<? extends K, ? extends V> multimap) {
+        HashMultimap<K, V> copy = copy();
+        return copy.putAll(multimap) && publish(copy);
+    }
+
+    @Override
+    public synchronized boolean remove(Object key, Object value) {
+        HashMultimap<K, V> copy = copy();
+        return copy.remove(key, value) && publish(copy);
+    }
+
+    @Override
+    public synchronized Collection<V> removeAll(Object key) {
+        HashMultimap<K, V> copy = copy();
+        Collection<V> removed = copy.removeAll(key);
+        publish(copy);
+        return removed;
+    }
+
+    @Override
+    public synchronized Collection<V> replaceValues(K key, Iterable<? extends V> values) {
+        HashMultimap<K, V> copy = copy();
+        Collection<V> removed = copy.replaceValues(key, values);
+        publish(copy);
+        return removed;
+    }
+
+    @Override
+    public synchronized void clear() {
+        publish(HashMultimap.<K, V>create());
+    }
+
+    private HashMultimap<K, V> copy() {
+        return HashMultimap.create(snapshot);
+    }
+
+    private boolean publish(HashMultimap<K, V> copy) {
+        snapshot = Multimaps.unmodifiableMultimap(copy);
+        return true;
+    }
+
+}
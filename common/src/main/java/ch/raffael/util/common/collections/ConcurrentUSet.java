@@ -0,0 +1,106 @@
+/*
+ * Copyright 2012 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.raffael.util.common.collections;
+
+import java.util.Collection;
+import java.util.Set;
+
+
+/**
+ * A copy-on-write {@link USet} for sharing a set between a writer and many readers.
+ * Reads don't lock and always see a consistent snapshot. The snapshot is a
+ * {@link PersistentSet}, so adding or removing an element is O(log<sub>32</sub> n)
+ * instead of copying the whole set.
+ * <p/>
+ * {@link #unmodifiable()} returns the current snapshot in O(1). Unlike the live view
+ * returned by {@link USet#unmodifiable()}, the snapshot will never change. Iterators are
+ * based on a snapshot, too, and therefore don't support modifications.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public class ConcurrentUSet<T> extends USet<T> {
+    private static final long serialVersionUID = 12022401L;
+
+    private volatile PersistentSet<T> snapshot;
+
+    public ConcurrentUSet() {
+        this(PersistentSet.<T>empty());
+    }
+
+    public ConcurrentUSet(Collection<? extends T> contents) {
+        super(null, null);
+        snapshot = PersistentSet.copyOf(contents);
+    }
+
+    @Override
+    protected Set<T> delegate() {
+        return snapshot;
+    }
+
+    @Override
+    public PersistentSet<T> unmodifiable() {
+        return snapshot;
+    }
+
+    @Override
+    public synchronized boolean add(T element) {
+        return publish(snapshot.plus(element));
+    }
+
+    @Override
+    public synchronized boolean addAll(Collection<? extends T> collection) {
+        return publish(snapshot.plusAll(collection));
+    }
+
+    @Override
+    public synchronized boolean remove(Object object) {
+        return publish(snapshot.minus(object));
+    }
+
+    @Override
+    public synchronized boolean removeAll(Collection<?> collection) {
+        PersistentSet.Builder<T> builder = snapshot.builder();
+        for ( Object element : collection ) {
+            builder.remove(element);
+        }
+        return publish(builder.build());
+    }
+
+    @Override
+    public synchronized boolean retainAll(Collection<?> collection) {
+        PersistentSet.Builder<T> builder = snapshot.builder();
+        for ( T element : snapshot ) {
+            if ( !collection.contains(element) ) {
+                builder.remove(element);
+            }
+        }
+        return publish(builder.build());
+    }
+
+    @Override
+    public synchronized void clear() {
+        snapshot = PersistentSet.empty();
+    }
+
+    private boolean publish(PersistentSet<T> set) {
+        if ( set.size() == snapshot.size() ) {
+            return false;
+        }
+        snapshot = set;
+        return true;
+    }
+
+}
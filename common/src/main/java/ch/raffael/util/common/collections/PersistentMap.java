@@ -0,0 +1,606 @@
+/*
+ * Copyright 2012 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.raffael.util.common.collections;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.jetbrains.annotations.NotNull;
+
+
+/**
+ * An immutable hash map with structural sharing, implemented as a hash array mapped
+ * trie (HAMT): Each node consumes 5 bits of the hash code and stores up to 32 entries or
+ * sub-nodes in a compact array indexed by a bitmap. Adding and removing entries is
+ * O(log<sub>32</sub> n) and copies only the path to the affected node.
+ * <p/>
+ * Use a {@link Builder} for batch updates: A builder modifies the nodes it created
+ * itself in place and copies shared nodes only once.
+ * <p/>
+ * The map implements the <code>java.util.Map</code> interface, all mutators of that
+ * interface throw an <code>UnsupportedOperationException</code>. Null keys and values
+ * are supported. The iteration order is unspecified.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public final class PersistentMap<K, V> extends AbstractMap<K, V> implements Serializable {
+    private static final long serialVersionUID = 12022401L;
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    /**
+     * Marks a sub-node in a node's array: <code>[SUB_NODE, node]</code> instead of
+     * <code>[key, value]</code>.
+     */
+    private static final Object SUB_NODE = new Object();
+    private static final Object NOT_FOUND = new Object();
+
+    private static final PersistentMap<Object, Object> EMPTY = new PersistentMap<Object, Object>(0, null);
+
+    private final int size;
+    private final Node root;
+    private transient Set<Entry<K, V>> entrySet;
+
+    private PersistentMap(int size, Node root) {
+        this.size = size;
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    @NotNull
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>)EMPTY;
+    }
+
+    @SuppressWarnings("unchecked")
+    @NotNull
+    public static <K, V> PersistentMap<K, V> copyOf(@NotNull Map<? extends K, ? extends V> map) {
+        if ( map instanceof PersistentMap ) {
+            return (PersistentMap<K, V>)map;
+        }
+        return PersistentMap.<K, V>empty().builder().putAll(map).build();
+    }
+
+    @NotNull
+    public Builder<K, V> builder() {
+        return new Builder<K, V>(this);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(Object key) {
+        Object value = find(key);
+        return value == NOT_FOUND ? null : (V)value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) != NOT_FOUND;
+    }
+
+    private Object find(Object key) {
+        return root == null ? NOT_FOUND : root.find(0, hash(key), key);
+    }
+
+    /**
+     * @return A map with the given mapping added or replaced.
+     */
+    @NotNull
+    public PersistentMap<K, V> plus(K key, V value) {
+        Box added = new Box();
+        Node newRoot = (root == null ? BitmapNode.EMPTY : root).assoc(null, 0, hash(key), key, value, added);
+        if ( newRoot == root ) {
+            return this;
+        }
+        return new PersistentMap<K, V>(added.value ? size + 1 : size, newRoot);
+    }
+
+    /**
+     * @return A map without the given key.
+     */
+    @NotNull
+    public PersistentMap<K, V> minus(Object key) {
+        if ( root == null ) {
+            return this;
+        }
+        Box removed = new Box();
+        Node newRoot = root.without(null, 0, hash(key), key, removed);
+        if ( !removed.value ) {
+            return this;
+        }
+        return newRoot == null ? PersistentMap.<K, V>empty() : new PersistentMap<K, V>(size - 1, newRoot);
+    }
+
+    @NotNull
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        if ( entrySet == null ) {
+            entrySet = new AbstractSet<Entry<K, V>>() {
+                @NotNull
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    return new EntryIterator<K, V>(root);
+                }
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    private Object writeReplace() {
+        Object[] keyValues = new Object[size * 2];
+        int i = 0;
+        for ( Entry<K, V> entry : entrySet() ) {
+            keyValues[i++] = entry.getKey();
+            keyValues[i++] = entry.getValue();
+        }
+        return new SerializedForm(keyValues);
+    }
+
+    static int hash(Object key) {
+        if ( key == null ) {
+            return 0;
+        }
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == b || (a != null && a.equals(b));
+    }
+
+    private static Node createNode(Object edit, int shift, Object key1, Object value1, int hash2, Object key2, Object value2) {
+        int hash1 = hash(key1);
+        if ( hash1 == hash2 ) {
+            return new CollisionNode(edit, hash1, 2, new Object[] { key1, value1, key2, value2 });
+        }
+        Box added = new Box();
+        return BitmapNode.EMPTY
+                .assoc(edit, shift, hash1, key1, value1, added)
+                .assoc(edit, shift, hash2, key2, value2, added);
+    }
+
+    private static final class Box {
+        private boolean value;
+    }
+
+    /**
+     * A node of the trie. Nodes created by a builder are tagged with the builder's edit
+     * token and may be modified in place by that builder. The fields are written only
+     * before the node is published through a map's final field.
+     */
+    private static abstract class Node {
+        final Object edit;
+        Object[] array;
+
+        Node(Object edit, Object[] array) {
+            this.edit = edit;
+            this.array = array;
+        }
+
+        /**
+         * @return The number of key/value pairs (or sub-nodes) in the array.
+         */
+        abstract int pairs();
+
+        abstract Object find(int shift, int hash, Object key);
+
+        abstract Node assoc(Object edit, int shift, int hash, Object key, Object value, Box added);
+
+        abstract Node without(Object edit, int shift, int hash, Object key, Box removed);
+
+        boolean isEditable(Object edit) {
+            return edit != null && this.edit == edit;
+        }
+    }
+
+    private static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(null, 0, new Object[0]);
+
+        int bitmap;
+
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            super(edit, array);
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        int pairs() {
+            return Integer.bitCount(bitmap);
+        }
+
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int bit = bit(hash, shift);
+            if ( (bitmap & bit) == 0 ) {
+                return NOT_FOUND;
+            }
+            int index = index(bit);
+            Object k = array[2 * index];
+            Object v = array[2 * index + 1];
+            if ( k == SUB_NODE ) {
+                return ((Node)v).find(shift + BITS, hash, key);
+            }
+            return equal(key, k) ? v : NOT_FOUND;
+        }
+
+        @Override
+        Node assoc(Object edit, int shift, int hash, Object key, Object value, Box added) {
+            int bit = bit(hash, shift);
+            int index = index(bit);
+            if ( (bitmap & bit) != 0 ) {
+                Object k = array[2 * index];
+                Object v = array[2 * index + 1];
+                if ( k == SUB_NODE ) {
+                    Node node = ((Node)v).assoc(edit, shift + BITS, hash, key, value, added);
+                    return node == v ? this : set(edit, 2 * index + 1, node);
+                }
+                if ( equal(key, k) ) {
+                    return v == value ? this : set(edit, 2 * index + 1, value);
+                }
+                added.value = true;
+                Node node = createNode(edit, shift + BITS, k, v, hash, key, value);
+                BitmapNode result = (BitmapNode)set(edit, 2 * index, SUB_NODE);
+                result.array[2 * index + 1] = node;
+                return result;
+            }
+            added.value = true;
+            int pairs = pairs();
+            if ( isEditable(edit) && array.length > 2 * pairs ) {
+                System.arraycopy(array, 2 * index, array, 2 * (index + 1), 2 * (pairs - index));
+                array[2 * index] = key;
+                array[2 * index + 1] = value;
+                bitmap |= bit;
+                return this;
+            }
+            // leave some room for further additions when building
+            Object[] newArray = new Object[2 * (pairs + (edit == null ? 1 : 4))];
+            System.arraycopy(array, 0, newArray, 0, 2 * index);
+            newArray[2 * index] = key;
+            newArray[2 * index + 1] = value;
+            System.arraycopy(array, 2 * index, newArray, 2 * (index + 1), 2 * (pairs - index));
+            if ( isEditable(edit) ) {
+                array = newArray;
+                bitmap |= bit;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap | bit, newArray);
+        }
+
+        @Override
+        Node without(Object edit, int shift, int hash, Object key, Box removed) {
+            int bit = bit(hash, shift);
+            if ( (bitmap & bit) == 0 ) {
+                return this;
+            }
+            int index = index(bit);
+            Object k = array[2 * index];
+            Object v = array[2 * index + 1];
+            if ( k == SUB_NODE ) {
+                Node node = ((Node)v).without(edit, shift + BITS, hash, key, removed);
+                if ( node == v ) {
+                    return this;
+                }
+                if ( node != null ) {
+                    return set(edit, 2 * index + 1, node);
+                }
+            }
+            else if ( equal(key, k) ) {
+                removed.value = true;
+            }
+            else {
+                return this;
+            }
+            if ( bitmap == bit ) {
+                return null;
+            }
+            int pairs = pairs();
+            if ( isEditable(edit) ) {
+                System.arraycopy(array, 2 * (index + 1), array, 2 * index, 2 * (pairs - index - 1));
+                array[2 * pairs - 2] = null;
+                array[2 * pairs - 1] = null;
+                bitmap ^= bit;
+                return this;
+            }
+            Object[] newArray = new Object[2 * (pairs - 1)];
+            System.arraycopy(array, 0, newArray, 0, 2 * index);
+            System.arraycopy(array, 2 * (index + 1), newArray, 2 * index, 2 * (pairs - index - 1));
+            return new BitmapNode(edit, bitmap ^ bit, newArray);
+        }
+
+        private Node set(Object edit, int index, Object value) {
+            if ( isEditable(edit) ) {
+                array[index] = value;
+                return this;
+            }
+            Object[] newArray = array.clone();
+            newArray[index] = value;
+            return new BitmapNode(edit, bitmap, newArray);
+        }
+    }
+
+    /**
+     * Holds entries whose keys have the same hash code.
+     */
+    private static final class CollisionNode extends Node {
+
+        final int hash;
+        int count;
+
+        CollisionNode(Object edit, int hash, int count, Object[] array) {
+            super(edit, array);
+            this.hash = hash;
+            this.count = count;
+        }
+
+        @Override
+        int pairs() {
+            return count;
+        }
+
+        private int indexOf(Object key) {
+            for ( int i = 0; i < count; i++ ) {
+                if ( equal(key, array[2 * i]) ) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int index = indexOf(key);
+            return index < 0 ? NOT_FOUND : array[2 * index + 1];
+        }
+
+        @Override
+        Node assoc(Object edit, int shift, int hash, Object key, Object value, Box added) {
+            if ( hash != this.hash ) {
+                // nest this node in a bitmap node and add the new entry there
+                return new BitmapNode(edit, 1 << ((this.hash >>> shift) & MASK), new Object[] { SUB_NODE, this })
+                        .assoc(edit, shift, hash, key, value, added);
+            }
+            int index = indexOf(key);
+            if ( index >= 0 ) {
+                if ( array[2 * index + 1] == value ) {
+                    return this;
+                }
+                if ( isEditable(edit) ) {
+                    array[2 * index + 1] = value;
+                    return this;
+                }
+                Object[] newArray = array.clone();
+                newArray[2 * index + 1] = value;
+                return new CollisionNode(edit, hash, count, newArray);
+            }
+            added.value = true;
+            Object[] newArray = array;
+            if ( !isEditable(edit) || array.length <= 2 * count ) {
+                newArray = new Object[2 * (count + 1)];
+                System.arraycopy(array, 0, newArray, 0, 2 * count);
+            }
+            newArray[2 * count] = key;
+            newArray[2 * count + 1] = value;
+            if ( isEditable(edit) ) {
+                array = newArray;
+                count++;
+                return this;
+            }
+            return new CollisionNode(edit, hash, count + 1, newArray);
+        }
+
+        @Override
+        Node without(Object edit, int shift, int hash, Object key, Box removed) {
+            int index = indexOf(key);
+            if ( index < 0 ) {
+                return this;
+            }
+            removed.value = true;
+            if ( count == 1 ) {
+                return null;
+            }
+            Object[] newArray = new Object[2 * (count - 1)];
+            System.arraycopy(array, 0, newArray, 0, 2 * index);
+            System.arraycopy(array, 2 * (index + 1), newArray, 2 * index, 2 * (count - index - 1));
+            if ( isEditable(edit) ) {
+                array = newArray;
+                count--;
+                return this;
+            }
+            return new CollisionNode(edit, hash, count - 1, newArray);
+        }
+    }
+
+    /**
+     * Iterates the entries depth-first using an explicit stack of node arrays.
+     */
+    private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+
+        // the depth is limited to 7 levels of bitmap nodes plus one collision node
+        private final Node[] nodes = new Node[8];
+        private final int[] positions = new int[8];
+        private int depth = -1;
+        private Entry<K, V> next;
+
+        private EntryIterator(Node root) {
+            if ( root != null ) {
+                push(root);
+            }
+            advance();
+        }
+
+        private void push(Node node) {
+            depth++;
+            nodes[depth] = node;
+            positions[depth] = 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while ( depth >= 0 ) {
+                Node node = nodes[depth];
+                int pos = positions[depth];
+                if ( pos >= node.pairs() ) {
+                    nodes[depth] = null;
+                    depth--;
+                    continue;
+                }
+                positions[depth] = pos + 1;
+                Object key = node.array[2 * pos];
+                Object value = node.array[2 * pos + 1];
+                if ( key == SUB_NODE ) {
+                    push((Node)value);
+                }
+                else {
+                    next = new SimpleImmutableEntry<K, V>((K)key, (V)value);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if ( next == null ) {
+                throw new NoSuchElementException();
+            }
+            Entry<K, V> result = next;
+            advance();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Builds a map by modifying its own nodes in place. A builder must not be used by
+     * several threads concurrently. It may be used further after calling
+     * {@link #build()}, the built map won't be affected.
+     */
+    public static final class Builder<K, V> {
+
+        private Object edit = new Object();
+        private int size;
+        private Node root;
+
+        private Builder(PersistentMap<K, V> map) {
+            size = map.size;
+            root = map.root;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V get(Object key) {
+            Object value = root == null ? NOT_FOUND : root.find(0, hash(key), key);
+            return value == NOT_FOUND ? null : (V)value;
+        }
+
+        public boolean containsKey(Object key) {
+            return root != null && root.find(0, hash(key), key) != NOT_FOUND;
+        }
+
+        @NotNull
+        public Builder<K, V> put(K key, V value) {
+            Box added = new Box();
+            root = (root == null ? BitmapNode.EMPTY : root).assoc(edit, 0, hash(key), key, value, added);
+            if ( added.value ) {
+                size++;
+            }
+            return this;
+        }
+
+        @NotNull
+        public Builder<K, V> putAll(@NotNull Map<? extends K, ? extends V> map) {
+            for ( Map.Entry<? extends K, ? extends V> entry : map.entrySet() ) {
+                put(entry.getKey(), entry.getValue());
+            }
+            return this;
+        }
+
+        @NotNull
+        public Builder<K, V> remove(Object key) {
+            if ( root != null ) {
+                Box removed = new Box();
+                root = root.without(edit, 0, hash(key), key, removed);
+                if ( removed.value ) {
+                    size--;
+                }
+            }
+            return this;
+        }
+
+        @NotNull
+        public PersistentMap<K, V> build() {
+            if ( size == 0 ) {
+                return empty();
+            }
+            PersistentMap<K, V> map = new PersistentMap<K, V>(size, root);
+            // from now on, all nodes are shared with the map
+            edit = new Object();
+            return map;
+        }
+    }
+
+    private static final class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 12022401L;
+        private final Object[] keyValues;
+        private SerializedForm(Object[] keyValues) {
+            this.keyValues = keyValues;
+        }
+        private Object readResolve() {
+            Builder<Object, Object> builder = PersistentMap.empty().builder();
+            for ( int i = 0; i < keyValues.length; i += 2 ) {
+                builder.put(keyValues[i], keyValues[i + 1]);
+            }
+            return builder.build();
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2012 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.raffael.util.common.collections;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.jetbrains.annotations.NotNull;
+
+
+/**
+ * An immutable hash set with structural sharing, backed by a {@link PersistentMap}.
+ * Adding and removing elements is O(log<sub>32</sub> n).
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public final class PersistentSet<T> extends AbstractSet<T> implements Serializable {
+    private static final long serialVersionUID = 12022401L;
+
+    private static final PersistentSet<Object> EMPTY = new PersistentSet<Object>(PersistentMap.<Object, Boolean>empty());
+
+    private final PersistentMap<T, Boolean> map;
+
+    private PersistentSet(PersistentMap<T, Boolean> map) {
+        this.map = map;
+    }
+
+    @SuppressWarnings("unchecked")
+    @NotNull
+    public static <T> PersistentSet<T> empty() {
+        return (PersistentSet<T>)EMPTY;
+    }
+
+    // the array is only read, so this is safe (@SafeVarargs needs Java 7)
+    @SuppressWarnings("unchecked")
+    @NotNull
+    public static <T> PersistentSet<T> of(T... elements) {
+        Builder<T> builder = PersistentSet.<T>empty().builder();
+        for ( T element : elements ) {
+            builder.add(element);
+        }
+        return builder.build();
+    }
+
+    @SuppressWarnings("unchecked")
+    @NotNull
+    public static <T> PersistentSet<T> copyOf(@NotNull Iterable<? extends T> elements) {
+        if ( elements instanceof PersistentSet ) {
+            return (PersistentSet<T>)elements;
+        }
+        return PersistentSet.<T>empty().builder().addAll(elements).build();
+    }
+
+    @NotNull
+    public Builder<T> builder() {
+        return new Builder<T>(map.builder());
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return map.containsKey(o);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<T> iterator() {
+        return map.keySet().iterator();
+    }
+
+    /**
+     * @return A set with the given element added.
+     */
+    @NotNull
+    public PersistentSet<T> plus(T element) {
+        return wrap(map.plus(element, Boolean.TRUE));
+    }
+
+    /**
+     * @return A set with the given elements added.
+     */
+    @NotNull
+    public PersistentSet<T> plusAll(@NotNull Collection<? extends T> elements) {
+        return builder().addAll(elements).build();
+    }
+
+    /**
+     * @return A set without the given element.
+     */
+    @NotNull
+    public PersistentSet<T> minus(Object element) {
+        return wrap(map.minus(element));
+    }
+
+    private PersistentSet<T> wrap(PersistentMap<T, Boolean> newMap) {
+        if ( newMap == map ) {
+            return this;
+        }
+        return newMap.isEmpty() ? PersistentSet.<T>empty() : new PersistentSet<T>(newMap);
+    }
+
+    private Object readResolve() {
+        return map.isEmpty() ? empty() : this;
+    }
+
+    /**
+     * Builds a set by modifying its own nodes in place, see {@link PersistentMap.Builder}.
+     */
+    public static final class Builder<T> {
+
+        private final PersistentMap.Builder<T, Boolean> map;
+
+        private Builder(PersistentMap.Builder<T, Boolean> map) {
+            this.map = map;
+        }
+
+        public int size() {
+            return map.size();
+        }
+
+        public boolean contains(Object element) {
+            return map.containsKey(element);
+        }
+
+        @NotNull
+        public Builder<T> add(T element) {
+            map.put(element, Boolean.TRUE);
+            return this;
+        }
+
+        @NotNull
+        public Builder<T> addAll(@NotNull Iterable<? extends T> elements) {
+            for ( T element : elements ) {
+                add(element);
+            }
+            return this;
+        }
+
+        @NotNull
+        public Builder<T> remove(Object element) {
+            map.remove(element);
+            return this;
+        }
+
+        @NotNull
+        public PersistentSet<T> build() {
+            PersistentMap<T, Boolean> built = map.build();
+            return built.isEmpty() ? PersistentSet.<T>empty() : new PersistentSet<T>(built);
+        }
+    }
+
+}
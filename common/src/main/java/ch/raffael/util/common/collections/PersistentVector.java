@@ -0,0 +1,464 @@
+/*
+ * Copyright 2012 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.raffael.util.common.collections;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+import org.jetbrains.annotations.NotNull;
+
+
+/**
+ * An immutable list with structural sharing. The elements are stored in a 32-way trie
+ * with the last (up to) 32 elements in a separate tail array, so appending, replacing
+ * and removing the last element are O(log<sub>32</sub> n) and copy only the path to
+ * the affected leaf. Lookups by index are effectively constant time.
+ * <p/>
+ * Use a {@link Builder} for batch updates: A builder modifies the nodes it created
+ * itself in place and copies shared nodes only once.
+ * <p/>
+ * The list implements the <code>java.util.List</code> interface, all mutators of that
+ * interface throw an <code>UnsupportedOperationException</code>. Null elements are
+ * supported.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public final class PersistentVector<T> extends AbstractList<T> implements RandomAccess, Serializable {
+    private static final long serialVersionUID = 12022401L;
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private static final Node EMPTY_NODE = new Node(null, new Object[WIDTH]);
+    private static final PersistentVector<Object> EMPTY = new PersistentVector<Object>(0, BITS, EMPTY_NODE, new Object[0]);
+
+    private final int size;
+    private final int shift;
+    private final Node root;
+    private final Object[] tail;
+
+    private PersistentVector(int size, int shift, Node root, Object[] tail) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    @SuppressWarnings("unchecked")
+    @NotNull
+    public static <T> PersistentVector<T> empty() {
+        return (PersistentVector<T>)EMPTY;
+    }
+
+    // the array is only read, so this is safe (@SafeVarargs needs Java 7)
+    @SuppressWarnings("unchecked")
+    @NotNull
+    public static <T> PersistentVector<T> of(T... elements) {
+        return copyOf(Arrays.asList(elements));
+    }
+
+    @SuppressWarnings("unchecked")
+    @NotNull
+    public static <T> PersistentVector<T> copyOf(@NotNull Iterable<? extends T> elements) {
+        if ( elements instanceof PersistentVector ) {
+            return (PersistentVector<T>)elements;
+        }
+        Builder<T> builder = PersistentVector.<T>empty().builder();
+        for ( T element : elements ) {
+            builder.add(element);
+        }
+        return builder.build();
+    }
+
+    @NotNull
+    public Builder<T> builder() {
+        return new Builder<T>(this);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T get(int index) {
+        checkIndex(index);
+        return (T)arrayFor(index)[index & MASK];
+    }
+
+    /**
+     * @return A vector with the given element appended.
+     */
+    @NotNull
+    public PersistentVector<T> plus(T element) {
+        if ( size - tailOffset(size) < WIDTH ) {
+            Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+            newTail[tail.length] = element;
+            return new PersistentVector<T>(size + 1, shift, root, newTail);
+        }
+        Node tailNode = new Node(null, tail);
+        Node newRoot;
+        int newShift = shift;
+        if ( (size >>> BITS) > (1 << shift) ) {
+            // root overflow
+            newRoot = new Node(null, new Object[WIDTH]);
+            newRoot.array[0] = root;
+            newRoot.array[1] = newPath(null, shift, tailNode);
+            newShift += BITS;
+        }
+        else {
+            newRoot = pushTail(size, shift, root, tailNode);
+        }
+        return new PersistentVector<T>(size + 1, newShift, newRoot, new Object[] { element });
+    }
+
+    /**
+     * @return A vector with the element at the given index replaced. If
+     *         <code>index==size()</code>, the element will be appended.
+     */
+    @NotNull
+    public PersistentVector<T> with(int index, T element) {
+        if ( index == size ) {
+            return plus(element);
+        }
+        checkIndex(index);
+        if ( index >= tailOffset(size) ) {
+            Object[] newTail = tail.clone();
+            newTail[index & MASK] = element;
+            return new PersistentVector<T>(size, shift, root, newTail);
+        }
+        else {
+            return new PersistentVector<T>(size, shift, assoc(shift, root, index, element), tail);
+        }
+    }
+
+    /**
+     * @return A vector without the last element.
+     *
+     * @throws IllegalStateException If the vector is empty.
+     */
+    @NotNull
+    public PersistentVector<T> withoutLast() {
+        if ( size == 0 ) {
+            throw new IllegalStateException("Vector is empty");
+        }
+        if ( size == 1 ) {
+            return empty();
+        }
+        if ( size - tailOffset(size) > 1 ) {
+            return new PersistentVector<T>(size - 1, shift, root, Arrays.copyOf(tail, tail.length - 1));
+        }
+        Object[] newTail = arrayFor(size - 2);
+        Node newRoot = popTail(shift, root);
+        int newShift = shift;
+        if ( newRoot == null ) {
+            newRoot = EMPTY_NODE;
+        }
+        if ( shift > BITS && newRoot.array[1] == null ) {
+            newRoot = (Node)newRoot.array[0];
+            newShift -= BITS;
+        }
+        return new PersistentVector<T>(size - 1, newShift, newRoot, newTail);
+    }
+
+    /**
+     * @return A vector with all given elements appended.
+     */
+    @NotNull
+    public PersistentVector<T> plusAll(@NotNull Collection<? extends T> elements) {
+        if ( elements.isEmpty() ) {
+            return this;
+        }
+        Builder<T> builder = builder();
+        for ( T element : elements ) {
+            builder.add(element);
+        }
+        return builder.build();
+    }
+
+    @NotNull
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int index = 0;
+            private Object[] array = size > 0 ? arrayFor(0) : null;
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+            @SuppressWarnings("unchecked")
+            @Override
+            public T next() {
+                if ( index >= size ) {
+                    throw new NoSuchElementException();
+                }
+                if ( index > 0 && (index & MASK) == 0 ) {
+                    array = arrayFor(index);
+                }
+                return (T)array[index++ & MASK];
+            }
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void checkIndex(int index) {
+        if ( index < 0 || index >= size ) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    private static int tailOffset(int size) {
+        return size < WIDTH ? 0 : ((size - 1) >>> BITS) << BITS;
+    }
+
+    private Object[] arrayFor(int index) {
+        if ( index >= tailOffset(size) ) {
+            return tail;
+        }
+        Node node = root;
+        for ( int level = shift; level > 0; level -= BITS ) {
+            node = (Node)node.array[(index >>> level) & MASK];
+        }
+        return node.array;
+    }
+
+    private static Node newPath(Object edit, int level, Node node) {
+        if ( level == 0 ) {
+            return node;
+        }
+        Node path = new Node(edit, new Object[WIDTH]);
+        path.array[0] = newPath(edit, level - BITS, node);
+        return path;
+    }
+
+    private static Node pushTail(int size, int level, Node parent, Node tailNode) {
+        int index = ((size - 1) >>> level) & MASK;
+        Node result = new Node(null, parent.array.clone());
+        Node insert;
+        if ( level == BITS ) {
+            insert = tailNode;
+        }
+        else {
+            Node child = (Node)parent.array[index];
+            insert = child != null ? pushTail(size, level - BITS, child, tailNode) : newPath(null, level - BITS, tailNode);
+        }
+        result.array[index] = insert;
+        return result;
+    }
+
+    private static Node assoc(int level, Node node, int index, Object element) {
+        Node result = new Node(null, node.array.clone());
+        if ( level == 0 ) {
+            result.array[index & MASK] = element;
+        }
+        else {
+            int sub = (index >>> level) & MASK;
+            result.array[sub] = assoc(level - BITS, (Node)node.array[sub], index, element);
+        }
+        return result;
+    }
+
+    private Node popTail(int level, Node node) {
+        int index = ((size - 2) >>> level) & MASK;
+        if ( level > BITS ) {
+            Node child = popTail(level - BITS, (Node)node.array[index]);
+            if ( child == null && index == 0 ) {
+                return null;
+            }
+            Node result = new Node(null, node.array.clone());
+            result.array[index] = child;
+            return result;
+        }
+        else if ( index == 0 ) {
+            return null;
+        }
+        else {
+            Node result = new Node(null, node.array.clone());
+            result.array[index] = null;
+            return result;
+        }
+    }
+
+    private Object writeReplace() {
+        return new SerializedForm(toArray());
+    }
+
+    /**
+     * A trie node. Nodes created by a builder are tagged with the builder's edit token
+     * and may be modified in place by that builder.
+     */
+    private static final class Node {
+        private final Object edit;
+        private final Object[] array;
+        private Node(Object edit, Object[] array) {
+            this.edit = edit;
+            this.array = array;
+        }
+    }
+
+    /**
+     * Builds a vector by modifying its own nodes in place. A builder must not be used by
+     * several threads concurrently. It may be used further after calling
+     * {@link #build()}, the built vector won't be affected.
+     */
+    public static final class Builder<T> {
+
+        private Object edit = new Object();
+        private int size;
+        private int shift;
+        private Node root;
+        private Object[] tail;
+
+        private Builder(PersistentVector<T> vector) {
+            size = vector.size;
+            shift = vector.shift;
+            root = new Node(edit, vector.root.array.clone());
+            tail = Arrays.copyOf(vector.tail, WIDTH);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+            if ( index < 0 || index >= size ) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            if ( index >= tailOffset(size) ) {
+                return (T)tail[index & MASK];
+            }
+            Node node = root;
+            for ( int level = shift; level > 0; level -= BITS ) {
+                node = (Node)node.array[(index >>> level) & MASK];
+            }
+            return (T)node.array[index & MASK];
+        }
+
+        @NotNull
+        public Builder<T> add(T element) {
+            if ( size - tailOffset(size) < WIDTH ) {
+                tail[size & MASK] = element;
+                size++;
+                return this;
+            }
+            Node tailNode = new Node(edit, tail);
+            tail = new Object[WIDTH];
+            tail[0] = element;
+            if ( (size >>> BITS) > (1 << shift) ) {
+                Node newRoot = new Node(edit, new Object[WIDTH]);
+                newRoot.array[0] = root;
+                newRoot.array[1] = newPath(edit, shift, tailNode);
+                root = newRoot;
+                shift += BITS;
+            }
+            else {
+                root = pushTail(shift, root, tailNode);
+            }
+            size++;
+            return this;
+        }
+
+        @NotNull
+        public Builder<T> addAll(@NotNull Iterable<? extends T> elements) {
+            for ( T element : elements ) {
+                add(element);
+            }
+            return this;
+        }
+
+        @NotNull
+        public Builder<T> set(int index, T element) {
+            if ( index == size ) {
+                return add(element);
+            }
+            if ( index < 0 || index > size ) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            if ( index >= tailOffset(size) ) {
+                tail[index & MASK] = element;
+            }
+            else {
+                root = assoc(shift, root, index, element);
+            }
+            return this;
+        }
+
+        @NotNull
+        public PersistentVector<T> build() {
+            if ( size == 0 ) {
+                return empty();
+            }
+            PersistentVector<T> vector = new PersistentVector<T>(size, shift, root, Arrays.copyOf(tail, size - tailOffset(size)));
+            // from now on, all nodes are shared with the vector
+            edit = new Object();
+            return vector;
+        }
+
+        private Node editable(Node node) {
+            return node.edit == edit ? node : new Node(edit, node.array.clone());
+        }
+
+        private Node pushTail(int level, Node parent, Node tailNode) {
+            Node result = editable(parent);
+            int index = ((size - 1) >>> level) & MASK;
+            Node insert;
+            if ( level == BITS ) {
+                insert = tailNode;
+            }
+            else {
+                Node child = (Node)result.array[index];
+                insert = child != null ? pushTail(level - BITS, child, tailNode) : newPath(edit, level - BITS, tailNode);
+            }
+            result.array[index] = insert;
+            return result;
+        }
+
+        private Node assoc(int level, Node node, int index, Object element) {
+            Node result = editable(node);
+            if ( level == 0 ) {
+                result.array[index & MASK] = element;
+            }
+            else {
+                int sub = (index >>> level) & MASK;
+                result.array[sub] = assoc(level - BITS, (Node)result.array[sub], index, element);
+            }
+            return result;
+        }
+    }
+
+    private static final class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 12022401L;
+        private final Object[] elements;
+        private SerializedForm(Object[] elements) {
+            this.elements = elements;
+        }
+        private Object readResolve() {
+            return PersistentVector.copyOf(Arrays.asList(elements));
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+package ch.raffael.util.common.collections;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+
+/**
+ * A {@link TokenMap} that stores its values in a flat array indexed by
+ * {@link TokenSlot interned slots}. Lookups don't allocate any memory, lookups using a
+ * {@link TokenSlot} are a plain array access.
+ * <p/>
+ * This class is not thread-safe, see {@link ConcurrentTokenMap}.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public class SlotTokenMap extends TokenMap {
+    private static final long serialVersionUID = 13011001L;
+
+    static final Object[] EMPTY = new Object[0];
+
+    /**
+     * The slots and values: <code>values[2*index]</code> is the slot,
+     * <code>values[2*index+1]</code> its value. Holding on to the slots keeps them
+     * interned as long as the map contains a value for them.
+     */
+    private transient Object[] values = EMPTY;
+
+    public SlotTokenMap() {
+        super(null);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + getAll();
+    }
+
+    @Override
+    protected void putAll(Map<Key, Object> map) {
+        for ( Map.Entry<Key, Object> entry : map.entrySet() ) {
+            store(TokenSlot.of(entry.getKey().getType(), entry.getKey().getKey()), entry.getValue());
+        }
+    }
+
+    @Override
+    protected void putAllAbsent(Map<Key, Object> map) {
+        for ( Map.Entry<Key, Object> entry : map.entrySet() ) {
+            TokenSlot<?> slot = TokenSlot.of(entry.getKey().getType(), entry.getKey().getKey());
+            if ( valueAt(slot.getIndex()) == null ) {
+                store(slot, entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    protected Map<Key, Object> getAll() {
+        Object[] values = values();
+        Map<Key, Object> all = new HashMap<Key, Object>();
+        for ( int i = 0; i < values.length; i += 2 ) {
+            if ( values[i + 1] != null ) {
+                all.put(((TokenSlot<?>)values[i]).getMapKey(), values[i + 1]);
+            }
+        }
+        return all;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T put(@NotNull Class<T> type, @Nullable Object key, @Nullable T object) {
+        if ( object == null ) {
+            TokenSlot<?> slot = TokenSlot.find(type, key);
+            return slot == null ? null : (T)store(slot, null);
+        }
+        else {
+            return (T)store(TokenSlot.of(type, key), object);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public <T> T put(@NotNull TokenSlot<T> slot, @Nullable T object) {
+        return (T)store(slot, object);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T get(@NotNull Class<T> type, @Nullable Object key) {
+        TokenSlot<?> slot = TokenSlot.find(type, key);
+        return slot == null ? null : (T)valueAt(slot.getIndex());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public <T> T get(@NotNull TokenSlot<T> slot) {
+        return (T)valueAt(slot.getIndex());
+    }
+
+    @NotNull
+    public <T> T require(@NotNull TokenSlot<T> slot) {
+        T value = get(slot);
+        if ( value == null ) {
+            throw new IllegalStateException("No such value: " + slot.getMapKey());
+        }
+        return value;
+    }
+
+    /**
+     * @return The array of slots and values. Don't modify it.
+     */
+    Object[] values() {
+        return values;
+    }
+
+    Object valueAt(int index) {
+        Object[] values = this.values;
+        return 2 * index + 1 < values.length ? values[2 * index + 1] : null;
+    }
+
+    Object store(TokenSlot<?> slot, Object value) {
+        int index = slot.getIndex();
+        if ( 2 * index + 1 >= values.length ) {
+            if ( value == null ) {
+                return null;
+            }
+            values = grow(values, index);
+        }
+        Object prev = values[2 * index + 1];
+        values[2 * index] = value == null ? null : slot;
+        values[2 * index + 1] = value;
+        return prev;
+    }
+
+    static Object[] grow(Object[] values, int index) {
+        int length = Math.max(values.length, 16);
+        while ( length <= 2 * index + 1 ) {
+            length *= 2;
+        }
+        Object[] grown = new Object[length];
+        System.arraycopy(values, 0, grown, 0, values.length);
+        return grown;
+    }
+
+    void setValues(Object[] values) {
+        this.values = values;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        Map<Key, Object> all = getAll();
+        out.writeInt(all.size());
+        for ( Map.Entry<Key, Object> entry : all.entrySet() ) {
+            out.writeObject(entry.getKey().getType());
+            out.writeObject(entry.getKey().getKey());
+            out.writeObject(entry.getValue());
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        setValues(EMPTY);
+        int count = in.readInt();
+        Map<Key, Object> all = new HashMap<Key, Object>(count * 4 / 3 + 1);
+        for ( int i = 0; i < count; i++ ) {
+            Class<?> type = (Class<?>)in.readObject();
+            Object key = in.readObject();
+            all.put(new Key(type, key), in.readObject());
+        }
+        putAll(all);
+    }
+
+}
@@ -9,12 +9,29 @@ import org.jetbrains.annotations.Nullable;
 
 
 /**
+ * A map of values by type and an optional key.
+ *
+ * @see SlotTokenMap
+ * @see ConcurrentTokenMap
+ *
  * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
  */
 public class TokenMap implements Serializable {
     private static final long serialVersionUID = 12022401L;
 
-    private final Map<Key, Object> map = new HashMap<Key, Object>();
+    private final Map<Key, Object> map;
+
+    public TokenMap() {
+        this(new HashMap<Key, Object>());
+    }
+
+    /**
+     * @param map The map to store the values in, <code>null</code> for subclasses that
+     *            override all methods accessing it.
+     */
+    TokenMap(Map<Key, Object> map) {
+        this.map = map;
+    }
 
     @Override
     public String toString() {
@@ -29,13 +46,15 @@ public class TokenMap implements Serializable {
         if ( o == null || !(o instanceof TokenMap) ) {
             return false;
         }
-        TokenMap that = (TokenMap)o;
-        return map.equals(that.map);
+        // take the snapshot of the other map first, so we never hold both locks of two
+        // synchronized maps at the same time
+        Map<Key, Object> thatAll = ((TokenMap)o).getAll();
+        return getAll().equals(thatAll);
     }
 
     @Override
     public int hashCode() {
-        return map.hashCode();
+        return getAll().hashCode();
     }
 
     public void putAll(TokenMap that) {
@@ -116,7 +135,7 @@ public class TokenMap implements Serializable {
     protected final static class Key {
         private final Class<?> clazz;
         private final Object key;
-        private Key(Class<?> clazz, Object key) {
+        Key(Class<?> clazz, Object key) {
             this.clazz = clazz;
             this.key = key;
         }
@@ -147,6 +166,12 @@ public class TokenMap implements Serializable {
             result = 31 * result + (key != null ? key.hashCode() : 0);
             return result;
         }
+        Class<?> getType() {
+            return clazz;
+        }
+        Object getKey() {
+            return key;
+        }
     }
 
     protected static class SynchronizedTokenMap extends TokenMap {
@@ -162,12 +187,6 @@ public class TokenMap implements Serializable {
             }
         }
         @Override
-        public boolean equals(Object o) {
-            synchronized ( sync ) {
-                return super.equals(o);
-            }
-        }
-        @Override
         public int hashCode() {
             synchronized ( sync ) {
                 return super.hashCode();
@@ -0,0 +1,163 @@
+package ch.raffael.util.common.collections;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.MapMaker;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+
+/**
+ * An interned <code>(type, key)</code> pair of a {@link TokenMap} with a unique slot
+ * index. {@link SlotTokenMap} and {@link ConcurrentTokenMap} store their values in flat
+ * arrays indexed by the slot index.
+ * <p/>
+ * Slots are interned weakly: A slot is released when no map holds a value for it and
+ * there are no other references to it, so slots don't keep the token classes and their
+ * class loaders alive. The indexes of released slots are reused, new slots always get the
+ * lowest free index. This keeps the arrays of the maps as small as the number of slots
+ * in use, even if short-lived maps keep creating and releasing the same slots. Keep a
+ * reference to frequently used slots in a static final field and use
+ * {@link SlotTokenMap#get(TokenSlot)} for the fastest lookups.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public final class TokenSlot<T> {
+
+    // guarded by lock
+    private static final Object lock = new Object();
+    private static final BitSet used = new BitSet();
+    private static final Set<Released> live = new HashSet<Released>();
+    private static final ReferenceQueue<TokenSlot<?>> released = new ReferenceQueue<TokenSlot<?>>();
+    private static final ConcurrentMap<Class<?>, TokenSlot<?>> unkeyed = new MapMaker().weakKeys().weakValues().makeMap();
+    private static final ConcurrentMap<Class<?>, ConcurrentMap<Object, TokenSlot<?>>> keyed = new MapMaker().weakKeys().makeMap();
+
+    private final Class<T> type;
+    private final Object key;
+    private final int index;
+    private final TokenMap.Key mapKey;
+
+    private TokenSlot(Class<T> type, Object key, int index) {
+        this.type = type;
+        this.key = key;
+        this.index = index;
+        this.mapKey = new TokenMap.Key(type, key);
+    }
+
+    @Override
+    public String toString() {
+        return "TokenSlot{" + index + ":" + type.getName() + (key == null ? "" : "," + key) + "}";
+    }
+
+    @NotNull
+    public static <T> TokenSlot<T> of(@NotNull Class<T> type) {
+        return of(type, null);
+    }
+
+    /**
+     * Get the slot for the given type and key, interning it if it doesn't exist yet.
+     *
+     * @param type The type.
+     * @param key  The key, <code>null</code> for none.
+     *
+     * @return The slot.
+     */
+    @SuppressWarnings("unchecked")
+    @NotNull
+    public static <T> TokenSlot<T> of(@NotNull Class<T> type, @Nullable Object key) {
+        TokenSlot<T> slot = (TokenSlot<T>)find(type, key);
+        if ( slot != null ) {
+            return slot;
+        }
+        ConcurrentMap<Object, TokenSlot<?>> keySlots = null;
+        if ( key != null ) {
+            keySlots = keyed.get(type);
+            if ( keySlots == null ) {
+                keySlots = new MapMaker().weakValues().makeMap();
+                ConcurrentMap<Object, TokenSlot<?>> prev = keyed.putIfAbsent(type, keySlots);
+                if ( prev != null ) {
+                    keySlots = prev;
+                }
+            }
+        }
+        synchronized ( lock ) {
+            // avoid wasting indexes on races
+            slot = (TokenSlot<T>)find(type, key);
+            if ( slot == null ) {
+                slot = new TokenSlot<T>(type, key, allocateIndex());
+                live.add(new Released(slot));
+                if ( key == null ) {
+                    unkeyed.put(type, slot);
+                }
+                else {
+                    keySlots.put(key, slot);
+                }
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Recycle the indexes of released slots and return the lowest free one. Must be
+     * called while holding the lock.
+     */
+    private static int allocateIndex() {
+        Reference<? extends TokenSlot<?>> ref;
+        while ( (ref = released.poll()) != null ) {
+            Released r = (Released)ref;
+            live.remove(r);
+            used.clear(r.index);
+        }
+        int index = used.nextClearBit(0);
+        used.set(index);
+        return index;
+    }
+
+    /**
+     * Find an existing slot without interning it. This method doesn't allocate any
+     * memory.
+     *
+     * @return The slot or <code>null</code> if there's no such slot.
+     */
+    @Nullable
+    static TokenSlot<?> find(@NotNull Class<?> type, @Nullable Object key) {
+        if ( key == null ) {
+            return unkeyed.get(type);
+        }
+        ConcurrentMap<Object, TokenSlot<?>> slots = keyed.get(type);
+        return slots == null ? null : slots.get(key);
+    }
+
+    @NotNull
+    public Class<T> getType() {
+        return type;
+    }
+
+    @Nullable
+    public Object getKey() {
+        return key;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    TokenMap.Key getMapKey() {
+        return mapKey;
+    }
+
+    private static final class Released extends WeakReference<TokenSlot<?>> {
+        private final int index;
+        private Released(TokenSlot<?> slot) {
+            super(slot, released);
+            this.index = slot.index;
+        }
+    }
+
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2012 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.util.common.collections;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jetbrains.annotations.NotNull;
+
+
+/**
+ * Executes a task for each node of a directed acyclic graph in parallel. The graph is
+ * built the same way as for {@link TopoSort}: An arc <code>left =&gt; right</code>
+ * means that the task for <code>right</code> won't be started before the task for
+ * <code>left</code> completed. Each node is started as soon as all its predecessors
+ * completed.
+ * <p/>
+ * If a task fails, no further tasks will be started and the execution fails with the
+ * first exception as soon as all running tasks completed. Cancelling the execution
+ * works the same way, optionally interrupting the running tasks: The future reports
+ * being done immediately as required by {@link Future#cancel(boolean)}, but
+ * <code>get()</code> waits for the running tasks to complete before throwing the
+ * {@link CancellationException}.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public class TopoExecutor<T> {
+
+    private final TopoSort<T> graph;
+
+    public TopoExecutor() {
+        graph = new TopoSort<T>();
+    }
+
+    public TopoExecutor(@NotNull Collection<T> contents) {
+        graph = new TopoSort<T>(contents);
+    }
+
+    public void add(@NotNull T left, @NotNull T right) {
+        graph.add(left, right);
+    }
+
+    public void add(@NotNull T node) {
+        graph.add(node);
+    }
+
+    public void addAll(@NotNull Collection<T> node) {
+        graph.addAll(node);
+    }
+
+    /**
+     * Start executing the graph.
+     *
+     * @param executor The executor to run the tasks.
+     * @param task     The task to run for each node.
+     *
+     * @return A future that completes when all tasks completed, or if a task failed or
+     *         the execution has been cancelled, when all running tasks completed. If
+     *         cancelled, the future is done immediately, however, <code>get()</code>
+     *         still waits for the running tasks.
+     *
+     * @throws TopoSort.CircularGraphException If the graph contains cycles. No task will
+     *                                         be started in this case.
+     */
+    @NotNull
+    public Future<Void> execute(@NotNull Executor executor, @NotNull TopoSort.Visitor<? super T> task) throws TopoSort.CircularGraphException {
+        TopoSort.Graph<T> graph = this.graph.graph();
+        graph.sort();
+        Execution<T> execution = new Execution<T>(graph, executor, task);
+        execution.start();
+        return execution;
+    }
+
+    private static final class Execution<T> implements Future<Void> {
+
+        private final TopoSort.Graph<T> graph;
+        private final Executor executor;
+        private final TopoSort.Visitor<? super T> task;
+        private final AtomicIntegerArray indegree;
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger completed = new AtomicInteger();
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        // the threads currently running a task of this execution mapped to whether we
+        // interrupted them; guarded by itself
+        private final Map<Thread, Boolean> threads = new HashMap<Thread, Boolean>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean aborted = false;
+        private volatile boolean cancelled = false;
+
+        private Execution(TopoSort.Graph<T> graph, Executor executor, TopoSort.Visitor<? super T> task) {
+            this.graph = graph;
+            this.executor = executor;
+            this.task = task;
+            indegree = new AtomicIntegerArray(graph.indegree);
+        }
+
+        @Override
+        public String toString() {
+            return "TopoExecution{completed=" + completed.get() + "/" + graph.nodes.size() + ",running=" + running.get() + "}";
+        }
+
+        private void start() {
+            // keep the execution from completing while the initial nodes are submitted
+            running.incrementAndGet();
+            for ( int node = 0; node < graph.nodes.size(); node++ ) {
+                if ( graph.indegree[node] == 0 ) {
+                    submit(node);
+                }
+            }
+            finished();
+        }
+
+        private void submit(final int node) {
+            if ( aborted ) {
+                return;
+            }
+            running.incrementAndGet();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runNode(node);
+                    }
+                });
+            }
+            catch ( RejectedExecutionException e ) {
+                fail(e);
+                finished();
+            }
+        }
+
+        private void runNode(int node) {
+            try {
+                if ( enter() ) {
+                    try {
+                        task.visit(graph.nodes.get(node));
+                    }
+                    finally {
+                        exit();
+                    }
+                    completed.incrementAndGet();
+                    for ( int i = graph.start[node]; i < graph.start[node + 1]; i++ ) {
+                        if ( indegree.decrementAndGet(graph.successors[i]) == 0 ) {
+                            submit(graph.successors[i]);
+                        }
+                    }
+                }
+            }
+            catch ( Throwable e ) {
+                fail(e);
+            }
+            finally {
+                finished();
+            }
+        }
+
+        private boolean enter() {
+            synchronized ( threads ) {
+                if ( aborted ) {
+                    return false;
+                }
+                threads.put(Thread.currentThread(), Boolean.FALSE);
+                return true;
+            }
+        }
+
+        private void exit() {
+            Boolean interrupted;
+            synchronized ( threads ) {
+                interrupted = threads.remove(Thread.currentThread());
+            }
+            if ( interrupted ) {
+                // don't leak our interrupt to whatever the thread runs next
+                Thread.interrupted();
+            }
+        }
+
+        private void fail(Throwable e) {
+            failure.compareAndSet(null, e);
+            aborted = true;
+        }
+
+        private void finished() {
+            if ( running.decrementAndGet() == 0 && (aborted || completed.get() == graph.nodes.size()) ) {
+                done.countDown();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if ( isDone() || aborted ) {
+                return false;
+            }
+            cancelled = true;
+            aborted = true;
+            if ( mayInterruptIfRunning ) {
+                synchronized ( threads ) {
+                    // only threads still running one of our tasks are registered
+                    for ( Map.Entry<Thread, Boolean> entry : threads.entrySet() ) {
+                        entry.setValue(Boolean.TRUE);
+                        entry.getKey().interrupt();
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return cancelled || done.getCount() == 0;
+        }
+
+        @Override
+        public Void get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public Void get(long timeout, @NotNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if ( !done.await(timeout, unit) ) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private Void result() throws ExecutionException {
+            if ( cancelled ) {
+                throw new CancellationException();
+            }
+            if ( failure.get() != null ) {
+                throw new ExecutionException(failure.get());
+            }
+            return null;
+        }
+    }
+
+}
@@ -18,16 +18,30 @@ package ch.raffael.util.common.collections;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.jetbrains.annotations.NotNull;
 
 
 /**
+ * Sorts a directed acyclic graph topologically. An arc <code>left =&gt; right</code>
+ * means that <code>left</code> comes before <code>right</code>. Among the nodes that
+ * are free to be next, the node added first is always chosen, so the order is stable.
+ * <p/>
+ * The graph is sorted using Kahn's algorithm in O((N+E)&middot;log N). The graph isn't
+ * modified by sorting it, so it may be sorted several times.
+ *
  * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
  */
 public class TopoSort<T> {
@@ -64,62 +78,249 @@ public class TopoSort<T> {
 
     @NotNull
     public List<T> sort(@NotNull List<T> target) throws CircularGraphException {
-        while ( !nodes.isEmpty() ) {
-            T node = findFreeNode();
-            target.add(node);
-            removeOutgoingArcs(node);
+        Graph<T> graph = graph();
+        for ( int node : graph.sort() ) {
+            target.add(graph.nodes.get(node));
         }
         return target;
     }
 
     /**
-     * Find the first node that has no incoming arcs.
-     * @return The first free node in the list.
-     * @throws CircularGraphException If there's no free node.
+     * Sort the graph into levels. The first level contains all nodes without
+     * predecessors, each following level contains the nodes whose predecessors are all
+     * in the previous levels. The nodes within one level don't depend on each other and
+     * can therefore be processed in parallel.
+     *
+     * @return The levels, each in the order the nodes have been added.
+     *
+     * @throws CircularGraphException If the graph contains cycles.
      */
-    private T findFreeNode() throws CircularGraphException {
-        Iterator<T> iter = nodes.iterator();
-        nextNode:
-        while ( iter.hasNext() ) {
-            T node = iter.next();
-            for ( Arc arc : arcs ) {
-                if ( arc.right.equals(node) ) {
-                    continue nextNode;
-                }
+    @NotNull
+    public List<List<T>> levels() throws CircularGraphException {
+        Graph<T> graph = graph();
+        int[] order = graph.sort();
+        int[] level = new int[graph.nodes.size()];
+        int maxLevel = -1;
+        for ( int node : order ) {
+            for ( int i = graph.start[node]; i < graph.start[node + 1]; i++ ) {
+                int successor = graph.successors[i];
+                level[successor] = Math.max(level[successor], level[node] + 1);
+            }
+            maxLevel = Math.max(maxLevel, level[node]);
+        }
+        List<List<T>> levels = new ArrayList<List<T>>(maxLevel + 1);
+        for ( int i = 0; i <= maxLevel; i++ ) {
+            levels.add(new ArrayList<T>());
+        }
+        for ( int node = 0; node < level.length; node++ ) {
+            levels.get(level[node]).add(graph.nodes.get(node));
+        }
+        return levels;
+    }
+
+    /**
+     * Visit all nodes level by level (see {@link #levels()}), visiting the nodes of
+     * each level in parallel using the given executor. If a visitor fails, the
+     * remaining nodes of its level are still visited, but the following levels aren't.
+     *
+     * @param executor The executor to use.
+     * @param visitor  The visitor.
+     *
+     * @throws CircularGraphException If the graph contains cycles.
+     * @throws ExecutionException     If a visitor threw an exception. The first exception
+     *                                will be the cause.
+     * @throws InterruptedException   If the current thread has been interrupted while
+     *                                waiting for the nodes to be visited.
+     */
+    public void visitLevels(@NotNull Executor executor, @NotNull final Visitor<? super T> visitor) throws CircularGraphException, ExecutionException, InterruptedException {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for ( List<T> level : levels() ) {
+            final CountDownLatch done = new CountDownLatch(level.size());
+            for ( final T node : level ) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            visitor.visit(node);
+                        }
+                        catch ( Throwable e ) {
+                            failure.compareAndSet(null, e);
+                        }
+                        finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            done.await();
+            if ( failure.get() != null ) {
+                throw new ExecutionException(failure.get());
             }
-            // yay, we've found a node
-            iter.remove();
-            return node;
         }
-        // no free node found, the graph is circular
-        throw new CircularGraphException(); // TODO: give a list of nodes
     }
 
-    private void removeOutgoingArcs(T node) {
-        Iterator<Arc<T>> iter = arcs.iterator();
-        while ( iter.hasNext() ) {
-            Arc<T> arc = iter.next();
-            if ( arc.left.equals(node) ) {
-                iter.remove();
+    Graph<T> graph() {
+        return new Graph<T>(nodes, arcs);
+    }
+
+    /**
+     * Visits the nodes of a graph.
+     *
+     * @see TopoSort#visitLevels(Executor, Visitor)
+     * @see TopoExecutor
+     */
+    public static interface Visitor<T> {
+        void visit(@NotNull T node) throws Exception;
+    }
+
+    /**
+     * The graph as adjacency lists (in compressed form: the successors of node
+     * <em>n</em> are <code>successors[start[n]]</code> to
+     * <code>successors[start[n+1]-1]</code>).
+     */
+    static final class Graph<T> {
+        final List<T> nodes;
+        final int[] start;
+        final int[] successors;
+        final int[] indegree;
+
+        private Graph(Set<T> nodes, Set<Arc<T>> arcs) {
+            this.nodes = new ArrayList<T>(nodes);
+            Map<T, Integer> indexes = new HashMap<T, Integer>(nodes.size() * 4 / 3 + 1);
+            for ( T node : nodes ) {
+                indexes.put(node, indexes.size());
+            }
+            int[] lefts = new int[arcs.size()];
+            int[] rights = new int[arcs.size()];
+            start = new int[nodes.size() + 1];
+            indegree = new int[nodes.size()];
+            int i = 0;
+            for ( Arc<T> arc : arcs ) {
+                lefts[i] = indexes.get(arc.left);
+                rights[i] = indexes.get(arc.right);
+                start[lefts[i] + 1]++;
+                indegree[rights[i]]++;
+                i++;
+            }
+            for ( int n = 0; n < nodes.size(); n++ ) {
+                start[n + 1] += start[n];
+            }
+            successors = new int[arcs.size()];
+            int[] fill = new int[nodes.size()];
+            for ( i = 0; i < lefts.length; i++ ) {
+                successors[start[lefts[i]] + fill[lefts[i]]++] = rights[i];
+            }
+        }
+
+        int[] sort() throws CircularGraphException {
+            int[] indegree = this.indegree.clone();
+            PriorityQueue<Integer> free = new PriorityQueue<Integer>();
+            for ( int n = 0; n < indegree.length; n++ ) {
+                if ( indegree[n] == 0 ) {
+                    free.add(n);
+                }
+            }
+            int[] order = new int[indegree.length];
+            int count = 0;
+            while ( !free.isEmpty() ) {
+                int node = free.poll();
+                order[count++] = node;
+                for ( int i = start[node]; i < start[node + 1]; i++ ) {
+                    if ( --indegree[successors[i]] == 0 ) {
+                        free.add(successors[i]);
+                    }
+                }
+            }
+            if ( count < order.length ) {
+                throw new CircularGraphException(findCycle(indegree));
+            }
+            return order;
+        }
+
+        /**
+         * Find a cycle among the nodes that couldn't be sorted. Each of these nodes has
+         * a predecessor that couldn't be sorted either, so walking backwards will
+         * eventually hit a node a second time.
+         */
+        private List<T> findCycle(int[] indegree) {
+            int[] predecessor = new int[indegree.length];
+            for ( int node = 0; node < indegree.length; node++ ) {
+                if ( indegree[node] > 0 ) {
+                    for ( int i = start[node]; i < start[node + 1]; i++ ) {
+                        predecessor[successors[i]] = node;
+                    }
+                }
+            }
+            int node = 0;
+            while ( indegree[node] == 0 ) {
+                node++;
             }
+            int[] visited = new int[indegree.length];
+            int step = 1;
+            while ( visited[node] == 0 ) {
+                visited[node] = step++;
+                node = predecessor[node];
+            }
+            List<T> cycle = new ArrayList<T>();
+            int first = node;
+            do {
+                cycle.add(nodes.get(node));
+                node = predecessor[node];
+            } while ( node != first );
+            Collections.reverse(cycle);
+            return cycle;
         }
     }
 
+    /**
+     * Thrown if the graph contains cycles.
+     */
     public static class CircularGraphException extends Exception {
 
+        private final List<?> cycle;
+
         public CircularGraphException() {
+            cycle = Collections.emptyList();
+        }
+
+        public CircularGraphException(@NotNull List<?> cycle) {
+            super("Circular graph: " + describe(cycle));
+            this.cycle = Collections.unmodifiableList(new ArrayList<Object>(cycle));
         }
 
         public CircularGraphException(String message) {
             super(message);
+            cycle = Collections.emptyList();
         }
 
         public CircularGraphException(String message, Throwable cause) {
             super(message, cause);
+            cycle = Collections.emptyList();
         }
 
         public CircularGraphException(Throwable cause) {
             super(cause);
+            cycle = Collections.emptyList();
+        }
+
+        /**
+         * @return The nodes forming a cycle, in the order of the arcs. The last node
+         *         points back to the first one. Empty if unknown.
+         */
+        @NotNull
+        public List<?> getCycle() {
+            return cycle;
+        }
+
+        private static String describe(List<?> cycle) {
+            StringBuilder buf = new StringBuilder();
+            for ( Object node : cycle ) {
+                buf.append(node).append(" => ");
+            }
+            if ( !cycle.isEmpty() ) {
+                buf.append(cycle.get(0));
+            }
+            return buf.toString();
         }
     }
 
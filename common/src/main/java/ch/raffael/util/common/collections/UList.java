@@ -42,6 +42,15 @@ public class UList<T> extends ForwardingList<T> implements Serializable {
         this.unmodifiable = Collections.unmodifiableList(delegate);
     }
 
+    /**
+     * Constructor for subclasses that override both {@link #delegate()} and
+     * {@link #unmodifiable()}.
+     */
+    protected UList(List<T> delegate, List<T> unmodifiable) {
+        this.delegate = delegate;
+        this.unmodifiable = unmodifiable;
+    }
+
     @Override
     protected List<T> delegate() {
         return delegate;
@@ -42,6 +42,15 @@ public class UMap<K, V> extends ForwardingMap<K, V> implements Serializable {
         this.unmodifiable = Collections.unmodifiableMap(delegate);
     }
 
+    /**
+     * Constructor for subclasses that override both {@link #delegate()} and
+     * {@link #unmodifiable()}.
+     */
+    protected UMap(Map<K, V> delegate, Map<K, V> unmodifiable) {
+        this.delegate = delegate;
+        this.unmodifiable = unmodifiable;
+    }
+
     @Override
     protected Map<K, V> delegate() {
         return delegate;
@@ -42,6 +42,15 @@ public class UMultimap<K, V> extends ForwardingMultimap<K, V> implements Seriali
         this.unmodifiable = Multimaps.unmodifiableMultimap(delegate);
     }
 
+    /**
+     * Constructor for subclasses that override both {@link #delegate()} and
+     * {@link #unmodifiable()}.
+     */
+    protected UMultimap(Multimap<K, V> delegate, Multimap<K, V> unmodifiable) {
+        this.delegate = delegate;
+        this.unmodifiable = unmodifiable;
+    }
+
     @Override
     protected Multimap<K, V> delegate() {
         return delegate;
@@ -42,6 +42,15 @@ public class USet<T> extends ForwardingSet<T> implements Serializable {
         this.unmodifiable = Collections.unmodifiableSet(delegate);
     }
 
+    /**
+     * Constructor for subclasses that override both {@link #delegate()} and
+     * {@link #unmodifiable()}.
+     */
+    protected USet(Set<T> delegate, Set<T> unmodifiable) {
+        this.delegate = delegate;
+        this.unmodifiable = unmodifiable;
+    }
+
     @Override
     protected Set<T> delegate() {
         return delegate;
@@ -0,0 +1,451 @@
+package ch.raffael.util.common.logging;
+
+import org.slf4j.Logger;
+import org.slf4j.Marker;
+
+
+/**
+ * A logger that hands its log events to a background thread, which then forwards them
+ * to the delegate. Whether a level is enabled is still checked synchronously, so
+ * disabled log statements cost nothing more than before.
+ * <p/>
+ * The events are passed through a bounded, lock-free ring buffer shared by all
+ * asynchronous loggers. If the buffer is full, the event is logged synchronously.
+ * <p/>
+ * Note that the arguments are formatted later in the background thread, so they
+ * shouldn't be modified after logging them. Also, the background thread doesn't see
+ * thread-local context like the MDC or the caller's location.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public class AsyncLogger implements Logger {
+
+    private final Logger delegate;
+    private final LogRingBuffer buffer;
+
+    public AsyncLogger(Logger delegate) {
+        this(delegate, LogRingBuffer.shared());
+    }
+
+    AsyncLogger(Logger delegate, LogRingBuffer buffer) {
+        this.delegate = delegate;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Wait until all events logged so far have been forwarded to their delegates.
+     *
+     * @param timeoutMillis The maximum time to wait in milliseconds.
+     *
+     * @return <code>true</code> if all events have been forwarded.
+     */
+    public boolean flush(long timeoutMillis) {
+        return buffer.flush(timeoutMillis);
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public boolean isTraceEnabled() {
+        return delegate.isTraceEnabled();
+    }
+
+    @Override
+    public void trace(String msg) {
+        if ( delegate.isTraceEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.TRACE, null, msg, 0, null, null, null, null);
+        }
+    }
+
+    @Override
+    public void trace(String format, Object arg) {
+        if ( delegate.isTraceEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.TRACE, null, format, 1, arg, null, null, null);
+        }
+    }
+
+    @Override
+    public void trace(String format, Object arg1, Object arg2) {
+        if ( delegate.isTraceEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.TRACE, null, format, 2, arg1, arg2, null, null);
+        }
+    }
+
+    @Override
+    public void trace(String format, Object[] argArray) {
+        if ( delegate.isTraceEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.TRACE, null, format, -1, null, null, argArray, null);
+        }
+    }
+
+    @Override
+    public void trace(String msg, Throwable t) {
+        if ( delegate.isTraceEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.TRACE, null, msg, 0, null, null, null, t);
+        }
+    }
+
+    @Override
+    public boolean isTraceEnabled(Marker marker) {
+        return delegate.isTraceEnabled(marker);
+    }
+
+    @Override
+    public void trace(Marker marker, String msg) {
+        if ( delegate.isTraceEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.TRACE, marker, msg, 0, null, null, null, null);
+        }
+    }
+
+    @Override
+    public void trace(Marker marker, String format, Object arg) {
+        if ( delegate.isTraceEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.TRACE, marker, format, 1, arg, null, null, null);
+        }
+    }
+
+    @Override
+    public void trace(Marker marker, String format, Object arg1, Object arg2) {
+        if ( delegate.isTraceEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.TRACE, marker, format, 2, arg1, arg2, null, null);
+        }
+    }
+
+    @Override
+    public void trace(Marker marker, String format, Object[] argArray) {
+        if ( delegate.isTraceEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.TRACE, marker, format, -1, null, null, argArray, null);
+        }
+    }
+
+    @Override
+    public void trace(Marker marker, String msg, Throwable t) {
+        if ( delegate.isTraceEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.TRACE, marker, msg, 0, null, null, null, t);
+        }
+    }
+
+    @Override
+    public boolean isDebugEnabled() {
+        return delegate.isDebugEnabled();
+    }
+
+    @Override
+    public void debug(String msg) {
+        if ( delegate.isDebugEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.DEBUG, null, msg, 0, null, null, null, null);
+        }
+    }
+
+    @Override
+    public void debug(String format, Object arg) {
+        if ( delegate.isDebugEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.DEBUG, null, format, 1, arg, null, null, null);
+        }
+    }
+
+    @Override
+    public void debug(String format, Object arg1, Object arg2) {
+        if ( delegate.isDebugEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.DEBUG, null, format, 2, arg1, arg2, null, null);
+        }
+    }
+
+    @Override
+    public void debug(String format, Object[] argArray) {
+        if ( delegate.isDebugEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.DEBUG, null, format, -1, null, null, argArray, null);
+        }
+    }
+
+    @Override
+    public void debug(String msg, Throwable t) {
+        if ( delegate.isDebugEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.DEBUG, null, msg, 0, null, null, null, t);
+        }
+    }
+
+    @Override
+    public boolean isDebugEnabled(Marker marker) {
+        return delegate.isDebugEnabled(marker);
+    }
+
+    @Override
+    public void debug(Marker marker, String msg) {
+        if ( delegate.isDebugEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.DEBUG, marker, msg, 0, null, null, null, null);
+        }
+    }
+
+    @Override
+    public void debug(Marker marker, String format, Object arg) {
+        if ( delegate.isDebugEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.DEBUG, marker, format, 1, arg, null, null, null);
+        }
+    }
+
+    @Override
+    public void debug(Marker marker, String format, Object arg1, Object arg2) {
+        if ( delegate.isDebugEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.DEBUG, marker, format, 2, arg1, arg2, null, null);
+        }
+    }
+
+    @Override
+    public void debug(Marker marker, String format, Object[] argArray) {
+        if ( delegate.isDebugEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.DEBUG, marker, format, -1, null, null, argArray, null);
+        }
+    }
+
+    @Override
+    public void debug(Marker marker, String msg, Throwable t) {
+        if ( delegate.isDebugEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.DEBUG, marker, msg, 0, null, null, null, t);
+        }
+    }
+
+    @Override
+    public boolean isInfoEnabled() {
+        return delegate.isInfoEnabled();
+    }
+
+    @Override
+    public void info(String msg) {
+        if ( delegate.isInfoEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.INFO, null, msg, 0, null, null, null, null);
+        }
+    }
+
+    @Override
+    public void info(String format, Object arg) {
+        if ( delegate.isInfoEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.INFO, null, format, 1, arg, null, null, null);
+        }
+    }
+
+    @Override
+    public void info(String format, Object arg1, Object arg2) {
+        if ( delegate.isInfoEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.INFO, null, format, 2, arg1, arg2, null, null);
+        }
+    }
+
+    @Override
+    public void info(String format, Object[] argArray) {
+        if ( delegate.isInfoEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.INFO, null, format, -1, null, null, argArray, null);
+        }
+    }
+
+    @Override
+    public void info(String msg, Throwable t) {
+        if ( delegate.isInfoEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.INFO, null, msg, 0, null, null, null, t);
+        }
+    }
+
+    @Override
+    public boolean isInfoEnabled(Marker marker) {
+        return delegate.isInfoEnabled(marker);
+    }
+
+    @Override
+    public void info(Marker marker, String msg) {
+        if ( delegate.isInfoEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.INFO, marker, msg, 0, null, null, null, null);
+        }
+    }
+
+    @Override
+    public void info(Marker marker, String format, Object arg) {
+        if ( delegate.isInfoEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.INFO, marker, format, 1, arg, null, null, null);
+        }
+    }
+
+    @Override
+    public void info(Marker marker, String format, Object arg1, Object arg2) {
+        if ( delegate.isInfoEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.INFO, marker, format, 2, arg1, arg2, null, null);
+        }
+    }
+
+    @Override
+    public void info(Marker marker, String format, Object[] argArray) {
+        if ( delegate.isInfoEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.INFO, marker, format, -1, null, null, argArray, null);
+        }
+    }
+
+    @Override
+    public void info(Marker marker, String msg, Throwable t) {
+        if ( delegate.isInfoEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.INFO, marker, msg, 0, null, null, null, t);
+        }
+    }
+
+    @Override
+    public boolean isWarnEnabled() {
+        return delegate.isWarnEnabled();
+    }
+
+    @Override
+    public void warn(String msg) {
+        if ( delegate.isWarnEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.WARN, null, msg, 0, null, null, null, null);
+        }
+    }
+
+    @Override
+    public void warn(String format, Object arg) {
+        if ( delegate.isWarnEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.WARN, null, format, 1, arg, null, null, null);
+        }
+    }
+
+    @Override
+    public void warn(String format, Object arg1, Object arg2) {
+        if ( delegate.isWarnEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.WARN, null, format, 2, arg1, arg2, null, null);
+        }
+    }
+
+    @Override
+    public void warn(String format, Object[] argArray) {
+        if ( delegate.isWarnEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.WARN, null, format, -1, null, null, argArray, null);
+        }
+    }
+
+    @Override
+    public void warn(String msg, Throwable t) {
+        if ( delegate.isWarnEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.WARN, null, msg, 0, null, null, null, t);
+        }
+    }
+
+    @Override
+    public boolean isWarnEnabled(Marker marker) {
+        return delegate.isWarnEnabled(marker);
+    }
+
+    @Override
+    public void warn(Marker marker, String msg) {
+        if ( delegate.isWarnEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.WARN, marker, msg, 0, null, null, null, null);
+        }
+    }
+
+    @Override
+    public void warn(Marker marker, String format, Object arg) {
+        if ( delegate.isWarnEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.WARN, marker, format, 1, arg, null, null, null);
+        }
+    }
+
+    @Override
+    public void warn(Marker marker, String format, Object arg1, Object arg2) {
+        if ( delegate.isWarnEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.WARN, marker, format, 2, arg1, arg2, null, null);
+        }
+    }
+
+    @Override
+    public void warn(Marker marker, String format, Object[] argArray) {
+        if ( delegate.isWarnEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.WARN, marker, format, -1, null, null, argArray, null);
+        }
+    }
+
+    @Override
+    public void warn(Marker marker, String msg, Throwable t) {
+        if ( delegate.isWarnEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.WARN, marker, msg, 0, null, null, null, t);
+        }
+    }
+
+    @Override
+    public boolean isErrorEnabled() {
+        return delegate.isErrorEnabled();
+    }
+
+    @Override
+    public void error(String msg) {
+        if ( delegate.isErrorEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.ERROR, null, msg, 0, null, null, null, null);
+        }
+    }
+
+    @Override
+    public void error(String format, Object arg) {
+        if ( delegate.isErrorEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.ERROR, null, format, 1, arg, null, null, null);
+        }
+    }
+
+    @Override
+    public void error(String format, Object arg1, Object arg2) {
+        if ( delegate.isErrorEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.ERROR, null, format, 2, arg1, arg2, null, null);
+        }
+    }
+
+    @Override
+    public void error(String format, Object[] argArray) {
+        if ( delegate.isErrorEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.ERROR, null, format, -1, null, null, argArray, null);
+        }
+    }
+
+    @Override
+    public void error(String msg, Throwable t) {
+        if ( delegate.isErrorEnabled() ) {
+            buffer.offer(delegate, LogRingBuffer.ERROR, null, msg, 0, null, null, null, t);
+        }
+    }
+
+    @Override
+    public boolean isErrorEnabled(Marker marker) {
+        return delegate.isErrorEnabled(marker);
+    }
+
+    @Override
+    public void error(Marker marker, String msg) {
+        if ( delegate.isErrorEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.ERROR, marker, msg, 0, null, null, null, null);
+        }
+    }
+
+    @Override
+    public void error(Marker marker, String format, Object arg) {
+        if ( delegate.isErrorEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.ERROR, marker, format, 1, arg, null, null, null);
+        }
+    }
+
+    @Override
+    public void error(Marker marker, String format, Object arg1, Object arg2) {
+        if ( delegate.isErrorEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.ERROR, marker, format, 2, arg1, arg2, null, null);
+        }
+    }
+
+    @Override
+    public void error(Marker marker, String format, Object[] argArray) {
+        if ( delegate.isErrorEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.ERROR, marker, format, -1, null, null, argArray, null);
+        }
+    }
+
+    @Override
+    public void error(Marker marker, String msg, Throwable t) {
+        if ( delegate.isErrorEnabled(marker) ) {
+            buffer.offer(delegate, LogRingBuffer.ERROR, marker, msg, 0, null, null, null, t);
+        }
+    }
+
+}
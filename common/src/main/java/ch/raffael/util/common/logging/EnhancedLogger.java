@@ -7,16 +7,58 @@ import com.google.common.base.Function;
 
 
 /**
+ * A logger that passes all messages and formats through an enhancer function (e.g. to
+ * add a prefix) before forwarding them to the delegate.
+ * <p/>
+ * By default, the enhanced formats are cached, keyed by the identity of the original
+ * format string (usually a constant). The enhancer must therefore always return the
+ * same result for the same format; pass <code>cacheFormats=false</code> if it doesn't.
+ *
  * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
  */
 public class EnhancedLogger implements Logger {
 
+    private static final int CACHE_SIZE = 256;
+
     private final Logger delegate;
     private final Function<String, String> enhancer;
+    private final CachedFormat[] cache;
 
     public EnhancedLogger(Logger delegate, Function<String, String> enhancer) {
+        this(delegate, enhancer, true);
+    }
+
+    public EnhancedLogger(Logger delegate, Function<String, String> enhancer, boolean cacheFormats) {
         this.delegate = delegate;
         this.enhancer = enhancer;
+        cache = cacheFormats ? new CachedFormat[CACHE_SIZE] : null;
+    }
+
+    /**
+     * Create an enhanced logger that logs asynchronously.
+     *
+     * @see AsyncLogger
+     */
+    public static EnhancedLogger asynchronous(Logger delegate, Function<String, String> enhancer) {
+        return new EnhancedLogger(new AsyncLogger(delegate), enhancer);
+    }
+
+    /**
+     * Enhance the given format. The cache is direct-mapped: Each format has exactly one
+     * slot determined by its identity hash code, a collision simply replaces the
+     * previous entry. Entries are immutable, so there's no need to synchronize.
+     */
+    private String enhance(String format) {
+        if ( cache == null || format == null ) {
+            return enhancer.apply(format);
+        }
+        int slot = System.identityHashCode(format) & (CACHE_SIZE - 1);
+        CachedFormat cached = cache[slot];
+        if ( cached == null || cached.format != format ) {
+            cached = new CachedFormat(format, enhancer.apply(format));
+            cache[slot] = cached;
+        }
+        return cached.enhanced;
     }
 
     @Override
@@ -32,35 +74,35 @@ public class EnhancedLogger implements Logger {
     @Override
     public void trace(String msg) {
         if ( delegate.isTraceEnabled() ) {
-            delegate.trace(enhancer.apply(msg));
+            delegate.trace(enhance(msg));
         }
     }
 
     @Override
     public void trace(String format, Object arg) {
         if ( delegate.isTraceEnabled() ) {
-            delegate.trace(enhancer.apply(format), arg);
+            delegate.trace(enhance(format), arg);
         }
     }
 
     @Override
     public void trace(String format, Object arg1, Object arg2) {
         if ( delegate.isTraceEnabled() ) {
-            delegate.trace(enhancer.apply(format), arg1, arg2);
+            delegate.trace(enhance(format), arg1, arg2);
         }
     }
 
     @Override
     public void trace(String format, Object[] argArray) {
         if ( delegate.isTraceEnabled() ) {
-            delegate.trace(enhancer.apply(format), argArray);
+            delegate.trace(enhance(format), argArray);
         }
     }
 
     @Override
     public void trace(String msg, Throwable t) {
         if ( delegate.isTraceEnabled() ) {
-            delegate.trace(enhancer.apply(msg), t);
+            delegate.trace(enhance(msg), t);
         }
     }
 
@@ -72,35 +114,35 @@ public class EnhancedLogger implements Logger {
     @Override
     public void trace(Marker marker, String msg) {
         if ( delegate.isTraceEnabled(marker) ) {
-            delegate.trace(marker, enhancer.apply(msg));
+            delegate.trace(marker, enhance(msg));
         }
     }
 
     @Override
     public void trace(Marker marker, String format, Object arg) {
         if ( delegate.isTraceEnabled(marker) ) {
-            delegate.trace(marker, enhancer.apply(format), arg);
+            delegate.trace(marker, enhance(format), arg);
         }
     }
 
     @Override
     public void trace(Marker marker, String format, Object arg1, Object arg2) {
         if ( delegate.isTraceEnabled(marker) ) {
-            delegate.trace(marker, enhancer.apply(format), arg1, arg2);
+            delegate.trace(marker, enhance(format), arg1, arg2);
         }
     }
 
     @Override
     public void trace(Marker marker, String format, Object[] argArray) {
         if ( delegate.isTraceEnabled(marker) ) {
-            delegate.trace(marker, enhancer.apply(format), argArray);
+            delegate.trace(marker, enhance(format), argArray);
         }
     }
 
     @Override
     public void trace(Marker marker, String msg, Throwable t) {
         if ( delegate.isTraceEnabled(marker) ) {
-            delegate.trace(marker, enhancer.apply(msg), t);
+            delegate.trace(marker, enhance(msg), t);
         }
     }
 
@@ -112,35 +154,35 @@ public class EnhancedLogger implements Logger {
     @Override
     public void debug(String msg) {
         if ( delegate.isDebugEnabled() ) {
-            delegate.debug(enhancer.apply(msg));
+            delegate.debug(enhance(msg));
         }
     }
 
     @Override
     public void debug(String format, Object arg) {
         if ( delegate.isDebugEnabled() ) {
-            delegate.debug(enhancer.apply(format), arg);
+            delegate.debug(enhance(format), arg);
         }
     }
 
     @Override
     public void debug(String format, Object arg1, Object arg2) {
         if ( delegate.isDebugEnabled() ) {
-            delegate.debug(enhancer.apply(format), arg1, arg2);
+            delegate.debug(enhance(format), arg1, arg2);
         }
     }
 
     @Override
     public void debug(String format, Object[] argArray) {
         if ( delegate.isDebugEnabled() ) {
-            delegate.debug(enhancer.apply(format), argArray);
+            delegate.debug(enhance(format), argArray);
         }
     }
 
     @Override
     public void debug(String msg, Throwable t) {
         if ( delegate.isDebugEnabled() ) {
-            delegate.debug(enhancer.apply(msg), t);
+            delegate.debug(enhance(msg), t);
         }
     }
 
@@ -152,35 +194,35 @@ public class EnhancedLogger implements Logger {
     @Override
     public void debug(Marker marker, String msg) {
         if ( delegate.isDebugEnabled(marker) ) {
-            delegate.debug(marker, enhancer.apply(msg));
+            delegate.debug(marker, enhance(msg));
         }
     }
 
     @Override
     public void debug(Marker marker, String format, Object arg) {
         if ( delegate.isDebugEnabled(marker) ) {
-            delegate.debug(marker, enhancer.apply(format), arg);
+            delegate.debug(marker, enhance(format), arg);
         }
     }
 
     @Override
     public void debug(Marker marker, String format, Object arg1, Object arg2) {
         if ( delegate.isDebugEnabled(marker) ) {
-            delegate.debug(marker, enhancer.apply(format), arg1, arg2);
+            delegate.debug(marker, enhance(format), arg1, arg2);
         }
     }
 
     @Override
     public void debug(Marker marker, String format, Object[] argArray) {
         if ( delegate.isDebugEnabled(marker) ) {
-            delegate.debug(marker, enhancer.apply(format), argArray);
+            delegate.debug(marker, enhance(format), argArray);
         }
     }
 
     @Override
     public void debug(Marker marker, String msg, Throwable t) {
         if ( delegate.isDebugEnabled(marker) ) {
-            delegate.debug(marker, enhancer.apply(msg), t);
+            delegate.debug(marker, enhance(msg), t);
         }
     }
 
@@ -192,35 +234,35 @@ public class EnhancedLogger implements Logger {
     @Override
     public void info(String msg) {
         if ( delegate.isInfoEnabled() ) {
-            delegate.info(enhancer.apply(msg));
+            delegate.info(enhance(msg));
         }
     }
 
     @Override
     public void info(String format, Object arg) {
         if ( delegate.isInfoEnabled() ) {
-            delegate.info(enhancer.apply(format), arg);
+            delegate.info(enhance(format), arg);
         }
     }
 
     @Override
     public void info(String format, Object arg1, Object arg2) {
         if ( delegate.isInfoEnabled() ) {
-            delegate.info(enhancer.apply(format), arg1, arg2);
+            delegate.info(enhance(format), arg1, arg2);
         }
     }
 
     @Override
     public void info(String format, Object[] argArray) {
         if ( delegate.isInfoEnabled() ) {
-            delegate.info(enhancer.apply(format), argArray);
+            delegate.info(enhance(format), argArray);
         }
     }
 
     @Override
     public void info(String msg, Throwable t) {
         if ( delegate.isInfoEnabled() ) {
-            delegate.info(enhancer.apply(msg), t);
+            delegate.info(enhance(msg), t);
         }
     }
 
@@ -232,35 +274,35 @@ public class EnhancedLogger implements Logger {
     @Override
     public void info(Marker marker, String msg) {
         if ( delegate.isInfoEnabled(marker) ) {
-            delegate.info(marker, enhancer.apply(msg));
+            delegate.info(marker, enhance(msg));
         }
     }
 
     @Override
     public void info(Marker marker, String format, Object arg) {
         if ( delegate.isInfoEnabled(marker) ) {
-            delegate.info(marker, enhancer.apply(format), arg);
+            delegate.info(marker, enhance(format), arg);
         }
     }
 
     @Override
     public void info(Marker marker, String format, Object arg1, Object arg2) {
         if ( delegate.isInfoEnabled(marker) ) {
-            delegate.info(marker, enhancer.apply(format), arg1, arg2);
+            delegate.info(marker, enhance(format), arg1, arg2);
         }
     }
 
     @Override
     public void info(Marker marker, String format, Object[] argArray) {
         if ( delegate.isInfoEnabled(marker) ) {
-            delegate.info(marker, enhancer.apply(format), argArray);
+            delegate.info(marker, enhance(format), argArray);
         }
     }
 
     @Override
     public void info(Marker marker, String msg, Throwable t) {
         if ( delegate.isInfoEnabled(marker) ) {
-            delegate.info(marker, enhancer.apply(msg), t);
+            delegate.info(marker, enhance(msg), t);
         }
     }
 
@@ -272,35 +314,35 @@ public class EnhancedLogger implements Logger {
     @Override
     public void warn(String msg) {
         if ( delegate.isWarnEnabled() ) {
-            delegate.warn(enhancer.apply(msg));
+            delegate.warn(enhance(msg));
         }
     }
 
     @Override
     public void warn(String format, Object arg) {
         if ( delegate.isWarnEnabled() ) {
-            delegate.warn(enhancer.apply(format), arg);
+            delegate.warn(enhance(format), arg);
         }
     }
 
     @Override
     public void warn(String format, Object arg1, Object arg2) {
         if ( delegate.isWarnEnabled() ) {
-            delegate.warn(enhancer.apply(format), arg1, arg2);
+            delegate.warn(enhance(format), arg1, arg2);
         }
     }
 
     @Override
     public void warn(String format, Object[] argArray) {
         if ( delegate.isWarnEnabled() ) {
-            delegate.warn(enhancer.apply(format), argArray);
+            delegate.warn(enhance(format), argArray);
         }
     }
 
     @Override
     public void warn(String msg, Throwable t) {
         if ( delegate.isWarnEnabled() ) {
-            delegate.warn(enhancer.apply(msg), t);
+            delegate.warn(enhance(msg), t);
         }
     }
 
@@ -312,35 +354,35 @@ public class EnhancedLogger implements Logger {
     @Override
     public void warn(Marker marker, String msg) {
         if ( delegate.isWarnEnabled(marker) ) {
-            delegate.warn(marker, enhancer.apply(msg));
+            delegate.warn(marker, enhance(msg));
         }
     }
 
     @Override
     public void warn(Marker marker, String format, Object arg) {
         if ( delegate.isWarnEnabled(marker) ) {
-            delegate.warn(marker, enhancer.apply(format), arg);
+            delegate.warn(marker, enhance(format), arg);
         }
     }
 
     @Override
     public void warn(Marker marker, String format, Object arg1, Object arg2) {
         if ( delegate.isWarnEnabled(marker) ) {
-            delegate.warn(marker, enhancer.apply(format), arg1, arg2);
+            delegate.warn(marker, enhance(format), arg1, arg2);
         }
     }
 
     @Override
     public void warn(Marker marker, String format, Object[] argArray) {
         if ( delegate.isWarnEnabled(marker) ) {
-            delegate.warn(marker, enhancer.apply(format), argArray);
+            delegate.warn(marker, enhance(format), argArray);
         }
     }
 
     @Override
     public void warn(Marker marker, String msg, Throwable t) {
         if ( delegate.isWarnEnabled(marker) ) {
-            delegate.warn(marker, enhancer.apply(msg), t);
+            delegate.warn(marker, enhance(msg), t);
         }
     }
 
@@ -352,35 +394,35 @@ public class EnhancedLogger implements Logger {
     @Override
     public void error(String msg) {
         if ( delegate.isErrorEnabled() ) {
-            delegate.error(enhancer.apply(msg));
+            delegate.error(enhance(msg));
         }
     }
 
     @Override
     public void error(String format, Object arg) {
         if ( delegate.isErrorEnabled() ) {
-            delegate.error(enhancer.apply(format), arg);
+            delegate.error(enhance(format), arg);
         }
     }
 
     @Override
     public void error(String format, Object arg1, Object arg2) {
         if ( delegate.isErrorEnabled() ) {
-            delegate.error(enhancer.apply(format), arg1, arg2);
+            delegate.error(enhance(format), arg1, arg2);
         }
     }
 
     @Override
     public void error(String format, Object[] argArray) {
         if ( delegate.isErrorEnabled() ) {
-            delegate.error(enhancer.apply(format), argArray);
+            delegate.error(enhance(format), argArray);
         }
     }
 
     @Override
     public void error(String msg, Throwable t) {
         if ( delegate.isErrorEnabled() ) {
-            delegate.error(enhancer.apply(msg), t);
+            delegate.error(enhance(msg), t);
         }
     }
 
@@ -392,35 +434,44 @@ public class EnhancedLogger implements Logger {
     @Override
     public void error(Marker marker, String msg) {
         if ( delegate.isErrorEnabled(marker) ) {
-            delegate.error(marker, enhancer.apply(msg));
+            delegate.error(marker, enhance(msg));
         }
     }
 
     @Override
     public void error(Marker marker, String format, Object arg) {
         if ( delegate.isErrorEnabled(marker) ) {
-            delegate.error(marker, enhancer.apply(format), arg);
+            delegate.error(marker, enhance(format), arg);
         }
     }
 
     @Override
     public void error(Marker marker, String format, Object arg1, Object arg2) {
         if ( delegate.isErrorEnabled(marker) ) {
-            delegate.error(marker, enhancer.apply(format), arg1, arg2);
+            delegate.error(marker, enhance(format), arg1, arg2);
         }
     }
 
     @Override
     public void error(Marker marker, String format, Object[] argArray) {
         if ( delegate.isErrorEnabled(marker) ) {
-            delegate.error(marker, enhancer.apply(format), argArray);
+            delegate.error(marker, enhance(format), argArray);
         }
     }
 
     @Override
     public void error(Marker marker, String msg, Throwable t) {
         if ( delegate.isErrorEnabled(marker) ) {
-            delegate.error(marker, enhancer.apply(msg), t);
+            delegate.error(marker, enhance(msg), t);
+        }
+    }
+
+    private static final class CachedFormat {
+        private final String format;
+        private final String enhanced;
+        private CachedFormat(String format, String enhanced) {
+            this.format = format;
+            this.enhanced = enhanced;
         }
     }
 
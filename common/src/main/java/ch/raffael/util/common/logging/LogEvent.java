@@ -0,0 +1,245 @@
+package ch.raffael.util.common.logging;
+
+import org.slf4j.Logger;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+
+/**
+ * A structured log event being built. Instances are reused, so an event must not be
+ * used anymore after calling {@link #log()}. An event that's never logged is discarded
+ * when the next event is started in the same thread.
+ *
+ * @see StructuredLogger
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public class LogEvent {
+
+    static final LogEvent DISABLED = new LogEvent() {
+        @Override
+        boolean isBusy() {
+            return false;
+        }
+        @Override
+        LogEvent begin(Logger logger, int level, String name) {
+            return this;
+        }
+        @NotNull
+        @Override
+        public LogEvent field(@NotNull String name, @Nullable Object value) {
+            return this;
+        }
+        @NotNull
+        @Override
+        public LogEvent field(@NotNull String name, @Nullable String value) {
+            return this;
+        }
+        @NotNull
+        @Override
+        public LogEvent field(@NotNull String name, long value) {
+            return this;
+        }
+        @NotNull
+        @Override
+        public LogEvent field(@NotNull String name, int value) {
+            return this;
+        }
+        @NotNull
+        @Override
+        public LogEvent field(@NotNull String name, double value) {
+            return this;
+        }
+        @NotNull
+        @Override
+        public LogEvent field(@NotNull String name, boolean value) {
+            return this;
+        }
+        @Override
+        public void log() {
+        }
+        @Override
+        public void log(@Nullable Throwable t) {
+        }
+    };
+
+    private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+    private StringBuilder buf = new StringBuilder(256);
+    private Logger logger;
+    private int level;
+    /**
+     * The number of calls into foreign code (<code>toString()</code>, the logger)
+     * currently running for this event.
+     */
+    private int depth = 0;
+
+    LogEvent() {
+    }
+
+    /**
+     * @return <code>true</code>, if this event is calling foreign code that may start
+     *         another event in the same thread. An event that has been started, but not
+     *         logged, isn't busy: It has been abandoned (or a field failed), a new event
+     *         may reuse it.
+     */
+    boolean isBusy() {
+        return depth > 0;
+    }
+
+    LogEvent begin(Logger logger, int level, String name) {
+        this.logger = logger;
+        this.level = level;
+        buf.setLength(0);
+        buf.append("{\"event\":");
+        appendString(name);
+        return this;
+    }
+
+    @NotNull
+    public LogEvent field(@NotNull String name, @Nullable Object value) {
+        if ( value == null ) {
+            name(name).append("null");
+        }
+        else if ( value instanceof Double || value instanceof Float ) {
+            double doubleValue = ((Number)value).doubleValue();
+            if ( Double.isNaN(doubleValue) || Double.isInfinite(doubleValue) ) {
+                // not representable in JSON
+                name(name).append('"').append(value).append('"');
+            }
+            else {
+                name(name).append(value);
+            }
+        }
+        else if ( value instanceof Number || value instanceof Boolean ) {
+            name(name).append(value);
+        }
+        else {
+            depth++;
+            try {
+                String str = value.toString();
+                name(name);
+                appendString(str);
+            }
+            finally {
+                depth--;
+            }
+        }
+        return this;
+    }
+
+    @NotNull
+    public LogEvent field(@NotNull String name, @Nullable String value) {
+        if ( value == null ) {
+            name(name).append("null");
+        }
+        else {
+            name(name);
+            appendString(value);
+        }
+        return this;
+    }
+
+    @NotNull
+    public LogEvent field(@NotNull String name, long value) {
+        name(name).append(value);
+        return this;
+    }
+
+    @NotNull
+    public LogEvent field(@NotNull String name, int value) {
+        name(name).append(value);
+        return this;
+    }
+
+    @NotNull
+    public LogEvent field(@NotNull String name, double value) {
+        if ( Double.isNaN(value) || Double.isInfinite(value) ) {
+            // not representable in JSON
+            name(name).append('"').append(value).append('"');
+        }
+        else {
+            name(name).append(value);
+        }
+        return this;
+    }
+
+    @NotNull
+    public LogEvent field(@NotNull String name, boolean value) {
+        name(name).append(value);
+        return this;
+    }
+
+    /**
+     * Log the event. Logging an event a second time does nothing.
+     */
+    public void log() {
+        log(null);
+    }
+
+    /**
+     * Log the event with an exception.
+     *
+     * @param t The exception.
+     */
+    public void log(@Nullable Throwable t) {
+        if ( logger == null ) {
+            // already logged
+            return;
+        }
+        buf.append('}');
+        String message = buf.toString();
+        Logger logger = this.logger;
+        this.logger = null;
+        if ( buf.capacity() > MAX_RETAINED_CAPACITY ) {
+            buf = new StringBuilder(256);
+        }
+        depth++;
+        try {
+            LogRingBuffer.log(logger, level, null, message, 0, null, null, null, t);
+        }
+        finally {
+            depth--;
+        }
+    }
+
+    private StringBuilder name(String name) {
+        buf.append(',');
+        appendString(name);
+        return buf.append(':');
+    }
+
+    private void appendString(String str) {
+        buf.append('"');
+        for ( int i = 0; i < str.length(); i++ ) {
+            char c = str.charAt(i);
+            switch ( c ) {
+                case '"':
+                    buf.append("\\\"");
+                    break;
+                case '\\':
+                    buf.append("\\\\");
+                    break;
+                case '\n':
+                    buf.append("\\n");
+                    break;
+                case '\r':
+                    buf.append("\\r");
+                    break;
+                case '\t':
+                    buf.append("\\t");
+                    break;
+                default:
+                    if ( c < 0x20 ) {
+                        buf.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+                    }
+                    else {
+                        buf.append(c);
+                    }
+            }
+        }
+        buf.append('"');
+    }
+
+}
@@ -0,0 +1,339 @@
+package ch.raffael.util.common.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.Marker;
+
+
+/**
+ * A bounded, lock-free multi-producer/single-consumer ring buffer of log events,
+ * drained by a daemon thread. The events are pre-allocated and reused.
+ * <p/>
+ * Each slot has a sequence number: A producer claims a slot by incrementing the tail
+ * using CAS, fills the event and publishes it by setting the slot's sequence to
+ * <em>position+1</em>. The consumer processes the event and releases the slot by
+ * setting the sequence to <em>position+capacity</em>.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class LogRingBuffer {
+
+    static final int TRACE = 0;
+    static final int DEBUG = 1;
+    static final int INFO = 2;
+    static final int WARN = 3;
+    static final int ERROR = 4;
+
+    /**
+     * Reports errors of the delegate loggers.
+     */
+    private static final Logger fallback = LoggerFactory.getLogger(LogRingBuffer.class);
+
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SHUTDOWN_FLUSH_MILLIS = 5000;
+
+    private final int mask;
+    private final Event[] events;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+    private volatile boolean parked = false;
+    private final Thread thread;
+
+    LogRingBuffer(int capacity) {
+        if ( Integer.bitCount(capacity) != 1 ) {
+            throw new IllegalArgumentException("Capacity must be a power of 2: " + capacity);
+        }
+        mask = capacity - 1;
+        events = new Event[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for ( int i = 0; i < capacity; i++ ) {
+            events[i] = new Event();
+            sequences.set(i, i);
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "Asynchronous Logging");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static LogRingBuffer shared() {
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * Add an event to the buffer. If the buffer is full, the event is logged
+     * synchronously.
+     */
+    void offer(Logger logger, int level, Marker marker, String format, int argc, Object arg1, Object arg2, Object[] args, Throwable t) {
+        long pos;
+        while ( true ) {
+            pos = tail.get();
+            long diff = sequences.get((int)pos & mask) - pos;
+            if ( diff == 0 ) {
+                if ( tail.compareAndSet(pos, pos + 1) ) {
+                    break;
+                }
+            }
+            else if ( diff < 0 ) {
+                // full
+                log(logger, level, marker, format, argc, arg1, arg2, args, t);
+                return;
+            }
+        }
+        Event event = events[(int)pos & mask];
+        event.logger = logger;
+        event.level = level;
+        event.marker = marker;
+        event.format = format;
+        event.argc = argc;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.args = args;
+        event.t = t;
+        sequences.set((int)pos & mask, pos + 1);
+        if ( parked ) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Wait until all events offered so far have been processed.
+     *
+     * @return <code>true</code> if all events have been processed within the timeout.
+     */
+    boolean flush(long timeoutMillis) {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while ( head < target ) {
+            if ( System.nanoTime() - deadline >= 0 ) {
+                return false;
+            }
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    private void drain() {
+        while ( true ) {
+            if ( !poll() ) {
+                parked = true;
+                if ( !isEmpty() ) {
+                    parked = false;
+                    continue;
+                }
+                LockSupport.parkNanos(this, PARK_NANOS);
+                parked = false;
+            }
+        }
+    }
+
+    private boolean isEmpty() {
+        return sequences.get((int)head & mask) != head + 1;
+    }
+
+    private boolean poll() {
+        long pos = head;
+        int slot = (int)pos & mask;
+        if ( sequences.get(slot) != pos + 1 ) {
+            return false;
+        }
+        Event event = events[slot];
+        try {
+            log(event.logger, event.level, event.marker, event.format, event.argc, event.arg1, event.arg2, event.args, event.t);
+        }
+        catch ( RuntimeException e ) {
+            try {
+                fallback.error("Error logging asynchronously to {}: {}", new Object[] { event.logger.getName(), event.format, e });
+            }
+            catch ( RuntimeException fallbackError ) {
+                // the logging backend is broken
+                e.printStackTrace();
+            }
+        }
+        finally {
+            event.clear();
+            sequences.set(slot, pos + mask + 1);
+            head = pos + 1;
+        }
+        return true;
+    }
+
+    static void log(Logger logger, int level, Marker marker, String format, int argc, Object arg1, Object arg2, Object[] args, Throwable t) {
+        if ( argc == 1 ) {
+            args = new Object[] { arg1 };
+        }
+        else if ( argc == 2 ) {
+            args = new Object[] { arg1, arg2 };
+        }
+        switch ( level ) {
+            case TRACE:
+                if ( marker == null ) {
+                    if ( args != null ) {
+                        logger.trace(format, args);
+                    }
+                    else if ( t != null ) {
+                        logger.trace(format, t);
+                    }
+                    else {
+                        logger.trace(format);
+                    }
+                }
+                else {
+                    if ( args != null ) {
+                        logger.trace(marker, format, args);
+                    }
+                    else if ( t != null ) {
+                        logger.trace(marker, format, t);
+                    }
+                    else {
+                        logger.trace(marker, format);
+                    }
+                }
+                break;
+            case DEBUG:
+                if ( marker == null ) {
+                    if ( args != null ) {
+                        logger.debug(format, args);
+                    }
+                    else if ( t != null ) {
+                        logger.debug(format, t);
+                    }
+                    else {
+                        logger.debug(format);
+                    }
+                }
+                else {
+                    if ( args != null ) {
+                        logger.debug(marker, format, args);
+                    }
+                    else if ( t != null ) {
+                        logger.debug(marker, format, t);
+                    }
+                    else {
+                        logger.debug(marker, format);
+                    }
+                }
+                break;
+            case INFO:
+                if ( marker == null ) {
+                    if ( args != null ) {
+                        logger.info(format, args);
+                    }
+                    else if ( t != null ) {
+                        logger.info(format, t);
+                    }
+                    else {
+                        logger.info(format);
+                    }
+                }
+                else {
+                    if ( args != null ) {
+                        logger.info(marker, format, args);
+                    }
+                    else if ( t != null ) {
+                        logger.info(marker, format, t);
+                    }
+                    else {
+                        logger.info(marker, format);
+                    }
+                }
+                break;
+            case WARN:
+                if ( marker == null ) {
+                    if ( args != null ) {
+                        logger.warn(format, args);
+                    }
+                    else if ( t != null ) {
+                        logger.warn(format, t);
+                    }
+                    else {
+                        logger.warn(format);
+                    }
+                }
+                else {
+                    if ( args != null ) {
+                        logger.warn(marker, format, args);
+                    }
+                    else if ( t != null ) {
+                        logger.warn(marker, format, t);
+                    }
+                    else {
+                        logger.warn(marker, format);
+                    }
+                }
+                break;
+            case ERROR:
+                if ( marker == null ) {
+                    if ( args != null ) {
+                        logger.error(format, args);
+                    }
+                    else if ( t != null ) {
+                        logger.error(format, t);
+                    }
+                    else {
+                        logger.error(format);
+                    }
+                }
+                else {
+                    if ( args != null ) {
+                        logger.error(marker, format, args);
+                    }
+                    else if ( t != null ) {
+                        logger.error(marker, format, t);
+                    }
+                    else {
+                        logger.error(marker, format);
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid level: " + level);
+        }
+    }
+
+    private static final class Event {
+        private Logger logger;
+        private int level;
+        private Marker marker;
+        private String format;
+        private int argc;
+        private Object arg1;
+        private Object arg2;
+        private Object[] args;
+        private Throwable t;
+        private void clear() {
+            logger = null;
+            marker = null;
+            format = null;
+            arg1 = null;
+            arg2 = null;
+            args = null;
+            t = null;
+        }
+    }
+
+    private static final class Shared {
+        private static final LogRingBuffer INSTANCE = new LogRingBuffer(DEFAULT_CAPACITY);
+        static {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    INSTANCE.flush(SHUTDOWN_FLUSH_MILLIS);
+                }
+            }, "Asynchronous Logging Shutdown"));
+        }
+    }
+
+}
@@ -49,4 +49,24 @@ public class LogUtil {
         return getLogger(Classes.callerClass(LogUtil.class));
     }
 
+    /**
+     * Wrap the given logger to limit the rate of messages per call site.
+     *
+     * @see RateLimitedLogger
+     */
+    @NotNull
+    public static Logger rateLimited(@NotNull Logger logger, double permitsPerSecond, int burst) {
+        return new RateLimitedLogger(logger, permitsPerSecond, burst);
+    }
+
+    /**
+     * Wrap the given logger to log only every n-th message per call site.
+     *
+     * @see SamplingLogger
+     */
+    @NotNull
+    public static Logger sampling(@NotNull Logger logger, int rate) {
+        return new SamplingLogger(logger, rate);
+    }
+
 }
@@ -0,0 +1,58 @@
+package ch.raffael.util.common.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+
+/**
+ * Limits the rate of messages per call site using a token bucket: Each call site may
+ * log <code>burst</code> messages at once, the bucket is then refilled at the given
+ * rate.
+ * <p/>
+ * The bucket is implemented as a single atomic "theoretical arrival time" (the GCRA
+ * variant of the token bucket), so admitting a message is a single CAS.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public class RateLimitedLogger extends ThrottledLogger {
+
+    private final long intervalNanos;
+    private final long toleranceNanos;
+
+    public RateLimitedLogger(Logger delegate, double permitsPerSecond, int burst) {
+        super(delegate);
+        if ( permitsPerSecond <= 0 ) {
+            throw new IllegalArgumentException("permitsPerSecond must be >0: " + permitsPerSecond);
+        }
+        if ( burst < 1 ) {
+            throw new IllegalArgumentException("burst must be >=1: " + burst);
+        }
+        intervalNanos = Math.max(1, (long)(TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        toleranceNanos = intervalNanos * (burst - 1);
+    }
+
+    @Override
+    protected Site newSite() {
+        return new Bucket();
+    }
+
+    private final class Bucket extends Site {
+        private final AtomicLong arrival = new AtomicLong(System.nanoTime());
+        @Override
+        protected boolean permit() {
+            while ( true ) {
+                long now = System.nanoTime();
+                long arrival = this.arrival.get();
+                if ( arrival - now > toleranceNanos ) {
+                    return false;
+                }
+                if ( this.arrival.compareAndSet(arrival, Math.max(arrival - now, 0) + now + intervalNanos) ) {
+                    return true;
+                }
+            }
+        }
+    }
+
+}
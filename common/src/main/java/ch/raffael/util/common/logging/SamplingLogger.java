@@ -0,0 +1,38 @@
+package ch.raffael.util.common.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+
+/**
+ * Logs only every n-th message per call site, starting with the first one.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public class SamplingLogger extends ThrottledLogger {
+
+    private final int rate;
+
+    public SamplingLogger(Logger delegate, int rate) {
+        super(delegate);
+        if ( rate < 1 ) {
+            throw new IllegalArgumentException("rate must be >=1: " + rate);
+        }
+        this.rate = rate;
+    }
+
+    @Override
+    protected Site newSite() {
+        return new Counter();
+    }
+
+    private final class Counter extends Site {
+        private final AtomicLong count = new AtomicLong();
+        @Override
+        protected boolean permit() {
+            return count.getAndIncrement() % rate == 0;
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package ch.raffael.util.common.logging;
+
+import org.slf4j.Logger;
+
+import org.jetbrains.annotations.NotNull;
+
+import ch.raffael.util.common.Classes;
+
+
+/**
+ * A facade for logging structured events. An event has a name and typed fields, it's
+ * logged as a single line of JSON:
+ *
+ * <pre>
+ * private static final StructuredLogger log = StructuredLogger.getLogger();
+ * ...
+ * log.info("login").field("user", user).field("attempts", attempts).log();
+ * </pre>
+ *
+ * results in <code>{"event":"login","user":"jdoe","attempts":3}</code>.
+ * <p/>
+ * The fields are appended directly to a thread-local buffer that's reused for each
+ * event. Primitives are appended without boxing, so the only object allocated per event
+ * is the final message string. If the level is disabled, a no-op event is returned.
+ * <p/>
+ * An event must be logged before starting the next one in the same thread, an event
+ * that hasn't been logged is discarded. Events started from within an event's
+ * <code>toString()</code> calls or its logger get their own buffer.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public final class StructuredLogger {
+
+    private static final ThreadLocal<LogEvent> events = new ThreadLocal<LogEvent>() {
+        @Override
+        protected LogEvent initialValue() {
+            return new LogEvent();
+        }
+    };
+
+    private final Logger delegate;
+
+    private StructuredLogger(Logger delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Get the structured logger for the calling class.
+     */
+    @NotNull
+    public static StructuredLogger getLogger() {
+        return new StructuredLogger(LogUtil.getLogger(Classes.callerClass(StructuredLogger.class)));
+    }
+
+    @NotNull
+    public static StructuredLogger getLogger(@NotNull Class<?> clazz) {
+        return new StructuredLogger(LogUtil.getLogger(clazz));
+    }
+
+    @NotNull
+    public static StructuredLogger of(@NotNull Logger delegate) {
+        return new StructuredLogger(delegate);
+    }
+
+    @NotNull
+    public Logger getDelegate() {
+        return delegate;
+    }
+
+    @NotNull
+    public LogEvent trace(@NotNull String event) {
+        return delegate.isTraceEnabled() ? begin(LogRingBuffer.TRACE, event) : LogEvent.DISABLED;
+    }
+
+    @NotNull
+    public LogEvent debug(@NotNull String event) {
+        return delegate.isDebugEnabled() ? begin(LogRingBuffer.DEBUG, event) : LogEvent.DISABLED;
+    }
+
+    @NotNull
+    public LogEvent info(@NotNull String event) {
+        return delegate.isInfoEnabled() ? begin(LogRingBuffer.INFO, event) : LogEvent.DISABLED;
+    }
+
+    @NotNull
+    public LogEvent warn(@NotNull String event) {
+        return delegate.isWarnEnabled() ? begin(LogRingBuffer.WARN, event) : LogEvent.DISABLED;
+    }
+
+    @NotNull
+    public LogEvent error(@NotNull String event) {
+        return delegate.isErrorEnabled() ? begin(LogRingBuffer.ERROR, event) : LogEvent.DISABLED;
+    }
+
+    private LogEvent begin(int level, String name) {
+        LogEvent event = events.get();
+        if ( event.isBusy() ) {
+            // we're called from within the event (e.g. a toString() logging)
+            event = new LogEvent();
+        }
+        return event.begin(delegate, level, name);
+    }
+
+}
@@ -0,0 +1,648 @@
+package ch.raffael.util.common.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import org.slf4j.Logger;
+import org.slf4j.Marker;
+
+import org.jetbrains.annotations.NotNull;
+
+import ch.raffael.util.common.Classes;
+
+
+/**
+ * Base class for loggers that drop messages to protect the application from excessive
+ * logging. The decision is made per call site, where the format string is used to
+ * identify the call site.
+ * <p/>
+ * Formats built dynamically (e.g. <code>"Cannot load " + file</code>) would get a new
+ * call site for each message. Therefore, a format only gets its own call site when it's
+ * logged the second time. Until then, it's accounted to the calling class: Once a class
+ * logged more than 16 formats that didn't repeat, all further new formats logged by
+ * that class are throttled together. Looking up the calling class walks the stack, so
+ * prefer constant formats with arguments or use {@link #forKey(Object)} to identify
+ * the call site explicitly.
+ * <p/>
+ * The number of dropped messages is counted per call site. The next message admitted
+ * for a call site is preceded by a summary like "Suppressed 42 messages like: ...".
+ * Pending summaries of call sites that don't get to log again are emitted by the first
+ * message logged after a minute, when a call site is dropped and on {@link #flush()}.
+ * At most 1024 call sites are tracked, the least recently used ones are dropped beyond
+ * that.
+ *
+ * @see RateLimitedLogger
+ * @see SamplingLogger
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public abstract class ThrottledLogger implements Logger {
+
+    /**
+     * The maximum number of call sites tracked individually.
+     */
+    private static final int MAX_SITES = 1024;
+    /**
+     * The number of non-repeating formats a class may log before it's throttled.
+     */
+    private static final int MAX_NEW_FORMATS = 16;
+    /**
+     * The interval in which pending summaries are emitted.
+     */
+    private static final long FLUSH_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+    private static final Object NULL_FORMAT = new Object();
+
+    private final Logger delegate;
+    private final LoadingCache<Object, Site> sites;
+    private final Cache<String, Caller> newFormats;
+    private final LoadingCache<Class<?>, Caller> callers;
+    private final Site fixedSite;
+    private final AtomicLong nextFlush;
+
+    protected ThrottledLogger(Logger delegate) {
+        this.delegate = delegate;
+        sites = CacheBuilder.newBuilder().maximumSize(MAX_SITES).removalListener(new RemovalListener<Object, Site>() {
+            @Override
+            public void onRemoval(RemovalNotification<Object, Site> notification) {
+                if ( notification.wasEvicted() && notification.getValue() != null ) {
+                    flush(notification.getValue());
+                }
+            }
+        }).build(new CacheLoader<Object, Site>() {
+            @Override
+            public Site load(Object key) {
+                return newSite();
+            }
+        });
+        newFormats = CacheBuilder.newBuilder().maximumSize(MAX_SITES).build();
+        callers = CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<Class<?>, Caller>() {
+            @Override
+            public Caller load(Class<?> key) {
+                return new Caller(newSite());
+            }
+        });
+        fixedSite = null;
+        nextFlush = new AtomicLong(System.nanoTime() + FLUSH_INTERVAL);
+    }
+
+    private ThrottledLogger(ThrottledLogger parent, Object key) {
+        delegate = parent.delegate;
+        sites = parent.sites;
+        newFormats = parent.newFormats;
+        callers = parent.callers;
+        fixedSite = sites.getUnchecked(key);
+        nextFlush = parent.nextFlush;
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    /**
+     * Create the state for a new call site.
+     */
+    protected abstract Site newSite();
+
+    /**
+     * Get a logger that throttles all its messages as one call site identified by the
+     * given key, regardless of the format strings. Use this for messages with dynamic
+     * formats.
+     *
+     * @param key The key identifying the call site.
+     *
+     * @return A logger sharing the state of this logger.
+     */
+    @NotNull
+    public Logger forKey(@NotNull Object key) {
+        return new Keyed(this, key);
+    }
+
+    /**
+     * Emit the summaries of all call sites that suppressed messages since their last
+     * admitted message. The summary is logged with the level, marker and format of the
+     * last suppressed message.
+     */
+    public void flush() {
+        for ( Site site : sites.asMap().values() ) {
+            flush(site);
+        }
+        for ( Caller caller : callers.asMap().values() ) {
+            flush(caller.site);
+        }
+    }
+
+    private void flush(Site site) {
+        long suppressed = site.suppressed.getAndSet(0);
+        if ( suppressed > 0 ) {
+            LogRingBuffer.log(delegate, site.level, site.marker, "Suppressed {} messages like: {}", 2, suppressed, site.format, null, null);
+        }
+    }
+
+    private boolean admit(int level, Marker marker, String format) {
+        long now = System.nanoTime();
+        long next = nextFlush.get();
+        if ( now - next >= 0 && nextFlush.compareAndSet(next, now + FLUSH_INTERVAL) ) {
+            flush();
+        }
+        Site site = site(format);
+        if ( site == null ) {
+            return true;
+        }
+        if ( site.permit() ) {
+            long suppressed = site.suppressed.getAndSet(0);
+            if ( suppressed > 0 ) {
+                LogRingBuffer.log(delegate, level, marker, "Suppressed {} messages like: {}", 2, suppressed, format, null, null);
+            }
+            return true;
+        }
+        else {
+            site.level = level;
+            site.marker = marker;
+            site.format = format;
+            site.suppressed.incrementAndGet();
+            return false;
+        }
+    }
+
+    private Site site(String format) {
+        if ( fixedSite != null ) {
+            return fixedSite;
+        }
+        if ( format == null ) {
+            return sites.getUnchecked(NULL_FORMAT);
+        }
+        Site site = sites.getIfPresent(format);
+        if ( site != null ) {
+            return site;
+        }
+        Caller caller = newFormats.asMap().remove(format);
+        if ( caller != null ) {
+            // seen the second time, probably a constant format
+            caller.newFormats.decrementAndGet();
+            site = newSite();
+            // account for the first message
+            site.permit();
+            Site prev = sites.asMap().putIfAbsent(format, site);
+            return prev == null ? site : prev;
+        }
+        caller = callers.getUnchecked(Classes.callerClass(ThrottledLogger.class));
+        newFormats.put(format, caller);
+        if ( caller.newFormats.incrementAndGet() <= MAX_NEW_FORMATS ) {
+            return null;
+        }
+        else {
+            return caller.site;
+        }
+    }
+
+    @Override
+    public boolean isTraceEnabled() {
+        return delegate.isTraceEnabled();
+    }
+
+    @Override
+    public void trace(String msg) {
+        if ( delegate.isTraceEnabled() && admit(LogRingBuffer.TRACE, null, msg) ) {
+            delegate.trace(msg);
+        }
+    }
+
+    @Override
+    public void trace(String format, Object arg) {
+        if ( delegate.isTraceEnabled() && admit(LogRingBuffer.TRACE, null, format) ) {
+            delegate.trace(format, arg);
+        }
+    }
+
+    @Override
+    public void trace(String format, Object arg1, Object arg2) {
+        if ( delegate.isTraceEnabled() && admit(LogRingBuffer.TRACE, null, format) ) {
+            delegate.trace(format, arg1, arg2);
+        }
+    }
+
+    @Override
+    public void trace(String format, Object[] argArray) {
+        if ( delegate.isTraceEnabled() && admit(LogRingBuffer.TRACE, null, format) ) {
+            delegate.trace(format, argArray);
+        }
+    }
+
+    @Override
+    public void trace(String msg, Throwable t) {
+        if ( delegate.isTraceEnabled() && admit(LogRingBuffer.TRACE, null, msg) ) {
+            delegate.trace(msg, t);
+        }
+    }
+
+    @Override
+    public boolean isTraceEnabled(Marker marker) {
+        return delegate.isTraceEnabled(marker);
+    }
+
+    @Override
+    public void trace(Marker marker, String msg) {
+        if ( delegate.isTraceEnabled(marker) && admit(LogRingBuffer.TRACE, marker, msg) ) {
+            delegate.trace(marker, msg);
+        }
+    }
+
+    @Override
+    public void trace(Marker marker, String format, Object arg) {
+        if ( delegate.isTraceEnabled(marker) && admit(LogRingBuffer.TRACE, marker, format) ) {
+            delegate.trace(marker, format, arg);
+        }
+    }
+
+    @Override
+    public void trace(Marker marker, String format, Object arg1, Object arg2) {
+        if ( delegate.isTraceEnabled(marker) && admit(LogRingBuffer.TRACE, marker, format) ) {
+            delegate.trace(marker, format, arg1, arg2);
+        }
+    }
+
+    @Override
+    public void trace(Marker marker, String format, Object[] argArray) {
+        if ( delegate.isTraceEnabled(marker) && admit(LogRingBuffer.TRACE, marker, format) ) {
+            delegate.trace(marker, format, argArray);
+        }
+    }
+
+    @Override
+    public void trace(Marker marker, String msg, Throwable t) {
+        if ( delegate.isTraceEnabled(marker) && admit(LogRingBuffer.TRACE, marker, msg) ) {
+            delegate.trace(marker, msg, t);
+        }
+    }
+
+    @Override
+    public boolean isDebugEnabled() {
+        return delegate.isDebugEnabled();
+    }
+
+    @Override
+    public void debug(String msg) {
+        if ( delegate.isDebugEnabled() && admit(LogRingBuffer.DEBUG, null, msg) ) {
+            delegate.debug(msg);
+        }
+    }
+
+    @Override
+    public void debug(String format, Object arg) {
+        if ( delegate.isDebugEnabled() && admit(LogRingBuffer.DEBUG, null, format) ) {
+            delegate.debug(format, arg);
+        }
+    }
+
+    @Override
+    public void debug(String format, Object arg1, Object arg2) {
+        if ( delegate.isDebugEnabled() && admit(LogRingBuffer.DEBUG, null, format) ) {
+            delegate.debug(format, arg1, arg2);
+        }
+    }
+
+    @Override
+    public void debug(String format, Object[] argArray) {
+        if ( delegate.isDebugEnabled() && admit(LogRingBuffer.DEBUG, null, format) ) {
+            delegate.debug(format, argArray);
+        }
+    }
+
+    @Override
+    public void debug(String msg, Throwable t) {
+        if ( delegate.isDebugEnabled() && admit(LogRingBuffer.DEBUG, null, msg) ) {
+            delegate.debug(msg, t);
+        }
+    }
+
+    @Override
+    public boolean isDebugEnabled(Marker marker) {
+        return delegate.isDebugEnabled(marker);
+    }
+
+    @Override
+    public void debug(Marker marker, String msg) {
+        if ( delegate.isDebugEnabled(marker) && admit(LogRingBuffer.DEBUG, marker, msg) ) {
+            delegate.debug(marker, msg);
+        }
+    }
+
+    @Override
+    public void debug(Marker marker, String format, Object arg) {
+        if ( delegate.isDebugEnabled(marker) && admit(LogRingBuffer.DEBUG, marker, format) ) {
+            delegate.debug(marker, format, arg);
+        }
+    }
+
+    @Override
+    public void debug(Marker marker, String format, Object arg1, Object arg2) {
+        if ( delegate.isDebugEnabled(marker) && admit(LogRingBuffer.DEBUG, marker, format) ) {
+            delegate.debug(marker, format, arg1, arg2);
+        }
+    }
+
+    @Override
+    public void debug(Marker marker, String format, Object[] argArray) {
+        if ( delegate.isDebugEnabled(marker) && admit(LogRingBuffer.DEBUG, marker, format) ) {
+            delegate.debug(marker, format, argArray);
+        }
+    }
+
+    @Override
+    public void debug(Marker marker, String msg, Throwable t) {
+        if ( delegate.isDebugEnabled(marker) && admit(LogRingBuffer.DEBUG, marker, msg) ) {
+            delegate.debug(marker, msg, t);
+        }
+    }
+
+    @Override
+    public boolean isInfoEnabled() {
+        return delegate.isInfoEnabled();
+    }
+
+    @Override
+    public void info(String msg) {
+        if ( delegate.isInfoEnabled() && admit(LogRingBuffer.INFO, null, msg) ) {
+            delegate.info(msg);
+        }
+    }
+
+    @Override
+    public void info(String format, Object arg) {
+        if ( delegate.isInfoEnabled() && admit(LogRingBuffer.INFO, null, format) ) {
+            delegate.info(format, arg);
+        }
+    }
+
+    @Override
+    public void info(String format, Object arg1, Object arg2) {
+        if ( delegate.isInfoEnabled() && admit(LogRingBuffer.INFO, null, format) ) {
+            delegate.info(format, arg1, arg2);
+        }
+    }
+
+    @Override
+    public void info(String format, Object[] argArray) {
+        if ( delegate.isInfoEnabled() && admit(LogRingBuffer.INFO, null, format) ) {
+            delegate.info(format, argArray);
+        }
+    }
+
+    @Override
+    public void info(String msg, Throwable t) {
+        if ( delegate.isInfoEnabled() && admit(LogRingBuffer.INFO, null, msg) ) {
+            delegate.info(msg, t);
+        }
+    }
+
+    @Override
+    public boolean isInfoEnabled(Marker marker) {
+        return delegate.isInfoEnabled(marker);
+    }
+
+    @Override
+    public void info(Marker marker, String msg) {
+        if ( delegate.isInfoEnabled(marker) && admit(LogRingBuffer.INFO, marker, msg) ) {
+            delegate.info(marker, msg);
+        }
+    }
+
+    @Override
+    public void info(Marker marker, String format, Object arg) {
+        if ( delegate.isInfoEnabled(marker) && admit(LogRingBuffer.INFO, marker, format) ) {
+            delegate.info(marker, format, arg);
+        }
+    }
+
+    @Override
+    public void info(Marker marker, String format, Object arg1, Object arg2) {
+        if ( delegate.isInfoEnabled(marker) && admit(LogRingBuffer.INFO, marker, format) ) {
+            delegate.info(marker, format, arg1, arg2);
+        }
+    }
+
+    @Override
+    public void info(Marker marker, String format, Object[] argArray) {
+        if ( delegate.isInfoEnabled(marker) && admit(LogRingBuffer.INFO, marker, format) ) {
+            delegate.info(marker, format, argArray);
+        }
+    }
+
+    @Override
+    public void info(Marker marker, String msg, Throwable t) {
+        if ( delegate.isInfoEnabled(marker) && admit(LogRingBuffer.INFO, marker, msg) ) {
+            delegate.info(marker, msg, t);
+        }
+    }
+
+    @Override
+    public boolean isWarnEnabled() {
+        return delegate.isWarnEnabled();
+    }
+
+    @Override
+    public void warn(String msg) {
+        if ( delegate.isWarnEnabled() && admit(LogRingBuffer.WARN, null, msg) ) {
+            delegate.warn(msg);
+        }
+    }
+
+    @Override
+    public void warn(String format, Object arg) {
+        if ( delegate.isWarnEnabled() && admit(LogRingBuffer.WARN, null, format) ) {
+            delegate.warn(format, arg);
+        }
+    }
+
+    @Override
+    public void warn(String format, Object arg1, Object arg2) {
+        if ( delegate.isWarnEnabled() && admit(LogRingBuffer.WARN, null, format) ) {
+            delegate.warn(format, arg1, arg2);
+        }
+    }
+
+    @Override
+    public void warn(String format, Object[] argArray) {
+        if ( delegate.isWarnEnabled() && admit(LogRingBuffer.WARN, null, format) ) {
+            delegate.warn(format, argArray);
+        }
+    }
+
+    @Override
+    public void warn(String msg, Throwable t) {
+        if ( delegate.isWarnEnabled() && admit(LogRingBuffer.WARN, null, msg) ) {
+            delegate.warn(msg, t);
+        }
+    }
+
+    @Override
+    public boolean isWarnEnabled(Marker marker) {
+        return delegate.isWarnEnabled(marker);
+    }
+
+    @Override
+    public void warn(Marker marker, String msg) {
+        if ( delegate.isWarnEnabled(marker) && admit(LogRingBuffer.WARN, marker, msg) ) {
+            delegate.warn(marker, msg);
+        }
+    }
+
+    @Override
+    public void warn(Marker marker, String format, Object arg) {
+        if ( delegate.isWarnEnabled(marker) && admit(LogRingBuffer.WARN, marker, format) ) {
+            delegate.warn(marker, format, arg);
+        }
+    }
+
+    @Override
+    public void warn(Marker marker, String format, Object arg1, Object arg2) {
+        if ( delegate.isWarnEnabled(marker) && admit(LogRingBuffer.WARN, marker, format) ) {
+            delegate.warn(marker, format, arg1, arg2);
+        }
+    }
+
+    @Override
+    public void warn(Marker marker, String format, Object[] argArray) {
+        if ( delegate.isWarnEnabled(marker) && admit(LogRingBuffer.WARN, marker, format) ) {
+            delegate.warn(marker, format, argArray);
+        }
+    }
+
+    @Override
+    public void warn(Marker marker, String msg, Throwable t) {
+        if ( delegate.isWarnEnabled(marker) && admit(LogRingBuffer.WARN, marker, msg) ) {
+            delegate.warn(marker, msg, t);
+        }
+    }
+
+    @Override
+    public boolean isErrorEnabled() {
+        return delegate.isErrorEnabled();
+    }
+
+    @Override
+    public void error(String msg) {
+        if ( delegate.isErrorEnabled() && admit(LogRingBuffer.ERROR, null, msg) ) {
+            delegate.error(msg);
+        }
+    }
+
+    @Override
+    public void error(String format, Object arg) {
+        if ( delegate.isErrorEnabled() && admit(LogRingBuffer.ERROR, null, format) ) {
+            delegate.error(format, arg);
+        }
+    }
+
+    @Override
+    public void error(String format, Object arg1, Object arg2) {
+        if ( delegate.isErrorEnabled() && admit(LogRingBuffer.ERROR, null, format) ) {
+            delegate.error(format, arg1, arg2);
+        }
+    }
+
+    @Override
+    public void error(String format, Object[] argArray) {
+        if ( delegate.isErrorEnabled() && admit(LogRingBuffer.ERROR, null, format) ) {
+            delegate.error(format, argArray);
+        }
+    }
+
+    @Override
+    public void error(String msg, Throwable t) {
+        if ( delegate.isErrorEnabled() && admit(LogRingBuffer.ERROR, null, msg) ) {
+            delegate.error(msg, t);
+        }
+    }
+
+    @Override
+    public boolean isErrorEnabled(Marker marker) {
+        return delegate.isErrorEnabled(marker);
+    }
+
+    @Override
+    public void error(Marker marker, String msg) {
+        if ( delegate.isErrorEnabled(marker) && admit(LogRingBuffer.ERROR, marker, msg) ) {
+            delegate.error(marker, msg);
+        }
+    }
+
+    @Override
+    public void error(Marker marker, String format, Object arg) {
+        if ( delegate.isErrorEnabled(marker) && admit(LogRingBuffer.ERROR, marker, format) ) {
+            delegate.error(marker, format, arg);
+        }
+    }
+
+    @Override
+    public void error(Marker marker, String format, Object arg1, Object arg2) {
+        if ( delegate.isErrorEnabled(marker) && admit(LogRingBuffer.ERROR, marker, format) ) {
+            delegate.error(marker, format, arg1, arg2);
+        }
+    }
+
+    @Override
+    public void error(Marker marker, String format, Object[] argArray) {
+        if ( delegate.isErrorEnabled(marker) && admit(LogRingBuffer.ERROR, marker, format) ) {
+            delegate.error(marker, format, argArray);
+        }
+    }
+
+    @Override
+    public void error(Marker marker, String msg, Throwable t) {
+        if ( delegate.isErrorEnabled(marker) && admit(LogRingBuffer.ERROR, marker, msg) ) {
+            delegate.error(marker, msg, t);
+        }
+    }
+
+    private static final class Keyed extends ThrottledLogger {
+        private final ThrottledLogger parent;
+        private Keyed(ThrottledLogger parent, Object key) {
+            super(parent, key);
+            this.parent = parent;
+        }
+        @Override
+        protected Site newSite() {
+            return parent.newSite();
+        }
+        @Override
+        public Logger forKey(@NotNull Object key) {
+            return parent.forKey(key);
+        }
+    }
+
+    private static final class Caller {
+        private final AtomicInteger newFormats = new AtomicInteger();
+        private final Site site;
+        private Caller(Site site) {
+            this.site = site;
+        }
+    }
+
+    /**
+     * The state of a call site.
+     */
+    protected static abstract class Site {
+        private final AtomicLong suppressed = new AtomicLong();
+        // the last suppressed message, for flushing
+        private volatile int level;
+        private volatile Marker marker;
+        private volatile String format;
+        protected Site() {
+        }
+        /**
+         * @return <code>true</code> if the message should be logged.
+         */
+        protected abstract boolean permit();
+    }
+
+}
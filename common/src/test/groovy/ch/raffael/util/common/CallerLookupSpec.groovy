@@ -0,0 +1,86 @@
+package ch.raffael.util.common
+
+import groovy.transform.CompileStatic
+import org.slf4j.Logger
+
+import ch.raffael.util.common.logging.LogUtil
+import spock.lang.IgnoreIf
+import spock.lang.Specification
+import spock.lang.Unroll
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class CallerLookupSpec extends Specification {
+
+    def "The SecurityManager backend is preferred"() {
+      expect:
+        CallerLookup.get() instanceof CallerLookup.SecurityManagerLookup
+    }
+
+    @IgnoreIf({ !CallerLookupSpec.stackWalkerAvailable() })
+    def "The StackWalker backend finds the caller"() {
+      expect:
+        Client.call(new CallerLookup.StackWalkerLookup()) == Client
+    }
+
+    @Unroll
+    def "#lookup.class.simpleName finds the caller"() {
+      expect:
+        Client.call(lookup) == Client
+
+      where:
+        lookup << [new CallerLookup.SecurityManagerLookup(), new CallerLookup.StackTraceLookup()]
+    }
+
+    def "StackTraceLookup falls back to the base class if the caller isn't visible"() {
+      given:
+        def hidden = new GroovyClassLoader(getClass().classLoader).parseClass('''
+            @groovy.transform.CompileStatic
+            class HiddenClient {
+                static Class<?> call() {
+                    return ch.raffael.util.common.CallerLookupSpec.Target.stackTraceCaller()
+                }
+            }
+            ''')
+
+      expect:
+        hidden.call() == Target
+    }
+
+    def "LogUtil.getLogger() returns the logger of the caller"() {
+      expect:
+        Client.logger().name == Client.name
+    }
+
+    static boolean stackWalkerAvailable() {
+        try {
+            Class.forName('java.lang.StackWalker')
+            return true
+        }
+        catch ( ClassNotFoundException e ) {
+            return false
+        }
+    }
+
+    @CompileStatic
+    static class Target {
+        static Class<?> caller(CallerLookup lookup) {
+            return lookup.callerClass(Classes, Target)
+        }
+        static Class<?> stackTraceCaller() {
+            return caller(new CallerLookup.StackTraceLookup())
+        }
+    }
+
+    @CompileStatic
+    static class Client {
+        static Class<?> call(CallerLookup lookup) {
+            return Target.caller(lookup)
+        }
+        static Logger logger() {
+            return LogUtil.getLogger()
+        }
+    }
+
+}
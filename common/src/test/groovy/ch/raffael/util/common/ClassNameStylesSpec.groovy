@@ -99,6 +99,65 @@ class ClassNameStylesSpec extends Specification {
         MyInnerClass[][].class | 'ch.raffael.util.common.ClassNameStylesSpec.MyInnerClass[][]'
     }
 
+    def "Resolved names are cached per class loader, failures aren't"() {
+      given:
+        def loader = new CountingClassLoader()
+        def name = style == NATURAL ? 'ch.raffael.util.common.ClassNameStylesSpec.MyInnerClass' : 'ch.raffael.util.common.ClassNameStylesSpec$MyInnerClass'
+
+      when:
+        def first = style.forName(loader, name)
+        def loads = loader.loads
+        def second = style.forName(loader, name)
+
+      then:
+        first == MyInnerClass
+        second == MyInnerClass
+        loader.loads == loads
+
+      when:
+        def missing = style.find(loader, 'foo.DoesNotExist')
+        loads = loader.loads
+        style.forName(loader, 'foo.DoesNotExist')
+
+      then:
+        def e = thrown(ClassNotFoundException)
+        e.cause instanceof ClassNotFoundException
+        missing == null
+        loader.loads > loads
+
+      where:
+        style << [NATURAL, BINARY]
+    }
+
+    def "Failures are cached if enabled until the cache is cleared"() {
+      given:
+        def loader = new CountingClassLoader()
+        style.cacheFailures = true
+
+      when:
+        def missing = style.find(loader, 'foo.Does.Not.Exist')
+        def loads = loader.loads
+        style.forName(loader, 'foo.Does.Not.Exist')
+
+      then:
+        thrown(ClassNotFoundException)
+        missing == null
+        loader.loads == loads
+
+      when:
+        style.clearCache()
+        style.find(loader, 'foo.Does.Not.Exist')
+
+      then:
+        loader.loads > loads
+
+      cleanup:
+        style.cacheFailures = false
+
+      where:
+        style << [NATURAL, BINARY]
+    }
+
     static class MyInnerClass {
     }
     
@@ -0,0 +1,19 @@
+package ch.raffael.util.common
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class CountingClassLoader extends ClassLoader {
+
+    int loads = 0
+
+    CountingClassLoader() {
+        super(CountingClassLoader.classLoader)
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        loads++
+        return super.loadClass(name, resolve)
+    }
+}
@@ -0,0 +1,169 @@
+package ch.raffael.util.common
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import spock.lang.Specification
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class LazyStrategiesSpec extends Specification {
+
+    def executor = Executors.newCachedThreadPool()
+
+    def cleanup() {
+        executor.shutdownNow()
+    }
+
+    def "RacyLazy publishes only the first result"() {
+      given:
+        def count = new AtomicInteger()
+        def start = new CountDownLatch(1)
+        def lazy = new RacyLazy<Integer>() {
+            @Override
+            protected Integer createInstance() {
+                start.await()
+                return count.incrementAndGet()
+            }
+        }
+
+      when:
+        def futures = (1..8).collect { executor.submit({ lazy.get() } as java.util.concurrent.Callable) }
+        start.countDown()
+        def results = futures*.get(5, TimeUnit.SECONDS)
+
+      then:
+        results.unique().size() == 1
+        lazy.get() == results[0]
+    }
+
+    def "RacyLazy serializes like Lazy"() {
+      given:
+        def lazy = new RacyUUID()
+        def value = lazy.get()
+
+      when:
+        def bytes = new ByteArrayOutputStream()
+        new ObjectOutputStream(bytes).withStream { it.writeObject(lazy) }
+        def copy = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject() as RacyUUID
+
+      then:
+        copy.get() == value
+    }
+
+    def "AsyncLazy computes once on the executor"() {
+      given:
+        def count = new AtomicInteger()
+        def thread = new AtomicInteger()
+        def caller = Thread.currentThread()
+        def lazy = new AsyncLazy<String>(executor) {
+            @Override
+            protected String computeInstance() {
+                if ( Thread.currentThread() != caller ) {
+                    thread.incrementAndGet()
+                }
+                count.incrementAndGet()
+                return "foo"
+            }
+        }
+
+      expect:
+        lazy.start().get().get(5, TimeUnit.SECONDS) == "foo"
+        lazy.get().get() == "foo"
+        lazy.get().is(lazy.get())
+        count.get() == 1
+        thread.get() == 1
+    }
+
+    def "ExpiringLazy serves the stale value while refreshing"() {
+      given:
+        def count = new AtomicInteger()
+        def refreshStarted = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        def lazy = new ExpiringLazy<Integer>(1, TimeUnit.HOURS, executor) {
+            @Override
+            protected Integer createInstance() {
+                def value = count.incrementAndGet()
+                if ( value > 1 ) {
+                    refreshStarted.countDown()
+                    release.await()
+                }
+                return value
+            }
+        }
+
+      when:
+        def first = lazy.get()
+        lazy.expire()
+        def stale = lazy.get()
+        refreshStarted.await(5, TimeUnit.SECONDS)
+        def duringRefresh = lazy.get()
+        release.countDown()
+        def deadline = System.currentTimeMillis() + 5000
+        while ( lazy.get() == 1 && System.currentTimeMillis() < deadline ) {
+            Thread.sleep(10)
+        }
+
+      then:
+        first == 1
+        stale == 1
+        duringRefresh == 1
+        lazy.get() == 2
+        count.get() == 2
+    }
+
+    def "ExpiringLazy keeps the stale value if the refresh fails"() {
+      given:
+        def count = new AtomicInteger()
+        def lazy = new ExpiringLazy<Integer>(1, TimeUnit.HOURS) {
+            @Override
+            protected Integer createInstance() {
+                if ( count.incrementAndGet() == 2 ) {
+                    throw new IllegalStateException("Test")
+                }
+                return count.get()
+            }
+        }
+
+      expect:
+        lazy.get() == 1
+        lazy.expire() == null
+        lazy.get() == 1
+        lazy.expire() == null
+        lazy.get() == 3
+    }
+
+    def "ExpiringLazy refreshes inline if the executor rejects the refresh"() {
+      given:
+        def count = new AtomicInteger()
+        def rejecting = Executors.newSingleThreadExecutor()
+        rejecting.shutdown()
+        def lazy = new ExpiringLazy<Integer>(1, TimeUnit.HOURS, rejecting) {
+            @Override
+            protected Integer createInstance() {
+                return count.incrementAndGet()
+            }
+        }
+
+      expect:
+        lazy.get() == 1
+        lazy.expire() == null
+        lazy.get() == 2
+        lazy.expire() == null
+        lazy.get() == 3
+    }
+
+    static class RacyUUID extends RacyLazy<UUID> {
+        RacyUUID() {
+            super(true)
+        }
+        @Override
+        protected UUID createInstance() {
+            return UUID.randomUUID()
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+package ch.raffael.util.common.collections
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicReference
+
+import com.google.common.collect.HashMultimap
+import spock.lang.Specification
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class ConcurrentUCollectionsSpec extends Specification {
+
+    def "ConcurrentUList snapshots don't change"() {
+      given:
+        def list = new ConcurrentUList<String>(['a', 'b'])
+
+      when:
+        def snapshot = list.unmodifiable()
+        list.add('c')
+        list.remove('a')
+        list.add(0, null)
+
+      then:
+        snapshot == ['a', 'b']
+        list == [null, 'b', 'c']
+        list.unmodifiable() == [null, 'b', 'c']
+
+      when:
+        list.unmodifiable().add('x')
+
+      then:
+        thrown(UnsupportedOperationException)
+    }
+
+    def "ConcurrentUSet snapshots don't change"() {
+      given:
+        def set = new ConcurrentUSet<String>(['a'])
+
+      when:
+        def snapshot = set.unmodifiable()
+        def added = set.add('b')
+        def addedAgain = set.add('b')
+
+      then:
+        added
+        !addedAgain
+        snapshot == ['a'] as Set
+        set == ['a', 'b'] as Set
+    }
+
+    def "ConcurrentUMap snapshots don't change"() {
+      given:
+        def map = new ConcurrentUMap<String, Integer>()
+
+      when:
+        map.put('a', 1)
+        def snapshot = map.unmodifiable()
+        def prev = map.put('a', 2)
+        map.put('b', 3)
+
+      then:
+        prev == 1
+        snapshot == [a: 1]
+        map == [a: 2, b: 3]
+
+      when:
+        map.unmodifiable().put('c', 4)
+
+      then:
+        thrown(UnsupportedOperationException)
+    }
+
+    def "ConcurrentUMultimap snapshots don't change"() {
+      given:
+        def multimap = new ConcurrentUMultimap<String, Integer>()
+
+      when:
+        multimap.put('a', 1)
+        def snapshot = multimap.unmodifiable()
+        multimap.put('a', 2)
+        multimap.replaceValues('b', [3, 4])
+
+      then:
+        snapshot.get('a') == [1] as Set
+        multimap.get('a') == [1, 2] as Set
+        multimap.get('b') == [3, 4] as Set
+        multimap.size() == 4
+    }
+
+    def "Readers always see consistent snapshots"() {
+      given:
+        def list = new ConcurrentUList<Integer>()
+        def failure = new AtomicReference<Throwable>()
+        def done = new CountDownLatch(1)
+        def readers = (1..4).collect {
+            Thread.start {
+                try {
+                    while ( done.count > 0 ) {
+                        def snapshot = list.unmodifiable()
+                        def size = snapshot.size()
+                        snapshot.eachWithIndex { value, index -> assert value == index }
+                        assert snapshot.size() == size
+                    }
+                }
+                catch ( Throwable e ) {
+                    failure.set(e)
+                }
+            }
+        }
+
+      when:
+        1000.times { list.add(it) }
+        done.countDown()
+        readers*.join()
+
+      then:
+        failure.get() == null
+        list.size() == 1000
+    }
+
+}
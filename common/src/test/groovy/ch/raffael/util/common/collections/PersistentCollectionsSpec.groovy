@@ -0,0 +1,202 @@
+package ch.raffael.util.common.collections
+
+import spock.lang.Specification
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class PersistentCollectionsSpec extends Specification {
+
+    def "PersistentVector appends and replaces without changing older versions"() {
+      given:
+        def versions = [PersistentVector.<Integer>empty()]
+
+      when:
+        100000.times { versions << versions[-1].plus(it) }
+        def big = versions[-1]
+        def replaced = big.with(54321, -1)
+
+      then:
+        big.size() == 100000
+        (0..<100000).every { big.get(it) == it }
+        big == (0..<100000).toList()
+        versions[1057] == (0..<1057).toList()
+        replaced.get(54321) == -1
+        big.get(54321) == 54321
+        replaced.with(100000, 7).size() == 100001
+    }
+
+    def "PersistentVector withoutLast() shrinks across tail and tree boundaries"() {
+      given:
+        def vector = PersistentVector.empty().plusAll(0..<1100)
+
+      when:
+        def shrunk = vector
+        1070.times { shrunk = shrunk.withoutLast() }
+
+      then:
+        shrunk == (0..<30).toList()
+        vector.size() == 1100
+
+      when:
+        PersistentVector.empty().withoutLast()
+
+      then:
+        thrown(IllegalStateException)
+    }
+
+    def "PersistentVector builder doesn't affect built vectors"() {
+      given:
+        def builder = PersistentVector.empty().plusAll(0..<40).builder()
+
+      when:
+        builder.addAll(40..<2000)
+        def first = builder.build()
+        builder.set(5, -5).add(2000)
+        def second = builder.build()
+
+      then:
+        first == (0..<2000).toList()
+        second.size() == 2001
+        second.get(5) == -5
+        second.get(2000) == 2000
+    }
+
+    def "PersistentVector is immutable and serializable"() {
+      given:
+        def vector = PersistentVector.empty().plusAll(['a', 'b', null])
+
+      when:
+        vector.add('c')
+
+      then:
+        thrown(UnsupportedOperationException)
+
+      expect:
+        roundTrip(vector) == ['a', 'b', null]
+        roundTrip(PersistentVector.empty()).is(PersistentVector.empty())
+    }
+
+    def "PersistentMap adds, replaces and removes without changing older versions"() {
+      given:
+        def map = PersistentMap.<Integer, String>empty()
+
+      when:
+        50000.times { map = map.plus(it, String.valueOf(it)) }
+        def replaced = map.plus(123, 'x')
+        def removed = map
+        (0..<50000).step(2) { removed = removed.minus(it) }
+
+      then:
+        map.size() == 50000
+        (0..<50000).every { map.get(it) == String.valueOf(it) }
+        replaced.get(123) == 'x'
+        map.get(123) == '123'
+        removed.size() == 25000
+        !removed.containsKey(2)
+        removed.containsKey(3)
+        map.entrySet().size() == 50000
+        map == (0..<50000).collectEntries { [it, String.valueOf(it)] }
+    }
+
+    def "PersistentMap handles hash collisions and null keys"() {
+      given:
+        def a = new Collider('a')
+        def b = new Collider('b')
+        def c = new Collider('c')
+
+      when:
+        def map = PersistentMap.empty().plus(a, 1).plus(b, 2).plus(c, 3).plus(null, 0).plus('x', null)
+
+      then:
+        map.size() == 5
+        map.get(a) == 1
+        map.get(b) == 2
+        map.get(c) == 3
+        map.get(null) == 0
+        map.containsKey('x')
+        map.minus(b).size() == 4
+        map.minus(b).get(c) == 3
+        !map.minus(b).containsKey(b)
+        map.minus(a).minus(b).minus(c).minus(null).minus('x').isEmpty()
+        map.keySet() == [a, b, c, null, 'x'] as Set
+    }
+
+    def "PersistentMap builder removes entries in place and serializes"() {
+      given:
+        def builder = PersistentMap.<Integer, Integer>empty().builder()
+
+      when:
+        1000.times { builder.put(it, it * 2) }
+        def first = builder.build()
+        500.times { builder.remove(it) }
+        def second = builder.build()
+
+      then:
+        first.size() == 1000
+        second.size() == 500
+        second.get(500) == 1000
+        !second.containsKey(0)
+        roundTrip(second) == second
+    }
+
+    def "PersistentSet adds and removes elements"() {
+      given:
+        def set = PersistentSet.empty().plusAll(['a', 'b'])
+
+      when:
+        def added = set.plus('c')
+        def removed = added.minus('a')
+
+      then:
+        set == ['a', 'b'] as Set
+        added == ['a', 'b', 'c'] as Set
+        removed == ['b', 'c'] as Set
+        set.plus('a').is(set)
+        set.minus('x').is(set)
+        set.minus('a').minus('b').is(PersistentSet.empty())
+        roundTrip(added) == added
+    }
+
+    def "ConcurrentUList uses persistent snapshots"() {
+      given:
+        def list = new ConcurrentUList<Integer>()
+
+      when:
+        10000.times { list.add(it) }
+        def snapshot = list.unmodifiable()
+        list.set(0, -1)
+
+      then:
+        snapshot instanceof PersistentVector
+        snapshot.get(0) == 0
+        list.get(0) == -1
+        list.size() == 10000
+    }
+
+    private static roundTrip(object) {
+        def bytes = new ByteArrayOutputStream()
+        new ObjectOutputStream(bytes).withStream { it.writeObject(object) }
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).withStream { it.readObject() }
+    }
+
+    private static class Collider implements Serializable {
+        private final String name
+        Collider(String name) {
+            this.name = name
+        }
+        @Override
+        int hashCode() {
+            42
+        }
+        @Override
+        boolean equals(Object that) {
+            that instanceof Collider && that.name == name
+        }
+        @Override
+        String toString() {
+            name
+        }
+    }
+
+}
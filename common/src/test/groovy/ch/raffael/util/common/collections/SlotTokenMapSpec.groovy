@@ -0,0 +1,174 @@
+package ch.raffael.util.common.collections
+
+import java.lang.ref.WeakReference
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+import spock.lang.Specification
+import spock.lang.Timeout
+import spock.lang.Unroll
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class SlotTokenMapSpec extends Specification {
+
+    @Unroll
+    def "#mapType.simpleName behaves like a TokenMap"() {
+      given:
+        TokenMap map = mapType.newInstance()
+        TokenMap reference = new TokenMap()
+
+      when:
+        [map, reference].each {
+            it.put(String, "foo")
+            it.put(String, "key", "bar")
+            it.put(Integer, 42)
+            it.put(Integer, null)
+        }
+
+      then:
+        map.get(String) == "foo"
+        map.get(String, "key") == "bar"
+        map.get(String, "other") == null
+        map.get(Integer) == null
+        map == reference
+        reference == map
+        map.hashCode() == reference.hashCode()
+
+      where:
+        mapType << [SlotTokenMap, ConcurrentTokenMap]
+    }
+
+    def "Slots are interned"() {
+      expect:
+        TokenSlot.of(String, "slot").is(TokenSlot.of(String, "slot"))
+        TokenSlot.of(String).is(TokenSlot.of(String, null))
+        TokenSlot.of(String).index != TokenSlot.of(String, "slot").index
+    }
+
+    def "Values can be accessed by slot"() {
+      given:
+        def map = new ConcurrentTokenMap()
+        def slot = TokenSlot.of(Long, "slotAccess")
+
+      when:
+        map.put(slot, 23L)
+
+      then:
+        map.get(slot) == 23L
+        map.get(Long, "slotAccess") == 23L
+        map.require(slot) == 23L
+    }
+
+    def "putAll() and putAllAbsent() copy between implementations"() {
+      given:
+        def source = new TokenMap()
+        source.put(String, "foo")
+        source.put(String, "key", "bar")
+        def target = new ConcurrentTokenMap()
+        target.put(String, "existing")
+
+      when:
+        target.putAllAbsent(source)
+
+      then:
+        target.get(String) == "existing"
+        target.get(String, "key") == "bar"
+
+      when:
+        target.putAll(source)
+
+      then:
+        target.get(String) == "foo"
+    }
+
+    def "Serialization re-interns the slots"() {
+      given:
+        def map = new ConcurrentTokenMap()
+        map.put(String, "foo")
+        map.put(String, "key", "bar")
+
+      when:
+        def bytes = new ByteArrayOutputStream()
+        new ObjectOutputStream(bytes).withStream { it.writeObject(map) }
+        TokenMap copy = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject()
+
+      then:
+        copy instanceof ConcurrentTokenMap
+        copy.get(String) == "foo"
+        copy.get(String, "key") == "bar"
+        copy == map
+    }
+
+    @Timeout(30)
+    def "Comparing two synchronized maps concurrently doesn't deadlock"() {
+      given:
+        def a = new TokenMap().synchronize()
+        def b = new TokenMap().synchronize()
+        a.put(String, "foo")
+        b.put(String, "foo")
+        def executor = Executors.newFixedThreadPool(2)
+
+      when:
+        def futures = [[a, b], [b, a]].collect { pair ->
+            executor.submit({ 100000.times { assert pair[0] == pair[1] } } as Callable)
+        }
+        futures*.get(20, TimeUnit.SECONDS)
+
+      then:
+        notThrown(Exception)
+
+      cleanup:
+        executor.shutdownNow()
+    }
+
+    def "Slots are released when no longer used"() {
+      given:
+        def map = new SlotTokenMap()
+        def key = new Object()
+        def slot = new WeakReference(TokenSlot.of(String, key))
+        map.put(String, key, "foo")
+
+      when:
+        gc()
+
+      then:
+        slot.get() != null
+        map.get(String, key) == "foo"
+
+      when:
+        map.put(String, key, null)
+        gc()
+
+      then:
+        slot.get() == null
+    }
+
+    def "Indexes of released slots are reused"() {
+      when:
+        def indexes = (1..20).collect {
+            def index = useSlotOnce()
+            gc()
+            index
+        }
+
+      then:
+        indexes.every { it <= indexes[0] }
+    }
+
+    private static int useSlotOnce() {
+        def map = new SlotTokenMap()
+        map.put(String, "recycled", "foo")
+        return TokenSlot.find(String, "recycled").index
+    }
+
+    private static void gc() {
+        5.times {
+            System.gc()
+            Thread.sleep(20)
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+package ch.raffael.util.common.collections
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+import spock.lang.Specification
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class TopoExecutorSpec extends Specification {
+
+    def executor = Executors.newFixedThreadPool(4)
+
+    def cleanup() {
+        executor.shutdownNow()
+    }
+
+    def "Nodes start as soon as their predecessors completed"() {
+      given:
+        def topo = new TopoExecutor<String>()
+        topo.add('slow', 'afterSlow')
+        topo.add('fast', 'afterFast')
+        def slowRelease = new CountDownLatch(1)
+        def afterFastDone = new CountDownLatch(1)
+        def completed = Collections.synchronizedList([])
+
+      when:
+        def future = topo.execute(executor, { node ->
+            if ( node == 'slow' ) {
+                assert slowRelease.await(5, TimeUnit.SECONDS)
+            }
+            completed << node
+            if ( node == 'afterFast' ) {
+                afterFastDone.countDown()
+                slowRelease.countDown()
+            }
+        } as TopoSort.Visitor)
+        future.get(5, TimeUnit.SECONDS)
+
+      then:
+        afterFastDone.count == 0
+        completed.indexOf('fast') < completed.indexOf('afterFast')
+        completed.indexOf('afterFast') < completed.indexOf('slow')
+        completed.indexOf('slow') < completed.indexOf('afterSlow')
+        future.done
+    }
+
+    def "A failure prevents dependent nodes from being started"() {
+      given:
+        def topo = new TopoExecutor<String>()
+        topo.add('a', 'b')
+        topo.add('b', 'c')
+        def visited = Collections.synchronizedList([])
+
+      when:
+        topo.execute(executor, { node ->
+            visited << node
+            if ( node == 'b' ) {
+                throw new IllegalStateException(node)
+            }
+        } as TopoSort.Visitor).get(5, TimeUnit.SECONDS)
+
+      then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof IllegalStateException
+        visited == ['a', 'b']
+    }
+
+    def "Cancelling stops scheduling further nodes"() {
+      given:
+        def topo = new TopoExecutor<String>()
+        topo.add('a', 'b')
+        def started = new CountDownLatch(1)
+        def visited = Collections.synchronizedList([])
+
+      when:
+        def future = topo.execute(executor, { node ->
+            visited << node
+            started.countDown()
+            Thread.sleep(10000)
+        } as TopoSort.Visitor)
+        started.await(5, TimeUnit.SECONDS)
+        def cancelled = future.cancel(true)
+        Thread.sleep(100)
+
+      then:
+        cancelled
+        future.cancelled
+        future.done
+        visited == ['a']
+
+      when:
+        future.get()
+
+      then:
+        thrown(CancellationException)
+    }
+
+    def "get() waits for running tasks after cancelling"() {
+      given:
+        def topo = new TopoExecutor<String>()
+        topo.add('a', 'b')
+        def started = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        def visited = Collections.synchronizedList([])
+
+      when:
+        def future = topo.execute(executor, { node ->
+            visited << node
+            started.countDown()
+            release.await()
+        } as TopoSort.Visitor)
+        started.await(5, TimeUnit.SECONDS)
+        future.cancel(false)
+        future.get(100, TimeUnit.MILLISECONDS)
+
+      then:
+        future.done
+        thrown(TimeoutException)
+
+      when:
+        release.countDown()
+        future.get(5, TimeUnit.SECONDS)
+
+      then:
+        thrown(CancellationException)
+        visited == ['a']
+    }
+
+    def "Interrupts from cancelling don't leak to later tasks of the pool"() {
+      given:
+        def single = Executors.newSingleThreadExecutor()
+        def topo = new TopoExecutor<String>()
+        topo.add('a')
+        def started = new CountDownLatch(1)
+
+      when:
+        def future = topo.execute(single, { node ->
+            started.countDown()
+            try {
+                Thread.sleep(10000)
+            }
+            catch ( InterruptedException e ) {
+                // restore the interrupt and don't tell anybody
+                Thread.currentThread().interrupt()
+            }
+        } as TopoSort.Visitor)
+        started.await(5, TimeUnit.SECONDS)
+        future.cancel(true)
+        future.get(5, TimeUnit.SECONDS)
+
+      then:
+        thrown(CancellationException)
+        !single.submit({ Thread.currentThread().isInterrupted() } as Callable<Boolean>).get(5, TimeUnit.SECONDS)
+
+      cleanup:
+        single?.shutdownNow()
+    }
+
+    def "Circular graphs are rejected before starting"() {
+      given:
+        def topo = new TopoExecutor<String>()
+        topo.add('a', 'b')
+        topo.add('b', 'a')
+
+      when:
+        topo.execute(executor, { node -> assert false } as TopoSort.Visitor)
+
+      then:
+        thrown(TopoSort.CircularGraphException)
+    }
+
+    def "Empty graphs complete immediately"() {
+      expect:
+        new TopoExecutor<String>().execute(executor, { node -> } as TopoSort.Visitor).done
+    }
+
+}
@@ -0,0 +1,109 @@
+package ch.raffael.util.common.collections
+
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+
+import spock.lang.Specification
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class TopoSortSpec extends Specification {
+
+    def "Sorting is stable and respects all arcs"() {
+      given:
+        def sort = new TopoSort<String>(['e', 'd', 'c', 'b', 'a'])
+        sort.add('a', 'b')
+        sort.add('b', 'd')
+        sort.add('c', 'd')
+        sort.add('a', 'e')
+
+      expect:
+        sort.sort() == ['c', 'a', 'e', 'b', 'd']
+        sort.sort() == ['c', 'a', 'e', 'b', 'd']
+    }
+
+    def "Levels group independent nodes"() {
+      given:
+        def sort = new TopoSort<String>()
+        sort.add('a', 'b')
+        sort.add('a', 'c')
+        sort.add('b', 'd')
+        sort.add('c', 'd')
+        sort.add('x')
+        sort.add('a', 'd')
+
+      expect:
+        sort.levels() == [['a', 'x'], ['b', 'c'], ['d']]
+    }
+
+    def "Cycles are reported with their members"() {
+      given:
+        def sort = new TopoSort<String>()
+        sort.add('x', 'a')
+        sort.add('a', 'b')
+        sort.add('b', 'c')
+        sort.add('c', 'a')
+        sort.add('c', 'y')
+
+      when:
+        sort.sort()
+
+      then:
+        def e = thrown(TopoSort.CircularGraphException)
+        e.cycle.size() == 3
+        e.cycle as Set == ['a', 'b', 'c'] as Set
+        e.message.contains('=>')
+    }
+
+    def "Large chains are sorted quickly"() {
+      given:
+        def sort = new TopoSort<Integer>()
+        (1..<20000).each { sort.add(it - 1, it) }
+
+      expect:
+        sort.sort() == (0..<20000).toList()
+    }
+
+    def "visitLevels() visits all levels in order"() {
+      given:
+        def executor = Executors.newFixedThreadPool(4)
+        def sort = new TopoSort<String>()
+        sort.add('a', 'b')
+        sort.add('a', 'c')
+        sort.add('b', 'd')
+        def visited = Collections.synchronizedList([])
+
+      when:
+        sort.visitLevels(executor, { visited << it } as TopoSort.Visitor)
+
+      then:
+        visited.size() == 4
+        visited[0] == 'a'
+        visited[1..2] as Set == ['b', 'c'] as Set
+        visited[3] == 'd'
+
+      cleanup:
+        executor.shutdown()
+    }
+
+    def "visitLevels() stops after the level of a failure"() {
+      given:
+        def executor = Executors.newFixedThreadPool(4)
+        def sort = new TopoSort<String>()
+        sort.add('a', 'b')
+        def visited = Collections.synchronizedList([])
+
+      when:
+        sort.visitLevels(executor, { visited << it; throw new IllegalStateException(it) } as TopoSort.Visitor)
+
+      then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof IllegalStateException
+        visited == ['a']
+
+      cleanup:
+        executor.shutdown()
+    }
+
+}
@@ -0,0 +1,110 @@
+package ch.raffael.util.common.logging
+
+import com.google.common.base.Function
+import org.slf4j.Logger
+import org.slf4j.MarkerFactory
+
+import spock.lang.Specification
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class EnhancedLoggerSpec extends Specification {
+
+    def "Enhanced formats are cached per format string"() {
+      given:
+        def delegate = Mock(Logger)
+        def enhancer = Mock(Function)
+        def logger = new EnhancedLogger(delegate, enhancer)
+        def format = 'Hello {}'
+
+      when:
+        3.times { logger.info(format, it) }
+
+      then:
+        3 * delegate.isInfoEnabled() >> true
+        1 * enhancer.apply(format) >> '[x] Hello {}'
+        1 * delegate.info('[x] Hello {}', 0)
+        1 * delegate.info('[x] Hello {}', 1)
+        1 * delegate.info('[x] Hello {}', 2)
+    }
+
+    def "Caching can be disabled"() {
+      given:
+        def delegate = Mock(Logger)
+        def enhancer = Mock(Function)
+        def logger = new EnhancedLogger(delegate, enhancer, false)
+
+      when:
+        2.times { logger.warn('Foo') }
+
+      then:
+        _ * delegate.isWarnEnabled() >> true
+        2 * enhancer.apply('Foo') >> '[x] Foo'
+        2 * delegate.warn('[x] Foo')
+    }
+
+    def "Asynchronous loggers forward events in order from a background thread"() {
+      given:
+        def marker = MarkerFactory.getMarker('test')
+        def exception = new Exception()
+        def calls = Collections.synchronizedList([])
+        def threads = Collections.synchronizedSet([] as Set)
+        def delegate = Mock(Logger) {
+            isDebugEnabled() >> true
+            isDebugEnabled(_) >> true
+            isTraceEnabled() >> false
+            debug(*_) >> { args ->
+                threads << Thread.currentThread()
+                calls << args.collect { it instanceof Object[] ? it.toList() : it }
+            }
+        }
+        def logger = new AsyncLogger(delegate, new LogRingBuffer(64))
+
+      when:
+        logger.debug('one')
+        logger.debug('two {}', 2)
+        logger.debug(marker, 'three {} {}', 3, 4)
+        logger.debug('four', exception)
+        logger.trace('disabled')
+        (5..20).each { logger.debug('more {}', it) }
+        def flushed = logger.flush(5000)
+
+      then:
+        flushed
+        calls.size() == 20
+        calls[0] == ['one']
+        calls[1] == ['two {}', [2]]
+        calls[2] == [marker, 'three {} {}', [3, 4]]
+        calls[3] == ['four', exception]
+        calls[4..19] == (5..20).collect { ['more {}', [it]] }
+        !(Thread.currentThread() in threads)
+    }
+
+    def "Errors of asynchronous delegates are reported and don't stop the background thread"() {
+      given:
+        def calls = Collections.synchronizedList([])
+        def delegate = Mock(Logger) {
+            isDebugEnabled() >> true
+            getName() >> 'failing'
+            debug(*_) >> { args ->
+                if ( args[0] == 'fail' ) {
+                    throw new IllegalStateException('Failing on purpose')
+                }
+                calls << args[0]
+            }
+        }
+        def logger = new AsyncLogger(delegate, new LogRingBuffer(64))
+
+      when:
+        logger.debug('one')
+        logger.debug('fail')
+        logger.debug('two')
+        def flushed = logger.flush(5000)
+
+      then:
+        flushed
+        calls == ['one', 'two']
+    }
+
+}
@@ -0,0 +1,157 @@
+package ch.raffael.util.common.logging
+
+import groovy.transform.CompileStatic
+import org.slf4j.Logger
+
+import spock.lang.Specification
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class StructuredLoggerSpec extends Specification {
+
+    def delegate = Mock(Logger) {
+        isInfoEnabled() >> true
+        isWarnEnabled() >> true
+        isDebugEnabled() >> false
+    }
+
+    def "Events are logged as JSON"() {
+      given:
+        def log = StructuredLogger.of(delegate)
+
+      when:
+        log.info('login')
+                .field('user', 'j"doe\n')
+                .field('attempts', 3)
+                .field('elapsed', 1.5d)
+                .field('ok', true)
+                .field('id', 42L)
+                .field('missing', (String)null)
+                .field('object', [1, 2] as Set)
+                .log()
+
+      then:
+        1 * delegate.info('{"event":"login","user":"j\\"doe\\n","attempts":3,"elapsed":1.5,"ok":true,"id":42,"missing":null,"object":"[1, 2]"}')
+    }
+
+    def "The event buffer is reused"() {
+      given:
+        def log = StructuredLogger.of(delegate)
+        def exception = new Exception()
+
+      when:
+        def first = log.info('first')
+        first.field('a', 1).log()
+        def second = log.warn('second')
+        second.field('b', 2).log(exception)
+
+      then:
+        first.is(second)
+        1 * delegate.info('{"event":"first","a":1}')
+        1 * delegate.warn('{"event":"second","b":2}', exception)
+    }
+
+    def "Disabled events are ignored"() {
+      given:
+        def log = StructuredLogger.of(delegate)
+
+      when:
+        log.debug('ignored').field('a', 1).log()
+
+      then:
+        0 * delegate.debug(*_)
+    }
+
+    def "Events logged while building another event use a new buffer"() {
+      given:
+        def log = StructuredLogger.of(delegate)
+        def nested = new Object() {
+            @Override
+            String toString() {
+                log.info('nested').field('x', 1).log()
+                return 'value'
+            }
+        }
+
+      when:
+        log.info('outer').field('nested', nested).log()
+
+      then:
+        1 * delegate.info('{"event":"nested","x":1}')
+        1 * delegate.info('{"event":"outer","nested":"value"}')
+    }
+
+    def "Abandoned and failed events don't prevent reusing the buffer"() {
+      given:
+        def log = StructuredLogger.of(delegate)
+        def failing = new Object() {
+            @Override
+            String toString() {
+                throw new IllegalStateException('Test')
+            }
+        }
+
+      when:
+        def abandoned = log.info('abandoned').field('a', 1)
+        def failed = log.info('failed')
+        failed.field('failing', failing)
+
+      then:
+        thrown(IllegalStateException)
+
+      when:
+        def next = log.info('next')
+        next.field('b', 2).log()
+
+      then:
+        next.is(abandoned)
+        next.is(failed)
+        1 * delegate.info('{"event":"next","b":2}')
+    }
+
+    def "NaN and infinite values are logged as strings"() {
+      given:
+        def log = StructuredLogger.of(delegate)
+
+      when:
+        def event = log.info('values').field('nan', Double.NaN)
+        Client.boxed(event, 'boxedNaN', Double.NaN)
+        Client.boxed(event, 'boxedInfinity', Float.NEGATIVE_INFINITY)
+        Client.boxed(event, 'boxedFloat', 0.5f)
+        event.log()
+
+      then:
+        1 * delegate.info('{"event":"values","nan":"NaN","boxedNaN":"NaN","boxedInfinity":"-Infinity","boxedFloat":0.5}')
+    }
+
+    def "Logging an event twice logs it once"() {
+      given:
+        def log = StructuredLogger.of(delegate)
+
+      when:
+        def event = log.info('once').field('a', 1)
+        event.log()
+        event.log()
+
+      then:
+        1 * delegate.info('{"event":"once","a":1}')
+        0 * delegate.info(*_)
+    }
+
+    def "getLogger() uses the calling class"() {
+      expect:
+        Client.logger().delegate.name == Client.name
+    }
+
+    @CompileStatic
+    static class Client {
+        static StructuredLogger logger() {
+            return StructuredLogger.getLogger()
+        }
+        static void boxed(LogEvent event, String name, Object value) {
+            event.field(name, value)
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+package ch.raffael.util.common.logging
+
+import org.slf4j.Logger
+
+import spock.lang.Specification
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class ThrottledLoggerSpec extends Specification {
+
+    def delegate = Mock(Logger) {
+        isWarnEnabled() >> true
+        isDebugEnabled() >> false
+    }
+
+    def "SamplingLogger logs every n-th message per call site"() {
+      given:
+        def logger = LogUtil.sampling(delegate, 3)
+
+      when:
+        7.times { logger.warn('Foo {}', it) }
+        logger.warn('Bar')
+
+      then:
+        1 * delegate.warn('Foo {}', 0)
+        1 * delegate.warn('Suppressed {} messages like: {}', [2L, 'Foo {}'] as Object[])
+        1 * delegate.warn('Foo {}', 3)
+        1 * delegate.warn('Suppressed {} messages like: {}', [2L, 'Foo {}'] as Object[])
+        1 * delegate.warn('Foo {}', 6)
+        1 * delegate.warn('Bar')
+        0 * delegate.warn(*_)
+    }
+
+    def "RateLimitedLogger admits a burst, then limits the rate"() {
+      given:
+        def logger = LogUtil.rateLimited(delegate, 1, 3)
+
+      when:
+        100.times { logger.warn('Foo {}', it) }
+
+      then:
+        1 * delegate.warn('Foo {}', 0)
+        1 * delegate.warn('Foo {}', 1)
+        1 * delegate.warn('Foo {}', 2)
+        0 * delegate.warn(*_)
+    }
+
+    def "RateLimitedLogger refills the bucket over time"() {
+      given:
+        def logger = LogUtil.rateLimited(delegate, 20, 1)
+
+      when:
+        10.times { logger.warn('Foo') }
+        Thread.sleep(200)
+        logger.warn('Foo')
+
+      then:
+        2 * delegate.warn('Foo')
+        1 * delegate.warn('Suppressed {} messages like: {}', [9L, 'Foo'] as Object[])
+    }
+
+    def "Dynamic formats are throttled per calling class"() {
+      given:
+        def logger = LogUtil.rateLimited(delegate, 0.001, 1)
+
+      when:
+        100.times { logger.warn('Foo ' + it) }
+
+      then:
+        17 * delegate.warn({ it.startsWith('Foo ') })
+        0 * delegate.warn(*_)
+    }
+
+    def "Repeating formats keep their own call site while dynamic formats are throttled"() {
+      given:
+        def logger = LogUtil.rateLimited(delegate, 0.001, 2)
+
+      when:
+        logger.warn('Bar')
+        100.times { logger.warn('Foo ' + it) }
+        logger.warn('Bar')
+
+      then:
+        2 * delegate.warn('Bar')
+        17 * delegate.warn({ it.startsWith('Foo ') })
+        0 * delegate.warn(*_)
+    }
+
+    def "Keyed loggers throttle all their messages as one call site"() {
+      given:
+        def logger = LogUtil.sampling(delegate, 3)
+
+      when:
+        10.times { logger.forKey('failed').warn('Failed ' + it) }
+
+      then:
+        1 * delegate.warn('Failed 0')
+        1 * delegate.warn('Suppressed {} messages like: {}', [2L, 'Failed 3'] as Object[])
+        1 * delegate.warn('Failed 3')
+        1 * delegate.warn('Suppressed {} messages like: {}', [2L, 'Failed 6'] as Object[])
+        1 * delegate.warn('Failed 6')
+        1 * delegate.warn('Suppressed {} messages like: {}', [2L, 'Failed 9'] as Object[])
+        1 * delegate.warn('Failed 9')
+        0 * delegate.warn(*_)
+    }
+
+    def "flush() emits pending summaries"() {
+      given:
+        def logger = LogUtil.sampling(delegate, 3)
+
+      when:
+        2.times { logger.warn('Foo {}', it) }
+        logger.flush()
+        logger.flush()
+
+      then:
+        1 * delegate.warn('Foo {}', 0)
+        1 * delegate.warn('Suppressed {} messages like: {}', [1L, 'Foo {}'] as Object[])
+        0 * delegate.warn(*_)
+    }
+
+    def "Pending summaries are emitted periodically by any message"() {
+      given:
+        def logger = LogUtil.sampling(delegate, 3)
+
+      when:
+        2.times { logger.warn('Foo {}', it) }
+        def nextFlush = ThrottledLogger.getDeclaredField('nextFlush')
+        nextFlush.accessible = true
+        nextFlush.get(logger).set(System.nanoTime() - 1)
+        logger.warn('Bar')
+
+      then:
+        1 * delegate.warn('Foo {}', 0)
+        1 * delegate.warn('Suppressed {} messages like: {}', [1L, 'Foo {}'] as Object[])
+        1 * delegate.warn('Bar')
+        0 * delegate.warn(*_)
+    }
+
+    def "Pending summaries are emitted when a call site is dropped"() {
+      given:
+        def logger = LogUtil.sampling(delegate, 3)
+
+      when:
+        2.times { logger.warn('Foo {}', it) }
+        2000.times { i -> 2.times { logger.warn('Bar ' + i) } }
+
+      then:
+        1 * delegate.warn('Suppressed {} messages like: {}', [1L, 'Foo {}'] as Object[])
+    }
+
+    def "Disabled levels don't count as suppressed"() {
+      given:
+        def logger = LogUtil.sampling(delegate, 2)
+
+      when:
+        5.times { logger.debug('Foo') }
+
+      then:
+        0 * delegate.debug(*_)
+    }
+
+}